@@ -0,0 +1,95 @@
+package org.goobs.bench;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+import org.goobs.database.Database;
+import org.goobs.stanford.CoreMapDataset;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks creating a CoreMapDataset, which deep flushes a nested DBCoreMap graph
+ * (documents, sentences, tokens) to an embedded SQLite file.
+ * Build with 'mvn -Pbench package', and run with 'java -jar target/benchmarks.jar CoreMapBenchmark'.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoreMapBenchmark {
+
+	@Param({"10"})
+	public int documents;
+
+	@Param({"10", "100"})
+	public int sentences;
+
+	@Param({"20"})
+	public int tokens;
+
+	private File file;
+	private Database db;
+	private CoreMap[] maps;
+	private int created = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = File.createTempFile("bench", ".db");
+		db = new Database(Database.ConnInfo.sqlite(file)).connect();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		db.disconnect();
+		if(!file.delete()){ file.deleteOnExit(); }
+	}
+
+	/**
+	 * Fresh documents for every dataset; building them is not part of the measurement
+	 */
+	@Setup(Level.Invocation)
+	public void createDocuments(){
+		maps = new CoreMap[documents];
+		for(int d=0; d<documents; d++){ maps[d] = createDocument(); }
+	}
+
+	private CoreMap createDocument(){
+		List<CoreMap> sentenceMaps = new ArrayList<CoreMap>(sentences);
+		StringBuilder text = new StringBuilder();
+		for(int s=0; s<sentences; s++){
+			List<CoreLabel> tokenLabels = new ArrayList<CoreLabel>(tokens);
+			StringBuilder sentence = new StringBuilder();
+			for(int t=0; t<tokens; t++){
+				CoreLabel token = new CoreLabel();
+				token.setWord("word" + t);
+				token.setIndex(t + 1);
+				tokenLabels.add(token);
+				sentence.append("word").append(t).append(" ");
+			}
+			CoreMap sentenceMap = new ArrayCoreMap(2);
+			sentenceMap.set(CoreAnnotations.TextAnnotation.class, sentence.toString());
+			sentenceMap.set(CoreAnnotations.TokensAnnotation.class, tokenLabels);
+			sentenceMaps.add(sentenceMap);
+			text.append(sentence);
+		}
+		CoreMap document = new ArrayCoreMap(2);
+		document.set(CoreAnnotations.TextAnnotation.class, text.toString());
+		document.set(CoreAnnotations.SentencesAnnotation.class, sentenceMaps);
+		return document;
+	}
+
+	@Benchmark
+	public CoreMapDataset deepFlush(){
+		created += 1;
+		return new CoreMapDataset("bench-" + created, db, maps);
+	}
+}
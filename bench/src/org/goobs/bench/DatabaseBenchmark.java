@@ -0,0 +1,177 @@
+package org.goobs.bench;
+
+import org.goobs.database.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the basic object mapping operations, against an embedded SQLite file.
+ * Build with 'mvn -Pbench package', and run with 'java -jar target/benchmarks.jar DatabaseBenchmark'.
+ * The table size and column types can be set with, e.g., -p rows=100000 -p columns=mixed
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+	/*
+	 * SCHEMA
+	 */
+	public static abstract class Row extends DatabaseObject {
+		protected abstract void fill(int i);
+		protected abstract int id();
+	}
+
+	@Table(name="bench_int")
+	public static class IntRow extends Row {
+		@PrimaryKey(name="id")
+		private int id;
+		@Key(name="a")
+		private int a;
+		@Key(name="b")
+		private long b;
+		@Key(name="c")
+		private double c;
+		@Override protected void fill(int i){ a = i; b = 31L * i; c = i / 7.0; }
+		@Override protected int id(){ return id; }
+	}
+
+	@Table(name="bench_string")
+	public static class StringRow extends Row {
+		@PrimaryKey(name="id")
+		private int id;
+		@Key(name="a", length=63)
+		private String a;
+		@Key(name="b", length=255)
+		private String b;
+		@Key(name="c", length=-1)
+		private String c;
+		@Override protected void fill(int i){ a = "row" + i; b = "the quick brown fox " + i; c = Integer.toHexString(i * 31); }
+		@Override protected int id(){ return id; }
+	}
+
+	@Table(name="bench_mixed")
+	public static class MixedRow extends Row {
+		@PrimaryKey(name="id")
+		private int id;
+		@Key(name="a")
+		private int a;
+		@Key(name="b", length=63)
+		@Index
+		private String b;
+		@Key(name="c")
+		private double c;
+		@Key(name="d")
+		private boolean d;
+		@Key(name="e")
+		private Date e;
+		@Key(name="f")
+		private Class<?> f;
+		@Override protected void fill(int i){ a = i; b = "row" + i; c = i / 7.0; d = i % 2 == 0; e = new Date(i); f = Row.class; }
+		@Override protected int id(){ return id; }
+	}
+
+	/*
+	 * PARAMETERS
+	 */
+	@Param({"1000", "10000"})
+	public int rows;
+
+	@Param({"int", "string", "mixed"})
+	public String columns;
+
+	@Param({"100"})
+	public int lookupBatch;
+
+	/*
+	 * STATE
+	 */
+	private File file;
+	private Database db;
+	private Class<? extends Row> rowClass;
+	private int[] ids;
+	private int next;
+	private final Random rand = new Random(42);
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if(columns.equals("int")){
+			rowClass = IntRow.class;
+		} else if(columns.equals("string")){
+			rowClass = StringRow.class;
+		} else if(columns.equals("mixed")){
+			rowClass = MixedRow.class;
+		} else {
+			throw new IllegalArgumentException("Unknown column types: " + columns + " (expected int, string or mixed)");
+		}
+		file = File.createTempFile("bench", ".db");
+		db = new Database(Database.ConnInfo.sqlite(file)).connect();
+		db.ensureTable(rowClass);
+		//(populate)
+		List<Row> created = new ArrayList<Row>(rows);
+		db.beginTransaction();
+		db.beginBatch();
+		for(int i=0; i<rows; i++){
+			Row row = db.emptyObject(rowClass);
+			row.fill(i);
+			row.flush();
+			created.add(row);
+		}
+		db.endBatch();
+		db.endTransaction();
+		ids = new int[rows];
+		for(int i=0; i<rows; i++){ ids[i] = created.get(i).id(); }
+		next = rows;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		db.disconnect();
+		if(!file.delete()){ file.deleteOnExit(); }
+	}
+
+	/*
+	 * BENCHMARKS
+	 */
+
+	@Benchmark
+	public Row emptyObjectFlush(){
+		Row row = db.emptyObject(rowClass);
+		row.fill(next++);
+		return row.flush();
+	}
+
+	@Benchmark
+	public Row getObjectById(){
+		return db.getObjectById(rowClass, ids[rand.nextInt(ids.length)]);
+	}
+
+	@Benchmark
+	public List<? extends Row> getObjectsByIds(){
+		int[] batch = new int[lookupBatch];
+		for(int i=0; i<batch.length; i++){ batch[i] = ids[rand.nextInt(ids.length)]; }
+		return db.getObjectsByIds(rowClass, batch);
+	}
+
+	/**
+	 * A full scan of the table; the time is per scan, not per row
+	 */
+	@Benchmark
+	public int getObjectsWhere(Blackhole bh){
+		Iterator<? extends Row> iter = db.getObjectsWhere(rowClass, "id>=?", 0);
+		int count = 0;
+		while(iter.hasNext()){
+			bh.consume(iter.next());
+			count += 1;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,268 @@
+package org.goobs.database;
+
+import org.goobs.util.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The built in {@link ColumnCodec}s, and the registry of default codecs by field type.
+ * Primitive arrays are stored with a compact codec by default;
+ * any other type can be given a default with {@link Codecs#register(Class, ColumnCodec)},
+ * or a codec on a single field with {@link Key#codec()}.
+ */
+public final class Codecs {
+	private Codecs(){}
+
+	/*
+	 * REGISTRY
+	 */
+	private static final Map<Class<?>,ColumnCodec<?>> defaults = new ConcurrentHashMap<Class<?>,ColumnCodec<?>>();
+	static {
+		defaults.put(byte[].class, new Bytes());
+		defaults.put(int[].class, new VarInts());
+		defaults.put(long[].class, new VarLongs());
+		defaults.put(float[].class, new Floats());
+		defaults.put(double[].class, new Doubles());
+	}
+
+	/**
+	 * Store every field of exactly the given type with the given codec, unless the field names a codec of its own.
+	 * This must be called before any class with such a field is used with a database.
+	 * @param type The type of the field
+	 * @param codec The codec to store it with
+	 */
+	public static <E> void register(Class<E> type, ColumnCodec<? super E> codec){
+		defaults.put(type, codec);
+	}
+
+	/**
+	 * @param type The type of a field
+	 * @return The default codec for the type, or null if it is not stored with a codec
+	 */
+	public static ColumnCodec<?> defaultFor(Class<?> type){
+		return defaults.get(type);
+	}
+
+	/**
+	 * The codec a field is stored with: the one named in its key, if any, or else the default for its type.
+	 * Returns null if the field is not stored with a codec.
+	 */
+	@SuppressWarnings("unchecked")
+	static ColumnCodec<Object> forField(java.lang.reflect.Field f, Class<?> stored){
+		Key key = f.getAnnotation(Key.class);
+		if(key != null && key.codec() != ColumnCodec.class){
+			try {
+				return (ColumnCodec<Object>) key.codec().newInstance();
+			} catch (InstantiationException e) {
+				throw new DatabaseException("Could not create codec " + key.codec().getName() + " for " + f + ": " + e.getMessage());
+			} catch (IllegalAccessException e) {
+				throw new DatabaseException("Codec needs a public no-argument constructor: " + key.codec().getName());
+			}
+		}
+		if(key == null){ return null; }
+		return (ColumnCodec<Object>) defaults.get(stored);
+	}
+
+	/*
+	 * VARINTS
+	 */
+	private static void writeVarLong(ByteArrayOutputStream out, long v){
+		while((v & ~0x7FL) != 0){
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long readVarLong(ByteBuffer in){
+		long v = 0;
+		for(int shift=0; shift<64; shift+=7){
+			byte b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0){ return v; }
+		}
+		throw new DatabaseException("Malformed varint in column");
+	}
+
+	private static long zigzag(long v){ return (v << 1) ^ (v >> 63); }
+	private static long unzigzag(long v){ return (v >>> 1) ^ -(v & 1); }
+
+	/*
+	 * CODECS
+	 */
+
+	/**
+	 * Raw bytes, stored as they are
+	 */
+	public static final class Bytes implements ColumnCodec<byte[]> {
+		@Override public byte[] encode(byte[] value){ return value; }
+		@Override public byte[] decode(byte[] bytes){ return bytes; }
+	}
+
+	/**
+	 * An int[], as a length followed by zigzag varints; small values of either sign take a single byte
+	 */
+	public static final class VarInts implements ColumnCodec<int[]> {
+		@Override
+		public byte[] encode(int[] value){
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 5);
+			writeVarLong(out, value.length);
+			for(int v : value){ writeVarLong(out, zigzag(v)); }
+			return out.toByteArray();
+		}
+		@Override
+		public int[] decode(byte[] bytes){
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			int[] rtn = new int[(int) readVarLong(in)];
+			for(int i=0; i<rtn.length; i++){ rtn[i] = (int) unzigzag(readVarLong(in)); }
+			return rtn;
+		}
+	}
+
+	/**
+	 * A long[], as a length followed by zigzag varints
+	 */
+	public static final class VarLongs implements ColumnCodec<long[]> {
+		@Override
+		public byte[] encode(long[] value){
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length * 2 + 5);
+			writeVarLong(out, value.length);
+			for(long v : value){ writeVarLong(out, zigzag(v)); }
+			return out.toByteArray();
+		}
+		@Override
+		public long[] decode(byte[] bytes){
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			long[] rtn = new long[(int) readVarLong(in)];
+			for(int i=0; i<rtn.length; i++){ rtn[i] = unzigzag(readVarLong(in)); }
+			return rtn;
+		}
+	}
+
+	/**
+	 * A float[], as 4 bytes per element
+	 */
+	public static final class Floats implements ColumnCodec<float[]> {
+		@Override
+		public byte[] encode(float[] value){
+			ByteBuffer out = ByteBuffer.allocate(value.length * 4);
+			out.asFloatBuffer().put(value);
+			return out.array();
+		}
+		@Override
+		public float[] decode(byte[] bytes){
+			float[] rtn = new float[bytes.length / 4];
+			ByteBuffer.wrap(bytes).asFloatBuffer().get(rtn);
+			return rtn;
+		}
+	}
+
+	/**
+	 * A double[], as 8 bytes per element
+	 */
+	public static final class Doubles implements ColumnCodec<double[]> {
+		@Override
+		public byte[] encode(double[] value){
+			ByteBuffer out = ByteBuffer.allocate(value.length * 8);
+			out.asDoubleBuffer().put(value);
+			return out.array();
+		}
+		@Override
+		public double[] decode(byte[] bytes){
+			double[] rtn = new double[bytes.length / 8];
+			ByteBuffer.wrap(bytes).asDoubleBuffer().get(rtn);
+			return rtn;
+		}
+	}
+
+	/**
+	 * Any Serializable object, with Java serialization.
+	 * Unlike a plain Serializable key, this can be stored in SQLite.
+	 */
+	public static final class Serialized implements ColumnCodec<Serializable> {
+		@Override public byte[] encode(Serializable value){ return Utils.obj2bytes(value); }
+		@Override public Serializable decode(byte[] bytes){ return Utils.bytes2obj(bytes); }
+	}
+
+	/**
+	 * Compresses the output of another codec with Deflate.
+	 * Subclass with a no-argument constructor to use it on a key, as in {@link DeflatedDoubles}.
+	 */
+	public static abstract class Deflated<E> implements ColumnCodec<E> {
+		private final ColumnCodec<E> inner;
+		private final int level;
+
+		protected Deflated(ColumnCodec<E> inner, int level){
+			this.inner = inner;
+			this.level = level;
+		}
+		protected Deflated(ColumnCodec<E> inner){
+			this(inner, Deflater.DEFAULT_COMPRESSION);
+		}
+
+		@Override
+		public byte[] encode(E value){
+			byte[] raw = inner.encode(value);
+			Deflater deflater = new Deflater(level);
+			try {
+				//(the uncompressed length comes first, so decoding needs a single buffer)
+				ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+				writeVarLong(out, raw.length);
+				deflater.setInput(raw);
+				deflater.finish();
+				byte[] buffer = new byte[4096];
+				while(!deflater.finished()){
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public E decode(byte[] bytes){
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			byte[] raw = new byte[(int) readVarLong(in)];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(bytes, in.position(), in.remaining());
+				int read = 0;
+				while(read < raw.length){
+					int n = inflater.inflate(raw, read, raw.length - read);
+					if(n == 0 && (inflater.finished() || inflater.needsInput())){
+						throw new DatabaseException("Truncated compressed column (" + read + " of " + raw.length + " bytes)");
+					}
+					read += n;
+				}
+			} catch (DataFormatException e) {
+				throw new DatabaseException(e);
+			} finally {
+				inflater.end();
+			}
+			return inner.decode(raw);
+		}
+	}
+
+	/**
+	 * A double[], compressed; useful for sparse or repetitive vectors
+	 */
+	public static final class DeflatedDoubles extends Deflated<double[]> {
+		public DeflatedDoubles(){ super(new Doubles()); }
+	}
+
+	/**
+	 * Any Serializable object, with Java serialization, compressed
+	 */
+	public static final class DeflatedSerialized extends Deflated<Serializable> {
+		public DeflatedSerialized(){ super(new Serialized()); }
+	}
+}
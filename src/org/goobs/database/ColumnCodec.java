@@ -0,0 +1,24 @@
+package org.goobs.database;
+
+/**
+ * Stores the value of a field as a binary column (BLOB, or BYTEA on Postgres).
+ * A codec is chosen for a field either explicitly, with {@link Key#codec()},
+ * or by the field's type, from the defaults in {@link Codecs}.
+ * Implementations must be stateless, and have a public no-argument constructor.
+ * Null values are never passed to a codec; they are stored as SQL NULL.
+ *
+ * @param <E> The type of the values this codec stores
+ */
+public interface ColumnCodec<E> {
+	/**
+	 * @param value The (non-null) value to store
+	 * @return The bytes to store in the column
+	 */
+	public byte[] encode(E value);
+
+	/**
+	 * @param bytes The (non-null) bytes read from the column
+	 * @return The value they encode
+	 */
+	public E decode(byte[] bytes);
+}
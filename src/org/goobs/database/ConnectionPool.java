@@ -0,0 +1,202 @@
+package org.goobs.database;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A fixed-size pool of connections, leased out to threads (or to other owners, such as
+ * an open result). An owner keeps its connection until it releases it; connections
+ * held by threads which have since died, or by owners which have been garbage collected,
+ * are reclaimed when the pool runs dry.
+ */
+abstract class ConnectionPool {
+	private static final long RECLAIM_INTERVAL = 100;
+
+	private final int size;
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+	private final Map<Connection,WeakReference<Object>> leased = new IdentityHashMap<Connection,WeakReference<Object>>();
+	//(statements prepared on connections leased to owners other than threads; see statements())
+	private final Map<Connection,StatementCache> statements = new IdentityHashMap<Connection,StatementCache>();
+	private int opened = 0;
+	private boolean closed = false;
+
+	protected ConnectionPool(int size){
+		if(size <= 0){ throw new IllegalArgumentException("Pool size must be positive: " + size); }
+		this.size = size;
+	}
+
+	/**
+	 * Open a new physical connection to the database
+	 */
+	protected abstract Connection open() throws SQLException;
+
+	public int size(){ return size; }
+
+	/**
+	 * Take a connection for the current thread, blocking if every connection is in use.
+	 */
+	public synchronized Connection lease(){
+		while(true){
+			if(closed){ throw new DatabaseException("Connection pool is closed"); }
+			//(case: an idle connection)
+			if(!idle.isEmpty()){
+				return checkout(idle.removeFirst(), Thread.currentThread());
+			}
+			//(case: room for a new connection)
+			if(opened < size){
+				try {
+					Connection conn = open();
+					opened += 1;
+					return checkout(conn, Thread.currentThread());
+				} catch (SQLException e) {
+					throw new DatabaseException(e);
+				}
+			}
+			//(case: wait)
+			if(!reclaim()){
+				try {
+					wait(RECLAIM_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DatabaseException("Interrupted waiting for a database connection");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take a connection for the given owner, if one is free, without blocking.
+	 * The connection is reclaimed if the owner is garbage collected without releasing it.
+	 * @param owner The owner of the lease
+	 * @return The connection, or null if every connection is in use
+	 */
+	public synchronized Connection tryLease(Object owner){
+		if(closed){ throw new DatabaseException("Connection pool is closed"); }
+		if(idle.isEmpty() && opened >= size){ reclaim(); }
+		if(!idle.isEmpty()){
+			return checkout(idle.removeFirst(), owner);
+		} else if(opened < size){
+			try {
+				Connection conn = open();
+				opened += 1;
+				return checkout(conn, owner);
+			} catch (SQLException e) {
+				throw new DatabaseException(e);
+			}
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * The statement cache kept with a connection, for owners other than threads, which come and go
+	 * more often than the connections they lease.
+	 * @param conn A connection leased from this pool
+	 * @param capacity The size of the cache, if it is created
+	 */
+	public synchronized StatementCache statements(Connection conn, int capacity){
+		StatementCache cache = statements.get(conn);
+		if(cache == null){
+			cache = new StatementCache(conn, capacity);
+			statements.put(conn, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Return a connection to the pool.
+	 */
+	public synchronized void release(Connection conn){
+		if(leased.remove(conn) == null){ return; }
+		if(closed){
+			closeQuietly(conn);
+		} else {
+			reset(conn);
+			idle.addLast(conn);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Replace a connection which has gone bad with a fresh one, keeping the lease.
+	 */
+	public synchronized Connection replace(Connection conn){
+		WeakReference<Object> owner = leased.remove(conn);
+		discard(conn);
+		try {
+			Connection fresh = open();
+			opened += 1;
+			leased.put(fresh, owner == null ? new WeakReference<Object>(Thread.currentThread()) : owner);
+			return fresh;
+		} catch (SQLException e) {
+			notifyAll();
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * Close every connection in the pool, including those still leased.
+	 */
+	public synchronized void close(){
+		closed = true;
+		for(StatementCache cache : statements.values()){ cache.close(); }
+		statements.clear();
+		for(Connection conn : idle){ closeQuietly(conn); }
+		for(Connection conn : leased.keySet()){ closeQuietly(conn); }
+		idle.clear();
+		leased.clear();
+		opened = 0;
+		notifyAll();
+	}
+
+	private Connection checkout(Connection conn, Object owner){
+		leased.put(conn, new WeakReference<Object>(owner));
+		return conn;
+	}
+
+	private boolean reclaim(){
+		boolean reclaimed = false;
+		Iterator<Map.Entry<Connection,WeakReference<Object>>> iter = leased.entrySet().iterator();
+		while(iter.hasNext()){
+			Map.Entry<Connection,WeakReference<Object>> entry = iter.next();
+			Object owner = entry.getValue().get();
+			if(owner == null){
+				//(case: the owner was collected; e.g., an abandoned result, which may have left the connection mid-read)
+				iter.remove();
+				discard(entry.getKey());
+				reclaimed = true;
+			} else if(owner instanceof Thread && !((Thread) owner).isAlive()){
+				iter.remove();
+				reset(entry.getKey());
+				idle.addLast(entry.getKey());
+				reclaimed = true;
+			}
+		}
+		return reclaimed;
+	}
+
+	//(close a connection for good, making room for a fresh one)
+	private void discard(Connection conn){
+		StatementCache cache = statements.remove(conn);
+		if(cache != null){ cache.close(); }
+		closeQuietly(conn);
+		opened -= 1;
+	}
+
+	private static void reset(Connection conn){
+		try {
+			if(!conn.getAutoCommit()){
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) { }
+	}
+
+	private static void closeQuietly(Connection conn){
+		try {
+			conn.close();
+		} catch (SQLException e) { }
+	}
+}
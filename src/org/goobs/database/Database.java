@@ -1,52 +1,73 @@
 package org.goobs.database;
 
-import org.goobs.io.Console;
-import org.goobs.io.TextConsole;
 import org.goobs.util.Decodable;
 import org.goobs.util.MetaClass;
 import org.goobs.util.Pair;
 import org.goobs.util.Utils;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /*
 TODO
   - Unique flag
-  - Fix the hack in ResultSetIterator
  */
 public final class Database implements Decodable{
 	
+	/**
+	 * If true, a table is migrated when its class gains keys (see recoverClassChanged());
+	 * otherwise, using such a class is an error, and the schema is never changed.
+	 */
 	public static boolean FORCEDBUPDATE = false;
 	
 	private static final Pattern PATTERN_CONNINFO 
 		= Pattern.compile(" *([a-zA-Z][a-zA-Z0-9]*)@([a-zA-Z][a-zA-Z0-9]*(\\.[a-zA-Z][a-zA-Z0-9]*)*):([a-zA-Z0-9]+)(<.+)? *");
 
 	private static abstract class PromiseOfStatement {
-		private Connection active = null;
-		private PreparedStatement cached = null;
+		//(one statement per connection; a connection is only used by one thread at a time)
+		private final Map<Connection,PreparedStatement> cached = new ConcurrentHashMap<Connection,PreparedStatement>(4);
 		public PreparedStatement get(Connection conn){
-			if(active != conn){
-				active = conn;
+			PreparedStatement stmt = cached.get(conn);
+			if(stmt == null){
 				try {
-					cached = create(conn);
+					for(Connection c : cached.keySet()){
+						if(c.isClosed()){ cached.remove(c); }
+					}
+					stmt = create(conn);
 				} catch (SQLException e) {
 					throw new DatabaseException(e);
 				}
+				cached.put(conn, stmt);
 			}
-			return cached;
+			return stmt;
 		}
 		
 		protected abstract PreparedStatement create(Connection conn) throws SQLException;
@@ -60,6 +81,22 @@ public final class Database implements Decodable{
 		private Map<Field,PromiseOfStatement> keyDelete;
 		private Field[] fields;
 		private int primaryKeyIndex = -1;
+		//(the 0-indexed column of a SELECT * result holding each field; parallel to fields)
+		private int[] resultIndex;
+		//(batch inserts)
+		private String table;
+		private String insertColumns;
+		private String insertRow;
+		private Column[] parentColumns;
+		private Map<Integer,PromiseOfStatement> onCreateMulti = new ConcurrentHashMap<Integer,PromiseOfStatement>();
+		private PromiseOfStatement onCreateBatch;
+		private Map<String,PromiseOfStatement> inSearch = new ConcurrentHashMap<String,PromiseOfStatement>();
+		//(updates of only some columns, by the columns they set)
+		private ConcurrentMap<BitSet,PromiseOfStatement> onUpdateColumns = new ConcurrentHashMap<BitSet,PromiseOfStatement>();
+		//(compiled accessors; parallel to fields)
+		private Column[] columns;
+		private Column primaryKeyColumn;
+		private String primaryKeyName;
 
 		private DBClassInfo(
 				MetaClass.ClassFactory <E> factory, 
@@ -68,7 +105,10 @@ public final class Database implements Decodable{
 				PromiseOfStatement onUpdate,
 				Map<Field,PromiseOfStatement> keySearch,
 				Map<Field,PromiseOfStatement> keyDelete,
-				Field[] fields){
+				Field[] fields,
+				String table,
+				String insertColumns,
+				String insertRow){
 			//--Set Variables
 			this.factory    = factory;
 			this.primaryKey = primaryKey;
@@ -77,6 +117,11 @@ public final class Database implements Decodable{
 			this.keySearch  = keySearch;
 			this.keyDelete  = keyDelete;
 			this.fields     = fields;
+			this.resultIndex = new int[fields.length];
+			for(int i=0; i<fields.length; i++){ resultIndex[i] = i; }
+			this.table      = table;
+			this.insertColumns = insertColumns;
+			this.insertRow  = insertRow;
 			//--Set Computations
 			if(primaryKey != null){
 				int i=0;
@@ -85,6 +130,145 @@ public final class Database implements Decodable{
 					i += 1;
 				}
 			}
+			this.columns = new Column[fields.length];
+			List<Column> parents = new ArrayList<Column>();
+			for(int i=0; i<fields.length; i++){
+				columns[i] = new Column(fields[i]);
+				if(columns[i].kind == Column.PARENT){ parents.add(columns[i]); }
+			}
+			this.parentColumns = parents.toArray(new Column[parents.size()]);
+			if(primaryKeyIndex >= 0){
+				this.primaryKeyColumn = columns[primaryKeyIndex];
+				this.primaryKeyName = primaryKey.getAnnotation(PrimaryKey.class).name();
+			}
+		}
+	}
+
+	/**
+	 * The accessor plan for a single column of a class.
+	 * Annotations and types are resolved once when the class is registered;
+	 * reading and writing a row then goes through method handles, with no
+	 * reflective lookups or accessibility changes per row.
+	 */
+	private static final class Column {
+		private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+		private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+		private static final int NATIVE       = 0;
+		private static final int PRIMARY      = 1;
+		private static final int PARENT       = 2;
+		private static final int DECODABLE    = 3;
+		private static final int SERIALIZABLE = 4;
+		private static final int CODEC        = 5;
+
+		private final Field field;
+		private final Class<?> type;
+		private final int kind;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		private final MethodHandle parentKey;
+		private final ColumnCodec<Object> codec;
+
+		private Column(Field f){
+			this.field = f;
+			this.type = f.getType();
+			//--Resolve Kind
+			Class<?> stored = f.getType();
+			Key key = f.getAnnotation(Key.class);
+			if(key != null && key.type() != Object.class){ stored = key.type(); }
+			Parent parent = f.getAnnotation(Parent.class);
+			this.codec = Codecs.forField(f, stored);
+			if(f.getAnnotation(PrimaryKey.class) != null){
+				this.kind = PRIMARY;
+			} else if(parent != null){
+				this.kind = PARENT;
+			} else if(codec != null){
+				this.kind = CODEC;
+			} else if(Decodable.class.isAssignableFrom(f.getType())){
+				this.kind = DECODABLE;
+			} else if(nonNative(stored) && !Class.class.isAssignableFrom(stored) && Serializable.class.isAssignableFrom(stored)){
+				this.kind = SERIALIZABLE;
+			} else {
+				this.kind = NATIVE;
+			}
+			//--Compile Accessors
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			boolean accessible = f.isAccessible();
+			try {
+				if(!accessible){ f.setAccessible(true); }
+				this.getter = lookup.unreflectGetter(f).asType(GETTER);
+				this.setter = Modifier.isFinal(f.getModifiers()) ? null : lookup.unreflectSetter(f).asType(SETTER);
+				if(parent != null){
+					Field target = parentField(f.getType(), parent.parentField());
+					boolean targetAccessible = target.isAccessible();
+					if(!targetAccessible){ target.setAccessible(true); }
+					this.parentKey = lookup.unreflectGetter(target).asType(GETTER);
+					if(!targetAccessible){ target.setAccessible(false); }
+				} else {
+					this.parentKey = null;
+				}
+			} catch (IllegalAccessException e) {
+				throw new DatabaseException(e);
+			} finally {
+				if(!accessible){ f.setAccessible(false); }
+			}
+		}
+
+		private static Field parentField(Class<?> clazz, String name){
+			//(by column name)
+			Class<?> c = clazz;
+			while(c != null && c != Object.class){
+				for(Field cand : c.getDeclaredFields()){
+					PrimaryKey pk = cand.getAnnotation(PrimaryKey.class);
+					Key key = cand.getAnnotation(Key.class);
+					if( (pk != null && pk.name().equalsIgnoreCase(name)) || (key != null && key.name().equalsIgnoreCase(name)) ){
+						return cand;
+					}
+				}
+				c = c.getSuperclass();
+			}
+			//(by field name)
+			try {
+				return MetaClass.findField(clazz, name);
+			} catch (NoSuchFieldException e) {
+				throw new DatabaseException("Foreign key references non-existent field (" + clazz + "): " + name);
+			}
+		}
+
+		private Object get(Object instance){
+			try {
+				return (Object) getter.invokeExact(instance);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new DatabaseException("Could not read field " + field + ": " + t.getMessage());
+			}
+		}
+
+		private void set(Object instance, Object value){
+			if(setter == null){ throw new DatabaseException("Trying to set a final field: " + field); }
+			try {
+				setter.invokeExact(instance, value);
+			} catch (ClassCastException e) {
+				throw new DatabaseException("Cannot set " + field + " to " + value + ": " + e.getMessage());
+			} catch (NullPointerException e) {
+				throw new DatabaseException("Cannot set primitive field " + field + " to null");
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new DatabaseException("Could not set field " + field + ": " + t.getMessage());
+			}
+		}
+
+		private int parentKey(Object target){
+			try {
+				Object key = (Object) parentKey.invokeExact(target);
+				return ((Number) key).intValue();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new DatabaseException("Could not read foreign key of " + target + ": " + t.getMessage());
+			}
 		}
 	}
 	
@@ -92,28 +276,131 @@ public final class Database implements Decodable{
 	private static final int MYSQL	=	1;
 	private static final int SQLITE	=	2;
 	private static final int PSQL	=	3;
+	private static final int H2	=	4;
 	
 	private static final String POSTGRES_DRIVER = "org.postgresql.Driver"; //Postgres driver
 	private static final String MYSQL_DRIVER = "com.mysql.jdbc.Driver"; // MySQL MM JDBC driver
 	private static final String SQLITE_DRIVER = "org.sqlite.JDBC";
+	private static final String H2_DRIVER = "org.h2.Driver";
+	//(unquoted names keep their case, and match quoted names in any case, as in sqlite)
+	private static final String H2_OPTIONS = ";DATABASE_TO_UPPER=FALSE;CASE_INSENSITIVE_IDENTIFIERS=TRUE";
 	
 	private int type;
 	private String server, username, password, schema;
 	private File sqlite;
-	private Connection conn = null;
-	private Statement lastStatement;
-	private boolean inTransaction = false;
+	//(an H2 database: "mem:" and its name, or "file:" and its path)
+	private String h2;
 	private boolean verbose = false;
 
-	private Map<Class,Map<Pair<Field,Object>,WeakReference<Object>>> internerMap;
+	private ConcurrentMap<Class,ConcurrentMap<Pair<Field,Object>,WeakReference<Object>>> internerMap;
+
+	//(connections)
+	private static final long VALIDATE_INTERVAL = 30 * 1000;
+	private static final int VALIDATE_TIMEOUT = 5;
+	private int poolSize = 1;
+	private Session shared = null;
+	private ConnectionPool pool = null;
+	private ThreadLocal<Session> sessions = new ThreadLocal<Session>();
+	//(batches belong to threads, even when they share a session)
+	private ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	//(batch size for bulkLoad(); Postgres writes each chunk with a single COPY)
+	public static final int BULK_BATCH_SIZE = 10000;
+	//(chunks at least this large are COPYed into Postgres, rather than inserted)
+	private static final int COPY_MIN_ROWS = 64;
+	//(at most this many values in an IN list; SQLite allows 999 parameters)
+	private static final int IN_CHUNK_SIZE = 512;
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+	//(prepared statements kept per connection for ad-hoc queries)
+	private static final int STATEMENT_CACHE_SIZE = 64;
+
+	/**
+	 * Which foreign key links to load along with a set of objects
+	 */
+	public static enum Fetch { NONE, PARENTS, CHILDREN, ALL }
+
+	private ObjectCache cache = null;
+	//(only write the columns of an object which changed since it was read or written)
+	private boolean trackChanges = true;
+	//(at most this many partial update statements per class; other column sets update every column)
+	private static final int MAX_UPDATE_STATEMENTS = 64;
+	//(lookup counts and times, for the index advisor; null unless enabled)
+	private QueryStatistics queryStats = null;
+	//(the columns each recent where clause looks up, least recently used first; clauses may embed literal values)
+	private static final int WHERE_COLUMNS_CACHE_SIZE = 1024;
+	private final Map<String,String[]> whereColumns = Collections.synchronizedMap(new LinkedHashMap<String,String[]>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,String[]> eldest) {
+			return size() > WHERE_COLUMNS_CACHE_SIZE;
+		}
+	});
+	//(a column set must be looked up this often before an index is advised on it)
+	public static final int DEFAULT_ADVISE_MIN_QUERIES = 100;
+	private static final int ADVISED_INDEX_ID = 99;
+	//(observers of every statement run, and the slow query log; see addQueryListener())
+	private final List<QueryListener> listeners = new CopyOnWriteArrayList<QueryListener>();
+	private volatile long slowQueryNanos = -1;
+
+	/**
+	 * The state attached to one connection: the connection itself, and the transaction
+	 * and statements open on it. There is a single shared session unless the database
+	 * is pooled, in which case each thread gets its own.
+	 */
+	private static final class Session {
+		private Connection conn;
+		private Statement lastStatement = null;
+		private boolean inTransaction = false;
+		private long validated;
+		private StatementCache statements = null;
+		private Session(Connection conn){
+			this.conn = conn;
+			this.validated = System.currentTimeMillis();
+		}
+		private StatementCache statements(){
+			if(statements == null || statements.connection() != conn){
+				//(case: first use, or the connection was replaced)
+				statements = new StatementCache(conn, STATEMENT_CACHE_SIZE);
+			}
+			return statements;
+		}
+	}
+
+	private static final class Batch {
+		private final int size;
+		private final Map<DBClassInfo,List<DatabaseObject>> queue = new LinkedHashMap<DBClassInfo,List<DatabaseObject>>();
+		private final Set<DatabaseObject> queued = Collections.newSetFromMap(new IdentityHashMap<DatabaseObject,Boolean>());
+		private int count = 0;
+		private Batch(int size){ this.size = size; }
+	}
 	
-	private final class ResultSetIterator<E extends DatabaseObject> implements Iterator<E>{
+	private final class ResultSetIterator<E extends DatabaseObject> implements Iterator<E>, Closeable{
 		private ResultSet rs;
 		private MetaClass.ClassFactory<E> fact;
 		private DBClassInfo<E> info;
 		private Class<E> classType;
 		private E next = null;
 		private boolean done = false;
+		//(when pooled, the result set lives on the creating thread's connection)
+		private final Thread owner = pool == null ? null : Thread.currentThread();
+		//(resources owned by this iterator, if any)
+		private Statement stmt = null;
+		//(a connection leased from the pool for this iterator alone, and the token the lease is held by)
+		private ConnectionPool leasedFrom = null;
+		private Connection leased = null;
+		private Object lease = null;
+		//(the connection whose transaction this iterator's cursor lives in, if the cursor opened it)
+		private Connection cursorConn = null;
+		//(the cache to give the statement back to, if it was borrowed)
+		private StatementCache statements = null;
+		private String sql = null;
+		//(the query, and the time spent in the database so far; operation is null unless observed)
+		private QueryEvent.Operation operation = null;
+		private Object statement = null;
+		private long nanos = 0;
+		private int rows = 0;
 		
 		private ResultSetIterator(ResultSet rs, Class<E> classType){
 			this.rs = rs;
@@ -121,35 +408,93 @@ public final class Database implements Decodable{
 			this.info = ensureClassInfo(classType);
 			this.fact = new MetaClass(classType).createFactory(new Class[0]);
 		}
+
+		private ResultSetIterator(ResultSet rs, Class<E> classType, PreparedStatement stmt, StatementCache statements, String sql){
+			this(rs, classType);
+			this.stmt = stmt;
+			this.statements = statements;
+			this.sql = sql;
+		}
+
+		/**
+		 * Report the query to the query listeners once this iterator is exhausted or closed
+		 * @param start The time at which the query was executed
+		 */
+		private ResultSetIterator<E> observe(QueryEvent.Operation operation, Object statement, long start){
+			if(observed()){
+				this.operation = operation;
+				this.statement = statement;
+				this.nanos = System.nanoTime() - start;
+			}
+			return this;
+		}
+
+		/**
+		 * Release the result set (and its statement and connection, if the iterator owns them).
+		 * This happens automatically once the iterator is exhausted. An iterator which is abandoned
+		 * instead gives up its connection once it is garbage collected.
+		 */
+		@Override
+		public void close() {
+			if(done){ return; }
+			done = true;
+			next = null;
+			try {
+				rs.close();
+				if(statements != null){
+					statements.giveBack(sql, (PreparedStatement) stmt);
+				} else if(stmt != null){
+					stmt.close();
+				}
+				if(cursorConn != null){
+					cursorConn.commit();
+					cursorConn.setAutoCommit(true);
+				}
+				if(leased != null){
+					leasedFrom.release(leased);
+					lease = null;
+				}
+			} catch (SQLException e) {
+				throw new DatabaseException(e);
+			}
+			if(operation != null){
+				report(new QueryEvent(operation, classType, info.table, statement, nanos, rows, 0));
+			}
+		}
 		@Override
 		public boolean hasNext() {
 			try {
-        if(done){ return false; }
+				if(done){ return false; }
+				if(owner != null && owner != Thread.currentThread()){
+					throw new DatabaseException("Iterating over a result from a thread other than the one which queried it");
+				}
 				if(next == null){
-					if(rs.next()){
+					long start = operation == null ? 0 : System.nanoTime();
+					boolean more = rs.next();
+					if(operation != null){ nanos += System.nanoTime() - start; }
+					if(more){
+						rows += 1;
 						//(create a class)
 						E obj = null;
 						if(info.primaryKey != null){
-							obj = mkObject(classType,info.primaryKey,castResult(rs, info.primaryKeyIndex, info.primaryKey.getType()),fact);
+							obj = mkObject(classType,info.primaryKey,castResult(rs, info.resultIndex[info.primaryKeyIndex], info.primaryKey.getType()),fact);
 						} else {
 							obj = fact.createInstance();
 						}
+						populateObject(info, rs, obj);
 						if(!obj.isInDatabase()){
 							obj.init(Database.this, classType, null, DatabaseObject.FLAG_IN_DB);
 						}
-						populateObject(info, rs, obj);
 						next = obj;
 						return true;
 					}else{
-						rs.close();
-						done = true;
+						close();
 						return false;
 					}
 				}else{
 					return true;
 				}
 			} catch (SQLException e) {
-        if(e.getMessage().equals("This ResultSet is closed.")){ done = true; return false; } //TODO strange hack with Postgres on getObjectsByKey()?
 				throw new DatabaseException(e);
 			}
 		}
@@ -173,6 +518,7 @@ public final class Database implements Decodable{
 		private String fileName;
 		private File file;
 		private String server, username, password, schema;
+		private String h2;
 		private int type;
 		//--Constructors
 		private ConnInfo(){}
@@ -206,6 +552,32 @@ public final class Database implements Decodable{
 			rtn.type = SQLITE;
 			return rtn;
 		}
+		/**
+		 * An H2 database held in memory, which lives until the JVM exits.
+		 * H2 runs in process, and lets concurrent connections read and write at once,
+		 * so a pooled database does not serialize on a single connection as SQLite does.
+		 * The H2 driver (version 1.4.200 or later) must be on the classpath.
+		 * @param name The name of the database; databases opened with the same name in the same JVM share their tables
+		 */
+		public static ConnInfo h2Memory(String name){
+			ConnInfo rtn = new ConnInfo();
+			rtn.h2 = "mem:" + name;
+			rtn.type = H2;
+			return rtn;
+		}
+		/**
+		 * An H2 database persisted to a file. H2 stores its tables in an append-only log,
+		 * which it compacts in the background. The file is created if it does not exist.
+		 * @param file The path of the database; H2 adds its own extension to this
+		 * @see ConnInfo#h2Memory(String)
+		 */
+		public static ConnInfo h2(File file){
+			ConnInfo rtn = new ConnInfo();
+			rtn.file = file;
+			rtn.h2 = "file:" + file.getAbsolutePath();
+			rtn.type = H2;
+			return rtn;
+		}
 		//--Validate
 		private void validate(){
 			switch(type){
@@ -223,6 +595,10 @@ public final class Database implements Decodable{
 				if(server == null || username == null || password == null || schema == null){
 					throw new DatabaseException("MySql and Postgresql need all of: server, username, password, schema");
 				}
+				break;
+			case H2:
+				if(h2 == null){ throw new DatabaseException("Cannot create H2 DB without a name or file"); }
+				break;
 			}
 		}
 	}
@@ -238,7 +614,37 @@ public final class Database implements Decodable{
 		public Index.Type getType(){ return type; }
 	}
 
+	/**
+	 * An index suggested by the lookups made on a table; see {@link Database#adviseIndices()}
+	 */
+	public static final class IndexAdvice{
+		private final String table;
+		private final String[] fields;
+		private final long queries;
+		private final double millis;
+		private IndexAdvice(String table, String[] fields, long queries, double millis){
+			this.table = table;
+			this.fields = fields;
+			this.queries = queries;
+			this.millis = millis;
+		}
+		public String getTable(){ return table; }
+		public String[] getFields(){ return fields; }
+		/** The number of lookups made on these fields */
+		public long getQueries(){ return queries; }
+		/** The total time spent in these lookups, in milliseconds */
+		public double getMillis(){ return millis; }
+		@Override
+		public String toString(){
+			return table + Arrays.toString(fields) + ": " + queries + " queries in " + ((long) millis) + "ms";
+		}
+	}
+
 
+	/**
+	 * A prepared query. When pooled, a query is bound to the connection
+	 * of the thread which created it.
+	 */
 	public final class Query<E extends DatabaseObject> {
 		public final PreparedStatement statement;
 		public final Class<E> clazz;
@@ -258,8 +664,11 @@ public final class Database implements Decodable{
 
 		public E queryFirst(Object... args){
 			try{
+				long start = System.nanoTime();
 				ResultSet results = prepare(args);
-				if(!results.next()){
+				boolean found = results.next();
+				observe(QueryEvent.Operation.QUERY, clazz, statement, start, found ? 1 : 0, 0);
+				if(!found){
 					return null;
 				}
 				return cachedObject(clazz,results);
@@ -270,7 +679,8 @@ public final class Database implements Decodable{
 
 		public Iterator<E> query(Object... args){
 			try{
-				return new ResultSetIterator<E>(prepare(args), clazz);
+				long start = System.nanoTime();
+				return new ResultSetIterator<E>(prepare(args), clazz).observe(QueryEvent.Operation.QUERY, statement, start);
 			} catch(SQLException e){
 				throw new DatabaseException(e);
 			}
@@ -292,7 +702,8 @@ public final class Database implements Decodable{
 	public Database(ConnInfo info){
 		info.validate();
 		this.type = info.type;
-		this.sqlite = info.file;
+		this.sqlite = info.type == SQLITE ? info.file : null;
+		this.h2 = info.h2;
 		this.server = info.server;
 		this.username = info.username;
 		this.password = info.password;
@@ -304,46 +715,174 @@ public final class Database implements Decodable{
 	 */
 	
 	public boolean isConnected(){
-		return conn != null;
+		return shared != null || pool != null;
 	}
 
 	public Database setVerbose(boolean verbose){
 		this.verbose = verbose;
 		return this;
 	}
+
+	/**
+	 * Use a pool of connections rather than a single connection.
+	 * Each thread using the database leases its own connection (and with it its own
+	 * transactions, batches and statement cache), so that worker threads do not serialize
+	 * on one connection. A thread holds its connection until it calls {@link Database#release()},
+	 * or until it dies.
+	 * SQLite does not cope with concurrent connections to one file (the bundled driver fails
+	 * rather than waits on a locked database), so for SQLite the pool holds a single connection,
+	 * which threads take turns leasing.
+	 * Iterators returned by a pooled database read from the connection of the thread which
+	 * created them, and must be read by that thread only.
+	 * This must be called before connect().
+	 * @param size The number of connections to open at most
+	 * @return This database
+	 */
+	public Database setPoolSize(int size){
+		if(isConnected()){ throw new DatabaseException("Cannot change pool size of a connected database"); }
+		if(size <= 0){ throw new IllegalArgumentException("Pool size must be positive: " + size); }
+		this.poolSize = size;
+		return this;
+	}
+
+	public boolean isPooled(){
+		return poolSize > 1;
+	}
+
+	/**
+	 * Set how many rows are fetched at a time when iterating over query results
+	 * (getObjects, getObjectsWhere and getObjectsByKey). Results are streamed from
+	 * a cursor, so memory use is bounded by the fetch size rather than the size of the result.
+	 * On MySQL and Postgres, a cursor needs a connection of its own, so results are only streamed
+	 * when the database is pooled (and a connection is free); otherwise they are read into memory.
+	 * @param fetchSize The number of rows to fetch at a time, or 0 to read each result into memory at once
+	 * @return This database
+	 */
+	public Database setFetchSize(int fetchSize){
+		if(fetchSize < 0){ throw new IllegalArgumentException("Fetch size must be non-negative: " + fetchSize); }
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * Keep recently fetched objects in an identity map keyed by class and primary key,
+	 * so that getObjectById() (and getObjectByKey() on the primary key) need not go to
+	 * the database. Entries are evicted least recently used first, and may be reclaimed
+	 * under memory pressure. Objects are invalidated when deleted through this database;
+	 * changes made to the database by other means are not seen while an object is cached.
+	 * @param size The number of objects to cache, or 0 to disable the cache
+	 * @return This database
+	 */
+	public Database setCacheSize(int size){
+		if(size < 0){ throw new IllegalArgumentException("Cache size must be non-negative: " + size); }
+		this.cache = size == 0 ? null : new ObjectCache(size);
+		return this;
+	}
+
+	public void clearCache(){
+		if(cache != null){ cache.clear(); }
+	}
+
+	public int getCacheSize(){ return cache == null ? 0 : cache.size(); }
+	public long getCacheHits(){ return cache == null ? 0 : cache.hits(); }
+	public long getCacheMisses(){ return cache == null ? 0 : cache.misses(); }
+	public long getCacheEvictions(){ return cache == null ? 0 : cache.evictions(); }
+
+	/**
+	 * Keep a fingerprint of each column of an object when it is read or updated, so that
+	 * flushing it again only writes the columns which have changed since, and flushing
+	 * an unchanged object writes nothing. This is on by default.
+	 * Note that rows changed by other means (e.g., raw SQL) are not overwritten by flushing
+	 * an unchanged object; see {@link DatabaseObject#markDirty()}.
+	 * @param enabled Whether to track changes; if not, every flush writes every column
+	 * @return This database
+	 */
+	public Database setChangeTracking(boolean enabled){
+		this.trackChanges = enabled;
+		return this;
+	}
+
+	/**
+	 * Record how often, and for how long, each table is searched on each set of columns,
+	 * by getObjectsWhere(), getFirstObjectWhere(), getObjectByKey() and getObjectsByKey().
+	 * The recorded statistics drive {@link Database#adviseIndices()}.
+	 * @param enabled Whether to record statistics; disabling them discards those recorded
+	 * @return This database
+	 */
+	public Database setQueryStatistics(boolean enabled){
+		this.queryStats = enabled ? (queryStats == null ? new QueryStatistics() : queryStats) : null;
+		return this;
+	}
+
+	/**
+	 * Report every statement this database runs which reads or writes objects, or which is given as raw SQL,
+	 * to a listener; for instance, a {@link QueryMetrics}. Statements creating tables and indices are not reported.
+	 * @param listener The listener to add
+	 * @return This database
+	 */
+	public Database addQueryListener(QueryListener listener){
+		if(listener == null){ throw new IllegalArgumentException("Null query listener"); }
+		listeners.add(listener);
+		return this;
+	}
+
+	public Database removeQueryListener(QueryListener listener){
+		listeners.remove(listener);
+		return this;
+	}
+
+	/**
+	 * Log every statement which takes at least the given time to standard error,
+	 * along with its class, operation, and the rows it read and wrote.
+	 * The statements reported are those which would be reported to a {@link QueryListener}.
+	 * @param millis The threshold, in milliseconds, or a negative number to disable the log
+	 * @return This database
+	 */
+	public Database setSlowQueryThreshold(long millis){
+		this.slowQueryNanos = millis < 0 ? -1 : millis * 1000000L;
+		return this;
+	}
 	
 	/**
 	 * Connect to a database, as specified in the constructor.
-	 * This can either be a MYSQL or SQLITE database.
+	 * This can be a MYSQL, PSQL, SQLITE or H2 database.
 	 * @return True if the connection was successful, else False.
 	 */
 	public Database connect() {
-		internerMap = new HashMap<Class,Map<Pair<Field,Object>,WeakReference<Object>>>();
+		internerMap = new ConcurrentHashMap<Class,ConcurrentMap<Pair<Field,Object>,WeakReference<Object>>>();
 		try {
-			String url = null;
 			switch(type){
 			case MYSQL:
-				//(MySQL)
 				Class.forName(MYSQL_DRIVER);	//initalize
-				url = "jdbc:mysql://" + server + "/" + schema; // a JDBC url
-				conn = DriverManager.getConnection(url, username, password);
 				break;
 			case PSQL:
-				//(MySQL)
 				Class.forName(POSTGRES_DRIVER);	//initalize
-				url = "jdbc:postgresql://" + server + "/" + schema; // a JDBC url
-				conn = DriverManager.getConnection(url, username, password);
 				break;
 			case SQLITE:
-				//(SqLite)
 				System.setProperty("sqlite.purejava", "true");
 				Class.forName(SQLITE_DRIVER);
-				conn = DriverManager.getConnection("jdbc:sqlite:" + sqlite.getAbsolutePath());
+				break;
+			case H2:
+				Class.forName(H2_DRIVER);
 				break;
 			default:
 				throw new DatabaseException("Invalid database type: " + type);
 			}
-			conn.setAutoCommit(true);
+			sessions = new ThreadLocal<Session>();
+			batches = new ThreadLocal<Batch>();
+			if(poolSize > 1){
+				ConnectionPool candidate = new ConnectionPool(type == SQLITE ? 1 : poolSize){
+					@Override
+					protected Connection open() throws SQLException {
+						return openConnection();
+					}
+				};
+				//(open the first connection eagerly, to fail fast)
+				sessions.set(new Session(candidate.lease()));
+				pool = candidate;
+			} else {
+				shared = new Session(openConnection());
+			}
 		} catch (ClassNotFoundException e) {
 			throw new DatabaseException("Must include class in classpath to use database: " + e.getMessage());
 		} catch (SQLException e) {
@@ -352,22 +891,96 @@ public final class Database implements Decodable{
 		return this;
 	}
 
+	private Connection openConnection() throws SQLException{
+		Connection conn;
+		switch(type){
+		case MYSQL:
+			//(MySQL)
+			conn = DriverManager.getConnection("jdbc:mysql://" + server + "/" + schema, username, password);
+			break;
+		case PSQL:
+			//(Postgres)
+			conn = DriverManager.getConnection("jdbc:postgresql://" + server + "/" + schema, username, password);
+			break;
+		case SQLITE:
+			//(SqLite)
+			conn = DriverManager.getConnection("jdbc:sqlite:" + sqlite.getAbsolutePath());
+			break;
+		case H2:
+			//(H2; an in-memory database is kept open while no connection is)
+			conn = DriverManager.getConnection("jdbc:h2:" + h2 + H2_OPTIONS + (h2.startsWith("mem:") ? ";DB_CLOSE_DELAY=-1" : ""), "sa", "");
+			break;
+		default:
+			throw new DatabaseException("Invalid database type: " + type);
+		}
+		conn.setAutoCommit(true);
+		return conn;
+	}
+
 	public void disconnect(){
+		if(inBatch()){ endBatch(); }
 		internerMap = null;
+		clearCache();
 		DatabaseObject.clearInfo(this);
-		try {
-			conn.close();
-			conn = null;
-		} catch (SQLException e) {
-			throw new DatabaseException(e);
+		if(pool != null){
+			pool.close();
+			pool = null;
+		} else {
+			try {
+				shared.conn.close();
+				shared = null;
+			} catch (SQLException e) {
+				throw new DatabaseException(e);
+			}
+		}
+	}
+
+	/**
+	 * Give the current thread's connection back to the pool.
+	 * This does nothing if the database is not pooled, or if the thread holds no connection.
+	 */
+	public void release(){
+		if(pool == null){ return; }
+		Session session = sessions.get();
+		if(session == null){ return; }
+		if(session.inTransaction){ throw new DatabaseException("Releasing a connection in the middle of a transaction"); }
+		if(batches.get() != null){ endBatch(); }
+		if(session.lastStatement != null){
+			try {
+				session.lastStatement.close();
+			} catch (SQLException e) { }
+		}
+		if(session.statements != null){ session.statements.close(); }
+		sessions.remove();
+		pool.release(session.conn);
+	}
+
+	/**
+	 * The state for the current thread, leasing a connection if the database is pooled
+	 */
+	private Session session(){
+		if(pool == null){
+			if(shared == null){ throw new DatabaseException("Database has not been connected yet"); }
+			return shared;
 		}
+		Session session = sessions.get();
+		if(session == null){
+			session = new Session(pool.lease());
+			sessions.set(session);
+		}
+		return session;
+	}
+
+	private Connection conn(){
+		return session().conn;
 	}
 	
 	public void beginTransaction(){
 		try {
-			if(inTransaction) throw new DatabaseException("Already in a transaction");
-			conn.setAutoCommit(false);
-			inTransaction = true;
+			Session session = session();
+			if(session.inTransaction) throw new DatabaseException("Already in a transaction");
+			session.conn.setAutoCommit(false);
+			session.inTransaction = true;
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
@@ -375,10 +988,11 @@ public final class Database implements Decodable{
 	
 	public void endTransaction(){
 		try {
-			if(!inTransaction) throw new DatabaseException("Ending a non-existent transaction");
-			conn.commit();
-			conn.setAutoCommit(true);
-			inTransaction = false;
+			Session session = session();
+			if(!session.inTransaction) throw new DatabaseException("Ending a non-existent transaction");
+			session.conn.commit();
+			session.conn.setAutoCommit(true);
+			session.inTransaction = false;
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
@@ -386,13 +1000,14 @@ public final class Database implements Decodable{
 
 	public void commit(){
 		try {
-			conn.commit();
+			conn().commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void clear(){
+		clearCache();
 		for(String table : getTableNames()){
 			if(!(type == SQLITE && table.equalsIgnoreCase("SQLITE_SEQUENCE"))){
 				update("DROP TABLE " + table + (type == SQLITE ? "" : " CASCADE;"));
@@ -420,7 +1035,7 @@ public final class Database implements Decodable{
 	 * @return An array of all the table names, or null if an error was encountered.
 	 */
 	public String[] getTableNames() {
-		if (conn == null) {
+		if (!isConnected()) {
 			throw new DatabaseException("Database has not been connected yet");
 		}
 		ensureConnection();
@@ -429,7 +1044,7 @@ public final class Database implements Decodable{
 		case MYSQL:
 			try {
 				// Gets the database metadata
-				DatabaseMetaData dbmd = conn.getMetaData();
+				DatabaseMetaData dbmd = conn().getMetaData();
 				// Specify the type of object; in this case we want tables
 				ResultSet resultSet = dbmd.getTables(null, type == PSQL ?  null : schema, "%", new String[]{"TABLE", "VIEW"});
 				//Return table names
@@ -440,9 +1055,9 @@ public final class Database implements Decodable{
 		case SQLITE:
 			try {
 				String query = "SELECT tbl_name FROM sqlite_master;";
-				if(conn == null) throw new DatabaseException("Querying without an open database connection");
+				if(!isConnected()) throw new DatabaseException("Querying without an open database connection");
 				ensureConnection();
-				Statement stmt = conn.createStatement();
+				Statement stmt = conn().createStatement();
 				stmt.execute(query);
 				ResultSet results = stmt.getResultSet();
 				LinkedList <String> lst = new LinkedList<String>();
@@ -454,6 +1069,19 @@ public final class Database implements Decodable{
 			} catch (SQLException e) {
 				throw new DatabaseException(e);
 			}
+		case H2:
+			try {
+				Statement stmt = conn().createStatement();
+				ResultSet results = stmt.executeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA=CURRENT_SCHEMA;");
+				LinkedList <String> lst = new LinkedList<String>();
+				while(results.next()){
+					lst.add(results.getString(1));
+				}
+				stmt.close();
+				return lst.toArray(new String[lst.size()]);
+			} catch (SQLException e) {
+				throw new DatabaseException(e);
+			}
 		default:
 			throw new DatabaseException("Cannot get tables for database type: " + type);
 		}
@@ -499,6 +1127,7 @@ public final class Database implements Decodable{
 		switch(this.type){
 		case MYSQL:
 		case SQLITE:
+		case H2:
 			break;
 		case PSQL:
 			table = table.toLowerCase();
@@ -509,7 +1138,7 @@ public final class Database implements Decodable{
 		
 		try {
 			ResultSet rsColumns = null;
-			DatabaseMetaData meta = conn.getMetaData();
+			DatabaseMetaData meta = conn().getMetaData();
 			rsColumns = meta.getColumns(null, null, table, null);
 			LinkedList <String> columns = new LinkedList<String>();
 			while (rsColumns.next()) {
@@ -531,6 +1160,7 @@ public final class Database implements Decodable{
 		if(!this.hasTable(clazz)){ return false; }
 		Table ann = MetaClass.findAnnotation(clazz, Table.class);
 		if(ann == null){ throw new IllegalArgumentException("Class " + clazz + " has no !Table annotation"); }
+		if(cache != null){ cache.removeClass(clazz); }
 		update("DROP TABLE " + ann.name() + " CASCADE;");
 		return true;
 	}
@@ -566,18 +1196,7 @@ public final class Database implements Decodable{
 	}
 	
 	public int getTableRowCount(String table, String key){
-		String query = "SELECT COUNT(" + key + ") FROM " + table +";";
-		ResultSet rs = query(query);
-		try {
-			if(!rs.next()){
-				throw new DatabaseException("Could not get row count!");
-			}
-			int rtn = rs.getInt(1);
-			rs.close();
-			return rtn;
-		} catch (SQLException e) {
-			throw new DatabaseException(e);
-		}
+		return queryInt("SELECT COUNT(" + key + ") FROM " + table +";");
 	}
 	
 	public <T extends DatabaseObject> int max(Class<T> table){
@@ -586,18 +1205,7 @@ public final class Database implements Decodable{
 	}
 	
 	public int max(String table, String key){
-		String query = "SELECT " + key + " FROM " + table +" ORDER BY " + key + " DESC LIMIT 1;";
-		ResultSet rs = query(query);
-		try {
-			if(!rs.next()){
-				throw new DatabaseException("Could not get row count!");
-			}
-			int rtn = rs.getInt(1);
-			rs.close();
-			return rtn;
-		} catch (SQLException e) {
-			throw new DatabaseException(e);
-		}
+		return queryInt("SELECT " + key + " FROM " + table +" ORDER BY " + key + " DESC LIMIT 1;");
 	}
 	
 	public <T extends DatabaseObject> int min(Class<T> table){
@@ -606,47 +1214,305 @@ public final class Database implements Decodable{
 	}
 	
 	public int min(String table, String key){
-		String query = "SELECT " + key + " FROM " + table +" ORDER BY " + key + " ASC LIMIT 1;";
-		ResultSet rs = query(query);
+		return queryInt("SELECT " + key + " FROM " + table +" ORDER BY " + key + " ASC LIMIT 1;");
+	}
+
+	/**
+	 * Run a query whose result is a single integer, through the statement cache
+	 */
+	private int queryInt(String query){
+		PreparedStatement stmt = borrow(query);
 		try {
-			if(!rs.next()){
-				throw new DatabaseException("Could not get row count!");
+			if(verbose){ System.out.println(stmt); }
+			long start = System.nanoTime();
+			ResultSet rs = stmt.executeQuery();
+			try {
+				boolean found = rs.next();
+				observe(QueryEvent.Operation.QUERY, null, query, start, 0, 0);
+				if(!found){
+					throw new DatabaseException("Could not get row count!");
+				}
+				return rs.getInt(1);
+			} finally {
+				rs.close();
 			}
-			int rtn = rs.getInt(1);
-			rs.close();
-			return rtn;
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
+		} finally {
+			giveBack(query, stmt);
 		}
 	}
 
+	/**
+	 * Read the indices defined on a table from the database's metadata.
+	 * The primary key is included where the database reports it as an index.
+	 * @param table The name of the table
+	 * @return The indices on the table, with their fields in index order
+	 */
 	public IndexInfo[] getTableIndices(String table){
-		throw new DatabaseException("TODO not yet implemented");
+		ensureConnection();
+		Map<String,TreeMap<Integer,String>> fields = new LinkedHashMap<String,TreeMap<Integer,String>>();
+		Map<String,Index.Type> types = new HashMap<String,Index.Type>();
+		try {
+			if(type == SQLITE){
+				//(case: the sqlite driver does not implement getIndexInfo)
+				sqliteIndices(table, fields, types);
+			} else {
+				DatabaseMetaData meta = conn().getMetaData();
+				ResultSet rs = meta.getIndexInfo(null, null, type == PSQL ? table.toLowerCase() : table, false, true);
+				try {
+					while(rs.next()){
+						String name = rs.getString("INDEX_NAME");
+						String column = rs.getString("COLUMN_NAME");
+						if(name == null || column == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic){ continue; }
+						if(!fields.containsKey(name)){
+							fields.put(name, new TreeMap<Integer,String>());
+							types.put(name, rs.getShort("TYPE") == DatabaseMetaData.tableIndexHashed ? Index.Type.HASH : Index.Type.BTREE);
+						}
+						fields.get(name).put((int) rs.getShort("ORDINAL_POSITION"), column);
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+		IndexInfo[] rtn = new IndexInfo[fields.size()];
+		int i = 0;
+		for(Map.Entry<String,TreeMap<Integer,String>> entry : fields.entrySet()){
+			IndexInfo info = new IndexInfo();
+			info.name = entry.getKey();
+			info.table = table;
+			info.fields = entry.getValue().values().toArray(new String[entry.getValue().size()]);
+			info.type = types.get(entry.getKey());
+			rtn[i++] = info;
+		}
+		return rtn;
+	}
+
+	private void sqliteIndices(String table, Map<String,TreeMap<Integer,String>> fields, Map<String,Index.Type> types) throws SQLException{
+		Statement stmt = conn().createStatement();
+		try {
+			//(note: a pragma with no rows has no result set at all)
+			List<String> names = new ArrayList<String>();
+			if(stmt.execute("PRAGMA index_list(" + table + ");")){
+				ResultSet rs = stmt.getResultSet();
+				while(rs.next()){ names.add(rs.getString("name")); }
+				rs.close();
+			}
+			for(String name : names){
+				TreeMap<Integer,String> columns = new TreeMap<Integer,String>();
+				if(stmt.execute("PRAGMA index_info(" + name + ");")){
+					ResultSet rs = stmt.getResultSet();
+					while(rs.next()){ columns.put(rs.getInt("seqno"), rs.getString("name")); }
+					rs.close();
+				}
+				fields.put(name, columns);
+				types.put(name, Index.Type.BTREE);
+			}
+		} finally {
+			stmt.close();
+		}
 	}
 
 	/*
-	 * OBJECT MAPPING
+	 * INDEX ADVISOR
 	 */
 
-	private String indexQuery(Index.Type type, String table, String fields, int uniqueID){
-		StringBuilder b = new StringBuilder();
-		//--Begin Statement
-		if(type == Index.Type.RTREE){
-			b.append("CREATE SPATIAL INDEX ");
-			throw new DatabaseException("Yeah, RTREE isn't really implemented. I don't think I even know what it does really. Sorry.");
-		}else{
-			b.append("CREATE INDEX ");
+	//(a column compared in a where clause; group 2 is the comparison)
+	private static final Pattern WHERE_COLUMN = Pattern.compile(
+			"\"?([A-Za-z_][A-Za-z0-9_]*)\"?\\s*(<=|>=|<>|!=|=|<|>|\\bIN\\b|\\bIS\\b|\\bLIKE\\b|\\bBETWEEN\\b)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The columns of a table a where clause could use an index on: every column compared for
+	 * equality, in order of appearance, followed by the first column compared by range.
+	 */
+	private <E extends DatabaseObject> String[] whereColumns(DBClassInfo<E> info, String whereClause){
+		String cacheKey = info.table + "\u0000" + whereClause;
+		String[] rtn = whereColumns.get(cacheKey);
+		if(rtn != null){ return rtn; }
+		Map<String,String> known = new HashMap<String,String>();
+		for(Field f : info.fields){ known.put(field2name(f).toLowerCase(), field2name(f)); }
+		LinkedHashSet<String> equal = new LinkedHashSet<String>();
+		String range = null;
+		Matcher m = WHERE_COLUMN.matcher(whereClause == null ? "" : whereClause);
+		while(m.find()){
+			String column = known.get(m.group(1).toLowerCase());
+			if(column == null){ continue; }
+			String op = m.group(2).toUpperCase();
+			if(op.equals("=") || op.equals("IN") || op.equals("IS")){
+				equal.add(column);
+			} else if(!op.equals("<>") && !op.equals("!=") && range == null){
+				range = column;
+			}
 		}
-		//--Create Index
-		b.append(table.toLowerCase()).append("_").append(fields.replaceAll(",","_")).append("_").append(uniqueID);
-		if(this.type == MYSQL){
-			b.append(" USING ").append(type.name())
-				.append(" ON ").append(table).append("(").append(fields).append(");");
-		}else if(this.type == SQLITE){
-			b.append(" ON ").append(table).append("(").append(fields).append(");");
-		}else{ //psql syntax
-			b.append(" ON ").append(table)
-				.append(" USING ").append(type.name())
+		if(range != null && !equal.contains(range)){ equal.add(range); }
+		rtn = equal.toArray(new String[equal.size()]);
+		whereColumns.put(cacheKey, rtn);
+		return rtn;
+	}
+
+	private boolean observed(){
+		return slowQueryNanos >= 0 || !listeners.isEmpty();
+	}
+
+	/**
+	 * Report a completed statement to the query listeners and the slow query log, if there are any
+	 * @param type The class read or written; null for raw SQL
+	 * @param statement The statement, or its SQL
+	 * @param start The time at which the statement was executed
+	 */
+	private void observe(QueryEvent.Operation operation, Class<? extends DatabaseObject> type, Object statement,
+			long start, int rowsRead, int rowsWritten){
+		if(!observed()){ return; }
+		long elapsed = System.nanoTime() - start;
+		report(new QueryEvent(operation, type, type == null ? null : getTableName(type), statement, elapsed, rowsRead, rowsWritten));
+	}
+
+	private void report(QueryEvent event){
+		long slow = slowQueryNanos;
+		if(slow >= 0 && event.getNanos() >= slow){ System.err.println("SLOW QUERY: " + event); }
+		for(QueryListener listener : listeners){ listener.onQuery(event); }
+	}
+
+	private <E extends DatabaseObject> void recordQuery(Class<E> classType, String whereClause, long start){
+		QueryStatistics stats = this.queryStats;
+		if(stats == null){ return; }
+		long elapsed = System.nanoTime() - start;
+		DBClassInfo<E> info = ensureClassInfo(classType);
+		String[] columns = whereColumns(info, whereClause);
+		if(columns.length > 0){ stats.record(info.table, info.primaryKeyName, columns, elapsed); }
+	}
+
+	private <E extends DatabaseObject> void recordKeyQuery(Class<E> classType, String key, long start){
+		QueryStatistics stats = this.queryStats;
+		if(stats == null){ return; }
+		DBClassInfo<E> info = ensureClassInfo(classType);
+		stats.record(info.table, info.primaryKeyName, new String[]{ key }, System.nanoTime() - start);
+	}
+
+	/**
+	 * Suggest the indices worth creating, from the lookups recorded since
+	 * {@link Database#setQueryStatistics(boolean)} was enabled.
+	 * A column set is suggested if it was looked up at least minQueries times, and
+	 * no existing index (nor the primary key) begins with its columns.
+	 * @param minQueries The number of lookups a column set needs to be worth an index
+	 * @return The suggested indices, most total lookup time first
+	 */
+	public List<IndexAdvice> adviseIndices(int minQueries){
+		QueryStatistics stats = this.queryStats;
+		if(stats == null){ throw new DatabaseException("Query statistics are not being recorded (call setQueryStatistics(true))"); }
+		List<IndexAdvice> rtn = new ArrayList<IndexAdvice>();
+		Map<String,IndexInfo[]> indices = new HashMap<String,IndexInfo[]>();
+		for(QueryStatistics.Entry entry : stats.snapshot()){
+			if(entry.count < minQueries){ continue; }
+			//(covered by the primary key)
+			if(entry.primaryKey != null && entry.primaryKey.equalsIgnoreCase(entry.columns[0])){ continue; }
+			//(covered by an existing index)
+			IndexInfo[] existing = indices.get(entry.table);
+			if(existing == null){
+				existing = getTableIndices(entry.table);
+				indices.put(entry.table, existing);
+			}
+			boolean covered = false;
+			for(IndexInfo index : existing){
+				if(index.fields.length < entry.columns.length){ continue; }
+				boolean prefix = true;
+				for(int i=0; i<entry.columns.length; i++){
+					if(!index.fields[i].equalsIgnoreCase(entry.columns[i])){ prefix = false; break; }
+				}
+				if(prefix){ covered = true; break; }
+			}
+			if(!covered){
+				rtn.add(new IndexAdvice(entry.table, entry.columns, entry.count, entry.nanos / 1e6));
+			}
+		}
+		return rtn;
+	}
+
+	public List<IndexAdvice> adviseIndices(){
+		return adviseIndices(DEFAULT_ADVISE_MIN_QUERIES);
+	}
+
+	/**
+	 * Create every index suggested by {@link Database#adviseIndices(int)}, as BTREE indices.
+	 * Each index is named after its table and fields, with a suffix chosen to not clash
+	 * with any index already on the table.
+	 * @param minQueries The number of lookups a column set needs to be worth an index
+	 * @return The indices created
+	 */
+	public List<IndexAdvice> ensureAdvisedIndices(int minQueries){
+		List<IndexAdvice> advice = adviseIndices(minQueries);
+		Map<String,Set<String>> names = new HashMap<String,Set<String>>();
+		for(IndexAdvice index : advice){
+			StringBuilder fields = new StringBuilder();
+			for(String field : index.fields){
+				if(fields.length() > 0){ fields.append(","); }
+				fields.append(field);
+			}
+			//(find an unused name)
+			Set<String> taken = names.get(index.table);
+			if(taken == null){
+				taken = new HashSet<String>();
+				for(IndexInfo existing : getTableIndices(index.table)){ taken.add(existing.name.toLowerCase()); }
+				names.put(index.table, taken);
+			}
+			int id = ADVISED_INDEX_ID;
+			while(taken.contains(indexName(index.table, fields.toString(), id).toLowerCase())){ id += 1; }
+			taken.add(indexName(index.table, fields.toString(), id).toLowerCase());
+			update(indexQuery(Index.Type.BTREE, index.table, fields.toString(), id));
+		}
+		return advice;
+	}
+
+	public List<IndexAdvice> ensureAdvisedIndices(){
+		return ensureAdvisedIndices(DEFAULT_ADVISE_MIN_QUERIES);
+	}
+
+	/*
+	 * OBJECT MAPPING
+	 */
+
+	/**
+	 * The name of a column, as it should appear in a CREATE statement.
+	 * SQLite and H2 column names are quoted, so that keys such as 'index' do not clash with keywords;
+	 * other databases are left unquoted, so that they keep folding names to a single case.
+	 */
+	private String columnName(String name){
+		return this.type == SQLITE || this.type == H2 ? "\"" + name + "\"" : name;
+	}
+
+	private static String indexName(String table, String fields, int uniqueID){
+		return table.toLowerCase() + "_" + fields.replaceAll(",","_") + "_" + uniqueID;
+	}
+
+	private String indexQuery(Index.Type type, String table, String fields, int uniqueID){
+		StringBuilder b = new StringBuilder();
+		//--Begin Statement
+		if(type == Index.Type.RTREE){
+			b.append("CREATE SPATIAL INDEX ");
+			throw new DatabaseException("Yeah, RTREE isn't really implemented. I don't think I even know what it does really. Sorry.");
+		}else{
+			b.append("CREATE INDEX ");
+		}
+		//--Create Index
+		b.append(indexName(table, fields, uniqueID));
+		if(this.type == MYSQL){
+			b.append(" USING ").append(type.name())
+				.append(" ON ").append(table).append("(").append(fields).append(");");
+		}else if(this.type == SQLITE || this.type == H2){
+			b.append(" ON ").append(table).append("(");
+			String[] columns = fields.split(",");
+			for(int i=0; i<columns.length; i++){
+				if(i > 0){ b.append(","); }
+				b.append(columnName(columns[i].trim()));
+			}
+			b.append(");");
+		}else{ //psql syntax
+			b.append(" ON ").append(table)
+				.append(" USING ").append(type.name())
 				.append(" (").append(fields).append(");");
 		}
 		return b.toString();
@@ -672,8 +1538,9 @@ public final class Database implements Decodable{
 			Key key = f.getAnnotation(Key.class);
 			//(error checks)
 			if(key == null) throw new DatabaseException("An index can only be created on a normal key: " + f);
-			if((nonNative(f.getType()) && !Class.class.isAssignableFrom(f.getType()) && Serializable.class.isAssignableFrom(f.getType()))){
-				if(key.length() <= 0) throw new DatabaseException("An indexed key of type Serializable must have a [positive] length defined: " + f);
+			if((nonNative(f.getType()) && !Class.class.isAssignableFrom(f.getType()) && Serializable.class.isAssignableFrom(f.getType()))
+					|| Codecs.forField(f, key.type() != Object.class ? key.type() : f.getType()) != null){
+				if(key.length() <= 0) throw new DatabaseException("An indexed binary key (Serializable, or with a codec) must have a [positive] length defined: " + f);
 			}
 			//(save fields)
 			fields = key.name();
@@ -727,10 +1594,12 @@ public final class Database implements Decodable{
 					seenPrimaryKey = true;
 					fieldName = ((PrimaryKey) ann).name();
 					query.append("\n\t");
-					query.append( fieldName ).append(" ");
+					query.append( columnName(fieldName) ).append(" ");
 					if( !typeJava2sql(type,f, -1).equalsIgnoreCase("INTEGER") ){ throw new DatabaseException("Primary key must be an integer"); }
 					if(type == SQLITE){
 						query.append(" INTEGER PRIMARY KEY");	//I hate sqlite
+					}else if(type == H2){
+						query.append(" INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY");
 					}else{
 						query.append(" SERIAL PRIMARY KEY");
 					}
@@ -740,7 +1609,7 @@ public final class Database implements Decodable{
 					if(printComma) query.append(",");
 					fieldName = ((Parent) ann).localField();
 					query.append("\n\t");
-					query.append( fieldName ).append(" ");
+					query.append( columnName(fieldName) ).append(" ");
 					query.append(typeJava2sql(type,f, -1));
 					foreignKeys.add(f);
 					entered = true;
@@ -753,7 +1622,7 @@ public final class Database implements Decodable{
 					if(printComma) query.append(",");
 					fieldName = ((Key) ann).name();
 					query.append("\n\t");
-					query.append( fieldName ).append(" ");
+					query.append( columnName(fieldName) ).append(" ");
 					query.append(typeJava2sql(type,f, ((Key) ann).length(), ((Key) ann).type()));
 					//(r-tree index requires not null)
 					if(f.getAnnotation(Index.class) != null 
@@ -835,45 +1704,46 @@ public final class Database implements Decodable{
 		return rtn;
 	}
 
-	private void cacheObject(Object instance, Field field, Object fieldValue){
-		Class<?> clazz = instance.getClass();
-		Pair<Field, Object> key = Pair.make(field, fieldValue);
-		Map<Pair<Field, Object>, WeakReference<Object>> interner = internerMap.get(clazz);
-		//(get map)
+	private ConcurrentMap<Pair<Field,Object>,WeakReference<Object>> interner(Class<?> clazz){
+		ConcurrentMap<Pair<Field, Object>, WeakReference<Object>> interner = internerMap.get(clazz);
 		if(interner == null){
-			interner = new HashMap<Pair<Field, Object>, WeakReference<Object>>();
-			internerMap.put(clazz,interner);
-		}
-		//(get reference)
-		WeakReference<Object> ref = interner.get(key);
-		if(ref == null || ref.get() == null){
-			ref = new WeakReference<Object>(instance);
-			interner.put(key,ref);
-		} else {
-			throw new IllegalArgumentException("Caching an object which is already in the cache: " + instance);
+			interner = new ConcurrentHashMap<Pair<Field, Object>, WeakReference<Object>>();
+			ConcurrentMap<Pair<Field, Object>, WeakReference<Object>> race = internerMap.putIfAbsent(clazz, interner);
+			if(race != null){ interner = race; }
 		}
+		return interner;
 	}
 
-	@SuppressWarnings({"unchecked"})
-	private synchronized <E extends DatabaseObject> E mkObject(Class<E> classType, Field f, Object value, MetaClass.ClassFactory fact){
-		Map<Pair<Field, Object>, WeakReference<Object>> interner = internerMap.get(classType);
-		if(interner == null){
-			interner = new HashMap<Pair<Field, Object>, WeakReference<Object>>();
-			internerMap.put(classType,interner);
+	private void cacheObject(Object instance, Field field, Object fieldValue){
+		ConcurrentMap<Pair<Field, Object>, WeakReference<Object>> interner = interner(instance.getClass());
+		Pair<Field, Object> key = Pair.make(field, fieldValue);
+		WeakReference<Object> ref = new WeakReference<Object>(instance);
+		while(true){
+			WeakReference<Object> existing = interner.putIfAbsent(key, ref);
+			if(existing == null){ return; }
+			if(existing.get() != null){
+				throw new IllegalArgumentException("Caching an object which is already in the cache: " + instance);
+			}
+			//(case: stale reference)
+			if(interner.replace(key, existing, ref)){ return; }
 		}
+	}
 
+	@SuppressWarnings({"unchecked"})
+	private <E extends DatabaseObject> E mkObject(Class<E> classType, Field f, Object value, MetaClass.ClassFactory fact){
+		ConcurrentMap<Pair<Field, Object>, WeakReference<Object>> interner = interner(classType);
 		Pair<Field,Object> key = Pair.make(f, value);
-		WeakReference<Object> rtn = interner.get(key);
-		Object toSet = null;
-		if(rtn != null){ toSet = rtn.get(); }
-		if(toSet == null){
-			toSet = fact.createInstance();
-			if(rtn != null && rtn.get() == null){ interner.remove(key); }
-			rtn = new WeakReference<Object>(toSet);
-			interner.put(key, rtn);
+		while(true){
+			WeakReference<Object> ref = interner.get(key);
+			Object cached = ref == null ? null : ref.get();
+			if(cached != null){ return (E) cached; }
+			//(create; only one thread wins the key)
+			Object toSet = fact.createInstance();
+			WeakReference<Object> fresh = new WeakReference<Object>(toSet);
+			if(ref == null ? interner.putIfAbsent(key, fresh) == null : interner.replace(key, ref, fresh)){
+				return (E) toSet;
+			}
 		}
-		return (E) toSet;
-
 	}
 
 	@SuppressWarnings({"unchecked"})
@@ -886,7 +1756,7 @@ public final class Database implements Decodable{
 			rtn = (E) new MetaClass(classType).createInstance();
 		} else {
 			//(case: object might be in the cache)
-			Object pk = castResult(rs, info.primaryKeyIndex, info.primaryKey.getType());
+			Object pk = castResult(rs, info.resultIndex[info.primaryKeyIndex], info.primaryKey.getType());
 			rtn = mkObject(classType, info.primaryKey, pk, new MetaClass(classType).createFactory());
 		}
 		//--Process Object
@@ -894,6 +1764,9 @@ public final class Database implements Decodable{
 			populateObject(info, rs, rtn);
 			rtn.init(this, classType, null, DatabaseObject.FLAG_IN_DB);
 		}
+		if(cache != null && info.primaryKey != null){
+			cache.put(classType, info.primaryKeyColumn.get(rtn), rtn);
+		}
 		//--Return
 		return rtn;
 	}
@@ -911,28 +1784,46 @@ public final class Database implements Decodable{
 	}
 
 	public <E extends DatabaseObject> int deleteObjectsWhere(Class<E> classType, String whereClause) {
-    if(!this.hasTable(classType)){ return 0; }
-		//--Prepare query
-		StringBuilder query = new StringBuilder();
-		Table table = MetaClass.findAnnotation(classType, Table.class);
-		if(table == null){ throw new DatabaseException("Class extends database object but does not define @table annotation: " + classType); }
-		query.append("DELETE FROM ").append(table.name());
-		if(whereClause != null && !whereClause.trim().equals("")){ 
-			query.append(" WHERE ").append(whereClause); 
+		return deleteObjectsWhere(classType, whereClause, new Object[0]);
+	}
+
+	/**
+	 * Delete the objects matching a parameterized where clause.
+	 * @param classType The type of object to delete
+	 * @param whereClause The where clause, with a '?' in place of each argument (e.g., "rid=? AND key=?")
+	 * @param args The values of the arguments, in order
+	 * @return The number of rows deleted
+	 */
+	public <E extends DatabaseObject> int deleteObjectsWhere(Class<E> classType, String whereClause, Object... args) {
+		if(!this.hasTable(classType)){ return 0; }
+		String query = whereQuery("DELETE FROM ", classType, whereClause);
+		if(cache != null){ cache.removeClass(classType); }
+		PreparedStatement stmt = borrow(query);
+		try {
+			bind(stmt, args);
+			if(verbose){ System.out.println(stmt); }
+			long start = System.nanoTime();
+			int deleted = stmt.executeUpdate();
+			observe(QueryEvent.Operation.DELETE, classType, stmt, start, 0, deleted);
+			return deleted;
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		} finally {
+			giveBack(query, stmt);
 		}
-		query.append(";");
-		//--Query
-		return update(query.toString());
-    }
+	}
 
   public <E extends DatabaseObject> boolean deleteObjectById(Class<E> clazz, int id){
 		ensureConnection();
 		try {
 			DBClassInfo<E> info = ensureClassInfo(clazz);
 			if(info.primaryKey == null){ throw new DatabaseException("Cannot delete object by id: object has no primary key: " + clazz); }
-			PreparedStatement psmt = info.keyDelete.get(info.primaryKey).get(conn);
+			PreparedStatement psmt = info.keyDelete.get(info.primaryKey).get(conn());
 			psmt.setInt(1, id);
+			long start = System.nanoTime();
 			int updated = psmt.executeUpdate();
+			observe(QueryEvent.Operation.DELETE, clazz, psmt, start, 0, updated);
+			if(cache != null){ cache.remove(clazz, id); }
 			return updated == 1;
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
@@ -956,62 +1847,258 @@ public final class Database implements Decodable{
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public <E extends DatabaseObject> Iterator <E> getObjects(Class<E> classType, String query){
-		ResultSet results = query(query);
-		lastStatement = null; //don't auto-clean
-		return new ResultSetIterator(results, classType);
+		return stream(QueryEvent.Operation.QUERY, classType, query);
 	}
 	
 	public <E extends DatabaseObject> E getFirstObjectWhere(Class<E> classType, String whereClause){
-		//--Prepare query
-		StringBuilder query = new StringBuilder();
-		Table table = MetaClass.findAnnotation(classType, Table.class);
-		if(table == null){ throw new DatabaseException("Class extends database object but does not define @table annotation: " + classType); }
-		query.append("SELECT * FROM ").append(table.name());
-		if(whereClause != null && !whereClause.trim().equals("")){ 
-			query.append(" WHERE ").append(whereClause); 
-		}
-		query.append(";");
-		//--Query
-		ResultSet results = query(query.toString());
+		return getFirstObjectWhere(classType, whereClause, new Object[0]);
+	}
+
+	/**
+	 * Get the first object matching a parameterized where clause.
+	 * @param classType The type of object to get
+	 * @param whereClause The where clause, with a '?' in place of each argument (e.g., "rid=? AND key=?")
+	 * @param args The values of the arguments, in order
+	 * @return The first matching object, or null if there are none
+	 */
+	public <E extends DatabaseObject> E getFirstObjectWhere(Class<E> classType, String whereClause, Object... args){
+		String query = whereQuery("SELECT * FROM ", classType, whereClause);
+		PreparedStatement stmt = borrow(query);
 		try {
-			//--Get Result
-			if(!results.next()){
-				return null;
+			bind(stmt, args);
+			if(verbose){ System.out.println(stmt); }
+			long start = System.nanoTime();
+			ResultSet results = stmt.executeQuery();
+			recordQuery(classType, whereClause, start);
+			try {
+				//--Get Result
+				boolean found = results.next();
+				observe(QueryEvent.Operation.QUERY, classType, stmt, start, found ? 1 : 0, 0);
+				if(!found){
+					return null;
+				}
+				//(get the result)
+				return cachedObject(classType, results);
+			} finally {
+				results.close();
 			}
-			//(get the result)
-			return cachedObject(classType, results);
 		} catch (SQLException e) {
-			return null;
+			throw new DatabaseException(e);
+		} finally {
+			giveBack(query, stmt);
 		}
 	}
 	
 	public <E extends DatabaseObject> Iterator <E> getObjectsWhere(Class<E> classType, String whereClause){
-		//--Prepare query
-		StringBuilder query = new StringBuilder();
-		Table table = MetaClass.findAnnotation(classType, Table.class);
-		if(table == null){ throw new DatabaseException("Class extends database object but does not define @table annotation: " + classType); }
-		query.append("SELECT * FROM ").append(table.name());
-		if(whereClause != null && !whereClause.trim().equals("")){ 
-			query.append(" WHERE ").append(whereClause); 
+		return getObjectsWhere(classType, whereClause, new Object[0]);
+	}
+
+	/**
+	 * Get the objects matching a parameterized where clause.
+	 * The statement is prepared once per connection, and reused for later calls with the same clause.
+	 * @param classType The type of object to get
+	 * @param whereClause The where clause, with a '?' in place of each argument (e.g., "rid=? AND key=?")
+	 * @param args The values of the arguments, in order
+	 * @return An iterator over the matching objects
+	 */
+	public <E extends DatabaseObject> Iterator <E> getObjectsWhere(Class<E> classType, String whereClause, Object... args){
+		long start = System.nanoTime();
+		Iterator<E> rtn = stream(QueryEvent.Operation.QUERY, classType, whereQuery("SELECT * FROM ", classType, whereClause), args);
+		recordQuery(classType, whereClause, start);
+		return rtn;
+	}
+
+	/**
+	 * Get the objects matching a where clause, along with one level of their foreign key links.
+	 * @see Database#fetchLinks(List, Fetch)
+	 */
+	public <E extends DatabaseObject> List<E> getObjectsWhere(Class<E> classType, String whereClause, Fetch fetch){
+		List<E> rtn = new ArrayList<E>();
+		Iterator<E> iter = getObjectsWhere(classType, whereClause);
+		while(iter.hasNext()){ rtn.add(iter.next()); }
+		return fetchLinks(rtn, fetch);
+	}
+
+	/**
+	 * Get the objects matching a parameterized where clause, reading the table with a number of threads at once.
+	 * The table is split into ranges of primary key, between min() and max(), and each range is queried
+	 * on a pooled connection by a background thread, which also builds its objects.
+	 * The objects are returned in no particular order. A thread is used for each connection in the pool but one,
+	 * and reads on a connection it leases from the pool (and gives back when it is done);
+	 * if that is a single thread (as for SQLite, whose pool holds a single connection) this is the same as getObjectsWhere().
+	 * An iterator which is not read to the end should be closed with {@link Database#close(Iterator)}.
+	 * @param classType The type of object to get
+	 * @param whereClause The where clause, with a '?' in place of each argument; null or empty for every object
+	 * @param partitions The number of ranges to split the table into
+	 * @param args The values of the arguments, in order
+	 * @return An iterator over the matching objects
+	 */
+	public <E extends DatabaseObject> Iterator<E> parallelObjectsWhere(Class<E> classType, String whereClause, int partitions, Object... args){
+		if(partitions <= 0){ throw new IllegalArgumentException("Number of partitions must be positive: " + partitions); }
+		ensureConnection();
+		DBClassInfo<E> info = ensureClassInfo(classType);
+		if(info.primaryKey == null){ throw new DatabaseException("Cannot partition a class without a primary key: " + classType); }
+		//(threads available; one connection is left for the consumer, which may query as it reads)
+		ConnectionPool pool = this.pool;
+		int threads = Math.min(pool == null ? 0 : pool.size() - 1, partitions);
+		if(threads <= 1){
+			return getObjectsWhere(classType, whereClause, args);
 		}
-		query.append(";");
-		//--Query
-		ResultSet results = query(query.toString());
-		lastStatement = null; //don't auto-clean
-		return new ResultSetIterator<E>(results, classType);
+		//(ranges)
+		if(getTableRowCount(classType) == 0){ return Collections.<E>emptyList().iterator(); }
+		long min = min(classType);
+		long max = ((long) max(classType)) + 1;
+		Queue<int[]> ranges = new ConcurrentLinkedQueue<int[]>();
+		for(int i=0; i<partitions; i++){
+			int start = (int) (min + (max - min) * i / partitions);
+			int stop = (int) (min + (max - min) * (i + 1) / partitions);
+			if(start < stop){ ranges.add(new int[]{ start, stop }); }
+		}
+		//(query)
+		String pk = "\"" + info.primaryKeyName + "\"";
+		String rangeClause = (whereClause == null || whereClause.trim().equals("") ? "" : "(" + whereClause + ") AND ")
+				+ pk + ">=? AND " + pk + "<?";
+		Object[] rangeArgs = Arrays.copyOf(args, args.length + 2);
+		return new ParallelScan<E>(classType, rangeClause, rangeArgs, ranges, Math.min(threads, ranges.size()));
 	}
-	
+
+	/**
+	 * The results of parallelObjectsWhere(): worker threads each take ranges of primary key until
+	 * none are left, and queue the objects they read for the consuming thread.
+	 */
+	private final class ParallelScan<E extends DatabaseObject> implements Iterator<E>, Closeable {
+		private final Object END = new Object();
+		//(rows read ahead of the consumer, across every worker)
+		private static final int CAPACITY = 4 * DEFAULT_FETCH_SIZE;
+
+		private final BlockingQueue<Object> results = new ArrayBlockingQueue<Object>(CAPACITY);
+		private final List<Thread> workers = new ArrayList<Thread>();
+		private volatile boolean closed = false;
+		private volatile Throwable failure = null;
+		private int running;
+		private Object next = null;
+
+		private ParallelScan(final Class<E> classType, final String rangeClause, final Object[] rangeArgs,
+												 final Queue<int[]> ranges, int threads){
+			this.running = threads;
+			final String query = whereQuery("SELECT * FROM ", classType, rangeClause);
+			for(int i=0; i<threads; i++){
+				Thread worker = new Thread("Database-scan-" + classType.getSimpleName() + "-" + i){
+					@Override
+					public void run(){
+						Object[] args = rangeArgs.clone();
+						try {
+							int[] range;
+							while(!closed && (range = ranges.poll()) != null){
+								args[args.length - 2] = range[0];
+								args[args.length - 1] = range[1];
+								//(the worker's connection is used for nothing else while the range is read)
+								long start = System.nanoTime();
+								Iterator<E> iter = stream(QueryEvent.Operation.QUERY, classType, true, query, args);
+								recordQuery(classType, rangeClause, start);
+								try {
+									while(!closed && iter.hasNext()){ results.put(iter.next()); }
+								} finally {
+									Database.close(iter);
+								}
+							}
+						} catch (InterruptedException e) {
+							//(closed by the consumer)
+						} catch (Throwable e) {
+							failure = e;
+						} finally {
+							try {
+								release();
+							} catch (RuntimeException ignored) { }
+							//(there is room for the marker once the consumer reads, or closes)
+							while(!closed){
+								try {
+									results.put(END);
+									break;
+								} catch (InterruptedException ignored) { }
+							}
+						}
+					}
+				};
+				worker.setDaemon(true);
+				workers.add(worker);
+			}
+			for(Thread worker : workers){ worker.start(); }
+		}
+
+		@Override
+		public boolean hasNext(){
+			while(next == null && running > 0 && !closed){
+				Object result;
+				try {
+					result = results.take();
+				} catch (InterruptedException e) {
+					close();
+					Thread.currentThread().interrupt();
+					throw new DatabaseException("Interrupted while waiting for results");
+				}
+				if(result == END){
+					running -= 1;
+					if(failure != null){
+						Throwable cause = failure;
+						close();
+						if(cause instanceof DatabaseException){ throw (DatabaseException) cause; }
+						throw new DatabaseException(cause);
+					}
+				} else {
+					next = result;
+				}
+			}
+			if(next == null){ close(); }
+			return next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public E next(){
+			if(!hasNext()){ throw new NoSuchElementException(); }
+			E rtn = (E) next;
+			next = null;
+			return rtn;
+		}
+
+		@Override
+		public void remove(){
+			throw new UnsupportedOperationException("Cannot remove from a parallel scan");
+		}
+
+		/**
+		 * Stop the workers, and discard whatever they have read. This happens automatically once the
+		 * iterator is exhausted.
+		 */
+		@Override
+		public void close(){
+			if(closed){ return; }
+			closed = true;
+			next = null;
+			for(Thread worker : workers){ worker.interrupt(); }
+			results.clear();
+		}
+	}
+
 	
 	public <E extends DatabaseObject> E getObjectById(Class<E> clazz, int id){
+		if(cache != null){
+			E cached = cache.get(clazz, id);
+			if(cached != null){ return cached; }
+		}
 		ensureConnection();
 		try {
 			DBClassInfo<E> info = ensureClassInfo(clazz);
 			if(info.primaryKey == null){ throw new DatabaseException("Cannot get object by id: object has no primary key: " + clazz); }
-			PreparedStatement psmt = info.keySearch.get(info.primaryKey).get(conn);
+			PreparedStatement psmt = info.keySearch.get(info.primaryKey).get(conn());
 			psmt.setInt(1, id);
 			if(verbose){ System.out.println(psmt); }
+			long start = System.nanoTime();
 			ResultSet results = psmt.executeQuery();
-			if(!results.next()){
+			boolean found = results.next();
+			observe(QueryEvent.Operation.KEY_SEARCH, clazz, psmt, start, found ? 1 : 0, 0);
+			if(!found){
 				return null;
 			}
 			return cachedObject(clazz,results);
@@ -1021,15 +2108,22 @@ public final class Database implements Decodable{
 	}
 
 	public <E extends DatabaseObject> E getObjectById(Class<E> clazz, BigInteger id){
+		if(cache != null){
+			E cached = cache.get(clazz, id);
+			if(cached != null){ return cached; }
+		}
 		ensureConnection();
 		try {
 			DBClassInfo<E> info = ensureClassInfo(clazz);
 			if(info.primaryKey == null){ throw new DatabaseException("Cannot get object by id: object has no primary key: " + clazz); }
-			PreparedStatement psmt = info.keySearch.get(info.primaryKey).get(conn);
+			PreparedStatement psmt = info.keySearch.get(info.primaryKey).get(conn());
 			if(verbose){ System.out.println(psmt); }
 			psmt.setBigDecimal(1, new BigDecimal(id));
+			long start = System.nanoTime();
 			ResultSet results = psmt.executeQuery();
-			if(!results.next()){
+			boolean found = results.next();
+			observe(QueryEvent.Operation.KEY_SEARCH, clazz, psmt, start, found ? 1 : 0, 0);
+			if(!found){
 				return null;
 			}
 			return cachedObject(clazz,results);
@@ -1042,20 +2136,24 @@ public final class Database implements Decodable{
 		ensureConnection();
 		try {
 			DBClassInfo<E> info = ensureClassInfo(clazz);
+			if(cache != null && info.primaryKey != null && info.primaryKeyName.equalsIgnoreCase(key)){
+				E cached = cache.get(clazz, value);
+				if(cached != null){ return cached; }
+			}
 			PreparedStatement psmt = null;
 			//(get key)
 			for(Field x : info.keySearch.keySet()){
 				if(x.getAnnotation(Key.class) != null){
 					if(x.getAnnotation(Key.class).name().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
+						psmt = info.keySearch.get(x).get(conn());
 					}
 				}else if(x.getAnnotation(PrimaryKey.class) != null){
 					if(x.getAnnotation(PrimaryKey.class).name().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
+						psmt = info.keySearch.get(x).get(conn());
 					}
 				}else if(x.getAnnotation(Parent.class) != null){
 					if(x.getAnnotation(Parent.class).localField().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
+						psmt = info.keySearch.get(x).get(conn());
 					}
 				}
 			}
@@ -1067,9 +2165,14 @@ public final class Database implements Decodable{
 			if(value instanceof Class){ value = ((Class) value).getName(); }
 			psmt.setObject(1, value);
 			if(verbose){ System.out.println(psmt); }
+			long start = System.nanoTime();
 			psmt.execute();
+			recordKeyQuery(clazz, key, start);
 			ResultSet results = psmt.getResultSet();
-			if(!results.next()){
+			boolean found = results.next();
+			boolean primary = info.primaryKey != null && info.primaryKeyName.equalsIgnoreCase(key);
+			observe(primary ? QueryEvent.Operation.KEY_SEARCH : QueryEvent.Operation.FIND_BY_INDEX, clazz, psmt, start, found ? 1 : 0, 0);
+			if(!found){
 				return null;
 			}
 			return cachedObject(clazz, results);
@@ -1079,48 +2182,455 @@ public final class Database implements Decodable{
 	}
 	
 	public <E extends DatabaseObject> Iterator<E> getObjectsByKey(Class<E> clazz, String key, Object value){
-		ensureConnection();
-		try {
-			DBClassInfo<E> info = ensureClassInfo(clazz);
-			PreparedStatement psmt = null;
-			//(get key)
-			for(Field x : info.keySearch.keySet()){
-				if(x.getAnnotation(Key.class) != null){
-					if(x.getAnnotation(Key.class).name().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
-					}
-				}else if(x.getAnnotation(PrimaryKey.class) != null){
-					if(x.getAnnotation(PrimaryKey.class).name().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
-					}
-				}else if(x.getAnnotation(Parent.class) != null){
-					if(x.getAnnotation(Parent.class).localField().equalsIgnoreCase(key)){
-						psmt = info.keySearch.get(x).get(conn);
-					}
+		DBClassInfo<E> info = ensureClassInfo(clazz);
+		//(get key)
+		Field keyField = null;
+		for(Field x : info.keySearch.keySet()){
+			if(field2name(x).equalsIgnoreCase(key)){ keyField = x; }
+		}
+		//(error check)
+		if(keyField == null){ 
+			throw new DatabaseException("No such indexed key: " + key + "; in class: " + clazz); 
+		}
+		//(get objects; the iterator gets its own statement, as it may outlive the next lookup)
+		if(value instanceof Class){ value = ((Class) value).getName(); }
+		long start = System.nanoTime();
+		QueryEvent.Operation operation = keyField.equals(info.primaryKey) ? QueryEvent.Operation.KEY_SEARCH : QueryEvent.Operation.FIND_BY_INDEX;
+		Iterator<E> rtn = stream(operation, clazz, "SELECT * FROM " + info.table + " WHERE \"" + field2name(keyField) + "\"=?", value);
+		recordKeyQuery(clazz, field2name(keyField), start);
+		return rtn;
+	}
+	
+	/**
+	 * Get a number of objects by their primary key, in as few queries as possible.
+	 * @param clazz The type of object to get
+	 * @param ids The primary keys to look up
+	 * @return A list parallel to ids, with null wherever no object has the given id
+	 */
+	public <E extends DatabaseObject> List<E> getObjectsByIds(Class<E> clazz, Collection<? extends Number> ids){
+		DBClassInfo<E> info = ensureClassInfo(clazz);
+		if(info.primaryKey == null){ throw new DatabaseException("Cannot get object by id: object has no primary key: " + clazz); }
+		//(check cache)
+		List<E> rtn = new ArrayList<E>(ids.size());
+		List<Number> toFetch = new ArrayList<Number>();
+		for(Number id : ids){
+			E cached = cache == null ? null : cache.get(clazz, id);
+			rtn.add(cached);
+			if(cached == null){ toFetch.add(id); }
+		}
+		if(toFetch.isEmpty()){ return rtn; }
+		//(fetch the rest)
+		Map<Object,List<E>> fetched = fetchIn(clazz, info, info.primaryKeyIndex, toFetch);
+		int i = 0;
+		for(Number id : ids){
+			if(rtn.get(i) == null){
+				List<E> match = fetched.get(inKey(id));
+				if(match != null){ rtn.set(i, match.get(0)); }
+			}
+			i += 1;
+		}
+		return rtn;
+	}
+
+	public <E extends DatabaseObject> List<E> getObjectsByIds(Class<E> clazz, int... ids){
+		List<Integer> lst = new ArrayList<Integer>(ids.length);
+		for(int id : ids){ lst.add(id); }
+		return getObjectsByIds(clazz, lst);
+	}
+
+	/**
+	 * Get every object whose key takes any of a number of values, in as few queries as possible.
+	 * @param clazz The type of object to get
+	 * @param key The name of the key (column) to search on
+	 * @param values The values of the key to look up
+	 * @return A map from each requested value (in the order requested) to the objects with that value,
+	 * in the order the database returned them. Values with no matching objects map to an empty list.
+	 */
+	public <E extends DatabaseObject> Map<Object,List<E>> getObjectsByKeys(Class<E> clazz, String key, Collection<?> values){
+		DBClassInfo<E> info = ensureClassInfo(clazz);
+		//(get key)
+		int column = -1;
+		for(int i=0; i<info.fields.length; i++){
+			if(field2name(info.fields[i]).equalsIgnoreCase(key)){ column = i; }
+		}
+		if(column < 0){ throw new DatabaseException("No such key: " + key + "; in class: " + clazz); }
+		//(fetch)
+		Map<Object,List<E>> fetched = fetchIn(clazz, info, column, values);
+		Map<Object,List<E>> rtn = new LinkedHashMap<Object,List<E>>();
+		for(Object value : values){
+			List<E> match = fetched.get(inKey(value));
+			rtn.put(value, match == null ? new ArrayList<E>() : match);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Fill in the @Parent and/or @Child fields of a number of objects, as refreshLinks() would.
+	 * Rather than a query per link per object, each link is resolved for every object at once
+	 * with a join on the objects' primary keys; the resulting objects are wired together in memory.
+	 * Only one level of links is loaded.
+	 * @param objects The objects whose links to fill; these must have integer primary keys
+	 * @param fetch Which links to fill
+	 * @return The objects passed in
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends DatabaseObject> List<E> fetchLinks(List<E> objects, Fetch fetch){
+		if(fetch == Fetch.NONE || objects.isEmpty()){ return objects; }
+		//--Group By Class
+		Map<Class<?>,List<DatabaseObject>> byClass = new LinkedHashMap<Class<?>,List<DatabaseObject>>();
+		for(E obj : objects){
+			if(obj == null){ continue; }
+			List<DatabaseObject> lst = byClass.get(obj.getClass());
+			if(lst == null){
+				lst = new ArrayList<DatabaseObject>();
+				byClass.put(obj.getClass(), lst);
+			}
+			lst.add(obj);
+		}
+		//--Fetch Links
+		for(List<DatabaseObject> group : byClass.values()){
+			DBClassInfo<DatabaseObject> info = ensureClassInfo((Class<DatabaseObject>) group.get(0).getClass());
+			if(info.primaryKey == null){
+				throw new DatabaseException("Primary key does not exist for class (needed for foreign key lookup): " + group.get(0).getClass());
+			}
+			//(index by primary key)
+			Map<Object,DatabaseObject> byKey = new LinkedHashMap<Object,DatabaseObject>();
+			for(DatabaseObject obj : group){ byKey.put(inKey(info.primaryKeyColumn.get(obj)), obj); }
+			List<Object> keys = new ArrayList<Object>(byKey.keySet());
+			//(each link)
+			for(Field f : group.get(0).getDeclaredFields()){
+				Parent parent = f.getAnnotation(Parent.class);
+				Child child = f.getAnnotation(Child.class);
+				if(parent != null && child != null){ throw new DatabaseException("Invalid annotations on field: " + f); }
+				if(parent != null && (fetch == Fetch.PARENTS || fetch == Fetch.ALL)){
+					fetchLink(info, byKey, keys, f, (Class<DatabaseObject>) f.getType(), parent.parentField(), parent.localField(), false);
+				}
+				if(child != null && (fetch == Fetch.CHILDREN || fetch == Fetch.ALL)){
+					Class<?> childClass = f.getType().isArray() ? f.getType().getComponentType() : f.getType();
+					fetchLink(info, byKey, keys, f, (Class<DatabaseObject>) childClass, child.localField(), child.childField(), true);
 				}
 			}
-			//(error check)
-			if(psmt == null){ 
-				throw new DatabaseException("No such indexed key: " + key + "; in class: " + clazz); 
+		}
+		return objects;
+	}
+
+	/**
+	 * Resolve a single link for a group of objects of the same class.
+	 * @param parentCentric If true, the objects are the parents in the relation and toFill is a @Child field;
+	 * otherwise the objects are the children, and toFill is a @Parent field.
+	 */
+	@SuppressWarnings("unchecked")
+	private <E extends DatabaseObject> void fetchLink(DBClassInfo<?> info, Map<Object,DatabaseObject> byKey, List<Object> keys,
+			Field toFill, Class<E> other, String parentKey, String childKey, boolean parentCentric){
+		DBClassInfo<E> otherInfo = ensureClassInfo(other);
+		boolean isArray = toFill.getType().isArray();
+		if(isArray && !parentCentric){ throw new IllegalArgumentException("Object cannot have multiple parents"); }
+		//--Query
+		Map<Object,List<E>> linked = new HashMap<Object,List<E>>();
+		if(hasTable(otherInfo.table)){
+			String parentTable = parentCentric ? info.table : otherInfo.table;
+			String childTable = parentCentric ? otherInfo.table : info.table;
+			String local = parentCentric ? "parent" : "child";
+			String remote = parentCentric ? "child" : "parent";
+			StringBuilder b = new StringBuilder();
+			b.append("SELECT ").append(remote).append(".*, ").append(local).append(".\"").append(info.primaryKeyName).append("\"")
+			.append(" FROM ").append(parentTable).append(" parent, ").append(childTable).append(" child")
+			.append(" WHERE parent.\"").append(parentKey).append("\"=child.\"").append(childKey).append("\"")
+			.append(" AND ").append(local).append(".\"").append(info.primaryKeyName).append("\" IN (");
+			String order = otherInfo.primaryKey == null ? "" : " ORDER BY " + remote + ".\"" + otherInfo.primaryKeyName + "\"";
+			linked = fetchIn(QueryEvent.Operation.FIND_BY_INDEX, other, info, "link:" + toFill.getName(), b.toString(), ")" + order, -1, keys);
+		}
+		//--Wire Objects
+		boolean accessible = toFill.isAccessible();
+		if(!accessible){ toFill.setAccessible(true); }
+		try {
+			for(Map.Entry<Object,DatabaseObject> entry : byKey.entrySet()){
+				DatabaseObject obj = entry.getValue();
+				List<E> match = linked.get(entry.getKey());
+				if(match == null){ match = Collections.emptyList(); }
+				if(parentCentric){
+					for(E term : match){ backLink(otherInfo, obj, term, childKey); }
+				}
+				if(isArray){
+					E[] rtn = (E[]) Array.newInstance(other, match.size());
+					toFill.set(obj, match.toArray(rtn));
+				} else {
+					toFill.set(obj, match.isEmpty() ? null : match.get(0));
+				}
 			}
-			//(get object)
-			psmt.setObject(1, value);
-			if(verbose){ System.out.println(psmt); }
-			psmt.execute();
-			ResultSet results = psmt.getResultSet();
-			return new ResultSetIterator<E>(results,clazz);			
-		} catch (SQLException e) {
+		} catch (IllegalAccessException e) {
 			throw new DatabaseException(e);
+		} finally {
+			if(!accessible){ toFill.setAccessible(false); }
 		}
 	}
-	
-	
-	protected <F extends DatabaseObject> DBClassInfo<F>  createObjectInfo(Class<F> clazz, Class<?>[] constructorParams){
-		//--Overhead
-		//(query)
-		final StringBuilder onCreate = new StringBuilder();
-		final StringBuilder onUpdate = new StringBuilder();
-		//(variables)
+
+	/**
+	 * Point a child's @Parent field back at the parent it was fetched for
+	 */
+	private static void backLink(DBClassInfo<?> childInfo, DatabaseObject parent, DatabaseObject child, String childKey){
+		for(Column column : childInfo.parentColumns){
+			if(column.field.getAnnotation(Parent.class).localField().equals(childKey) && column.type.isInstance(parent)){
+				column.set(child, parent);
+			}
+		}
+	}
+
+	/**
+	 * Run WHERE column IN (...) queries for the given values, IN_CHUNK_SIZE values at a time.
+	 * Each chunk is padded to a power of two, so that only a handful of statements are ever prepared.
+	 * @return The objects found, grouped by their (normalized) value of the column
+	 */
+	private <E extends DatabaseObject> Map<Object,List<E>> fetchIn(Class<E> clazz, DBClassInfo<E> info, int column, Collection<?> values){
+		String name = field2name(info.fields[column]);
+		QueryEvent.Operation operation = column == info.primaryKeyIndex ? QueryEvent.Operation.KEY_SEARCH : QueryEvent.Operation.FIND_BY_INDEX;
+		return fetchIn(operation, clazz, info, name.toLowerCase(),
+				"SELECT * FROM " + info.table + " WHERE \"" + name + "\" IN (", ");", info.resultIndex[column]+1, values);
+	}
+
+	/**
+	 * Run a query ending in an IN (...) list for the given values, IN_CHUNK_SIZE values at a time.
+	 * @param info The class whose statement cache to use
+	 * @param cacheKey A name for the query, unique within info
+	 * @param prefix The query, up to and including the opening parenthesis of the IN list
+	 * @param suffix The remainder of the query, starting with the closing parenthesis
+	 * @param keyColumn The (1-indexed) column of the result holding the value matched; -1 for the last column
+	 * @return The objects found, grouped by their (normalized) value of the key column
+	 */
+	private <E extends DatabaseObject> Map<Object,List<E>> fetchIn(QueryEvent.Operation operation, Class<E> clazz, DBClassInfo<?> info, String cacheKey,
+			String prefix, String suffix, int keyColumn, Collection<?> values){
+		//(deduplicate)
+		Map<Object,Object> distinct = new LinkedHashMap<Object,Object>();
+		for(Object value : values){
+			if(value == null){ continue; }
+			if(!distinct.containsKey(inKey(value))){ distinct.put(inKey(value), value); }
+		}
+		List<Object> toFetch = new ArrayList<Object>(distinct.values());
+		Map<Object,List<E>> rtn = new HashMap<Object,List<E>>();
+		if(toFetch.isEmpty()){ return rtn; }
+		//(query)
+		ensureConnection();
+		try {
+			for(int start=0; start<toFetch.size(); start += IN_CHUNK_SIZE){
+				List<Object> chunk = toFetch.subList(start, Math.min(toFetch.size(), start + IN_CHUNK_SIZE));
+				int size = 1;
+				while(size < chunk.size()){ size *= 2; }
+				size = Math.min(size, IN_CHUNK_SIZE);
+				PreparedStatement stmt = inStatement(info, cacheKey, prefix, suffix, size);
+				for(int i=0; i<size; i++){
+					obj2db(stmt, i+1, chunk.get(Math.min(i, chunk.size()-1)));
+				}
+				if(verbose){ System.out.println(stmt); }
+				//(time the database, but not building objects; only if someone is listening)
+				boolean timed = observed();
+				long nanos = System.nanoTime();
+				ResultSet results = stmt.executeQuery();
+				int key = keyColumn < 0 ? results.getMetaData().getColumnCount() : keyColumn;
+				nanos = System.nanoTime() - nanos;
+				int rows = 0;
+				while(true){
+					long fetch = timed ? System.nanoTime() : 0;
+					boolean more = results.next();
+					if(timed){ nanos += System.nanoTime() - fetch; }
+					if(!more){ break; }
+					rows += 1;
+					Object value = inKey(results.getObject(key));
+					E obj = cachedObject(clazz, results);
+					List<E> lst = rtn.get(value);
+					if(lst == null){
+						lst = new ArrayList<E>(1);
+						rtn.put(value, lst);
+					}
+					lst.add(obj);
+				}
+				results.close();
+				if(timed){
+					report(new QueryEvent(operation, clazz, getTableName(clazz), stmt, nanos, rows, 0));
+				}
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+		return rtn;
+	}
+
+	private PreparedStatement inStatement(final DBClassInfo<?> info, final String name, final String prefix, final String suffix, final int size){
+		String cacheKey = name + "/" + size;
+		PromiseOfStatement promise = info.inSearch.get(cacheKey);
+		if(promise == null){
+			final StringBuilder q = new StringBuilder();
+			q.append(prefix);
+			for(int i=0; i<size; i++){
+				if(i > 0){ q.append(", "); }
+				q.append("?");
+			}
+			q.append(suffix);
+			promise = new PromiseOfStatement(){
+				@Override
+				protected PreparedStatement create(Connection conn) throws SQLException {
+					return conn.prepareStatement(q.toString());
+				}
+			};
+			info.inSearch.put(cacheKey, promise);
+		}
+		return promise.get(conn());
+	}
+
+	/**
+	 * A canonical form of a key value, so that values sent to and read from the database compare equal
+	 */
+	private static Object inKey(Object value){
+		if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte || value instanceof BigInteger){
+			return ((Number) value).longValue();
+		} else if(value instanceof BigDecimal && ((BigDecimal) value).scale() <= 0){
+			return ((BigDecimal) value).longValue();
+		} else if(value instanceof Character){
+			return (long) ((Character) value).charValue();
+		} else if(value instanceof Class){
+			return ((Class) value).getName();
+		} else if(value == null){
+			return null;
+		} else {
+			return value.toString();
+		}
+	}
+
+	/**
+	 * Run a query whose results are read lazily, fetchSize rows at a time, from a forward-only cursor.
+	 * The returned iterator borrows its statement from the statement cache, and gives it back once
+	 * it is exhausted or closed.
+	 * On MySQL, a streamed result ties up its connection until it is read to the end, and on Postgres a cursor
+	 * only exists within a transaction; so outside of a transaction, the result is read from a connection leased
+	 * from the pool for it alone (on Postgres, in a transaction of its own, ended when the result is closed).
+	 * If there is no pool or no connection is free, the result is read into memory at once instead; as it is
+	 * on MySQL within a transaction. On Postgres within a transaction, the cursor is opened in that transaction.
+	 */
+	private <E extends DatabaseObject> Iterator<E> stream(QueryEvent.Operation operation, Class<E> classType, String query, Object... args){
+		return stream(operation, classType, false, query, args);
+	}
+
+	/**
+	 * As stream(), but if exclusive, the caller promises to run nothing else on the session's connection
+	 * until the result is closed, so that it may be streamed on that connection rather than a second one.
+	 */
+	private <E extends DatabaseObject> Iterator<E> stream(QueryEvent.Operation operation, Class<E> classType, boolean exclusive, String query, Object... args){
+		ensureConnection();
+		Session session = session();
+		ConnectionPool pool = this.pool;
+		StatementCache statements = session.statements();
+		Object lease = null;
+		Connection leased = null;
+		Connection cursorConn = null;
+		PreparedStatement stmt = null;
+		try {
+			int fetch = fetchSize;
+			boolean needsConnection = (type == MYSQL || (type == PSQL && !session.inTransaction)) && !exclusive;
+			if(fetch > 0 && needsConnection){
+				//(a connection of its own)
+				if(pool != null && !session.inTransaction){
+					lease = new Object();
+					leased = pool.tryLease(lease);
+				}
+				if(leased == null){
+					fetch = 0;
+				} else {
+					statements = pool.statements(leased, STATEMENT_CACHE_SIZE);
+				}
+			}
+			if(fetch > 0 && type == PSQL && !session.inTransaction){
+				//(a transaction for the cursor)
+				cursorConn = leased != null ? leased : session.conn;
+				cursorConn.setAutoCommit(false);
+			}
+			stmt = statements.borrow(query);
+			stmt.setFetchSize(type == MYSQL && fetch > 0 ? Integer.MIN_VALUE : fetch);
+			bind(stmt, args);
+			if(verbose){ System.out.println(stmt); }
+			long start = System.nanoTime();
+			ResultSet results = stmt.executeQuery();
+			ResultSetIterator<E> rtn = new ResultSetIterator<E>(results, classType, stmt, statements, query);
+			if(leased != null){
+				rtn.leasedFrom = pool;
+				rtn.leased = leased;
+				rtn.lease = lease;
+			}
+			rtn.cursorConn = cursorConn;
+			return rtn.observe(operation, stmt, start);
+		} catch (SQLException e) {
+			if(stmt != null){ statements.giveBack(query, stmt); }
+			if(cursorConn != null){
+				rollbackQuietly(cursorConn);
+				try {
+					cursorConn.setAutoCommit(true);
+				} catch (SQLException ignored) { }
+			}
+			if(leased != null){ pool.release(leased); }
+			throw new DatabaseException(e);
+		}
+	}
+
+	private static String whereQuery(String head, Class<?> classType, String whereClause){
+		StringBuilder query = new StringBuilder();
+		Table table = MetaClass.findAnnotation(classType, Table.class);
+		if(table == null){ throw new DatabaseException("Class extends database object but does not define @table annotation: " + classType); }
+		query.append(head).append(table.name());
+		if(whereClause != null && !whereClause.trim().equals("")){ 
+			query.append(" WHERE ").append(whereClause); 
+		}
+		query.append(";");
+		return query.toString();
+	}
+
+	/**
+	 * Take a prepared statement for the given SQL from the current connection's statement cache.
+	 * It must be given back with giveBack() once its results have been read.
+	 */
+	private PreparedStatement borrow(String query){
+		ensureConnection();
+		try {
+			return session().statements().borrow(query);
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	private void giveBack(String query, PreparedStatement stmt){
+		session().statements().giveBack(query, stmt);
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] args) throws SQLException{
+		for(int i=0; i<args.length; i++){
+			obj2db(stmt, i+1, args[i]);
+		}
+	}
+
+	/**
+	 * The number of ad-hoc queries on the current thread's connection served by an already prepared statement
+	 */
+	public long getStatementCacheHits(){ return session().statements().hits(); }
+	public long getStatementCacheMisses(){ return session().statements().misses(); }
+
+	/**
+	 * Release an iterator returned by this database before it is exhausted.
+	 * Iterators which have been read to the end are closed already.
+	 * @param iter The iterator to close
+	 */
+	public static void close(Iterator<?> iter){
+		if(iter instanceof Closeable){
+			try {
+				((Closeable) iter).close();
+			} catch (IOException e) {
+				throw new DatabaseException(e);
+			}
+		}
+	}
+	
+	protected <F extends DatabaseObject> DBClassInfo<F>  createObjectInfo(Class<F> clazz, Class<?>[] constructorParams){
+		//--Overhead
+		//(query)
+		final StringBuilder onCreate = new StringBuilder();
+		final StringBuilder onUpdate = new StringBuilder();
+		//(variables)
 		HashMap<String,Field> keys = new HashMap <String,Field> ();
 		List<String> foreignKeys = new LinkedList<String>();
 		Field primaryKey = null; PrimaryKey pKey = null;
@@ -1184,21 +2694,33 @@ public final class Database implements Decodable{
 			if(!hasTable(table) && !ensureTable(clazz)){ throw new DatabaseException("Could not create table " + table); }
 			
 			//--Sort Fields
-			//(variables)
-			String[] names = new String[keys.size()];
-			Field[] fields = new Field[keys.size()];
+			//(add columns for keys new to the class)
 			String[] registeredFields = getTableColumns(table);
-			if(registeredFields.length != names.length){
-				return recoverClassChanged(clazz,constructorParams,keys);
+			List<String> missing = new ArrayList<String>();
+			for(String str : keys.keySet()){
+				if(Utils.indexOf(registeredFields, str.toLowerCase()) < 0){ missing.add(str); }
 			}
-			//(keys)
-			int i=0;
+			if(!missing.isEmpty()){
+				recoverClassChanged(clazz, table, keys, missing);
+				registeredFields = getTableColumns(table);
+			}
+			//(keys, in column order; columns the class no longer has are left alone)
+			TreeMap<Integer,String> byColumn = new TreeMap<Integer,String>();
 			for(String str : keys.keySet()){
 				int index = Utils.indexOf(registeredFields, str.toLowerCase());
 				if(index < 0){ throw new DatabaseException("Key " + str + " in class " + clazz + " does not exist in the database"); }
-				if(names[index] != null){ throw new DatabaseException("Duplicate definition of key: " + str + " in class: " + clazz); }
-				names[index] = str;
-				fields[index] = keys.get(str);
+				if(byColumn.containsKey(index)){ throw new DatabaseException("Duplicate definition of key: " + str + " in class: " + clazz); }
+				byColumn.put(index, str);
+			}
+			String[] names = new String[keys.size()];
+			Field[] fields = new Field[keys.size()];
+			int[] resultIndex = new int[keys.size()];
+			int i=0;
+			for(Map.Entry<Integer,String> entry : byColumn.entrySet()){
+				names[i] = entry.getValue();
+				fields[i] = keys.get(entry.getValue());
+				resultIndex[i] = entry.getKey();
+				i += 1;
 			}
 
 			//--Create Indices
@@ -1226,23 +2748,26 @@ public final class Database implements Decodable{
 			}
 
 			//--On Create Query
-			onCreate.append("INSERT INTO ").append(table).append(" (");
 			//(keys)
+			StringBuilder insertColumns = new StringBuilder();
 			boolean first = true;
 			for(i=0; i<names.length; i++){
 				if(pKey == null || !names[i].equals(pKey.name())){
-					if(!first) onCreate.append(", ");
-					onCreate.append("\"").append(names[i]).append("\"");
+					if(!first) insertColumns.append(", ");
+					insertColumns.append("\"").append(names[i]).append("\"");
 					first = false;
 				}
 			}
-			onCreate.append(") VALUES (");
 			//(values)
+			StringBuilder insertRow = new StringBuilder();
+			insertRow.append("(");
 			for(i=0; i<(pKey==null ? fields.length : fields.length-1); i++){
-				if(i > 0) onCreate.append(", ");
-				onCreate.append("?");
+				if(i > 0) insertRow.append(", ");
+				insertRow.append("?");
 			}
-			onCreate.append(");");
+			insertRow.append(")");
+			onCreate.append("INSERT INTO ").append(table).append(" (").append(insertColumns)
+					.append(") VALUES ").append(insertRow).append(";");
 			
 			//--On Update Query
 			onUpdate.append("UPDATE ").append(table).append(" SET ");
@@ -1266,6 +2791,18 @@ public final class Database implements Decodable{
 						}
 					}
 				};
+			//(JDBC batches get a statement of their own: the sqlite driver leaves a statement
+			// sized for the last batch, and unusable for single inserts)
+			PromiseOfStatement stmtCreateBatch = new PromiseOfStatement(){
+					@Override
+					protected PreparedStatement create(Connection conn) throws SQLException {
+						if(type == SQLITE){
+							return conn.prepareStatement(onCreate.toString());
+						} else {
+							return conn.prepareStatement(onCreate.toString(), Statement.RETURN_GENERATED_KEYS);
+						}
+					}
+				};
 			PromiseOfStatement stmtUpdate = new PromiseOfStatement(){
 				@Override
 				protected PreparedStatement create(Connection conn) throws SQLException {
@@ -1273,7 +2810,11 @@ public final class Database implements Decodable{
 				}
 			};
 			MetaClass.ClassFactory<F> factory = MetaClass.create(clazz).createFactory(constructorParams);
-			return new DBClassInfo<F>(factory, primaryKey, stmtCreate, stmtUpdate, findByIndex, delByIndex, fields);
+			DBClassInfo<F> info = new DBClassInfo<F>(factory, primaryKey, stmtCreate, stmtUpdate, findByIndex, delByIndex, fields,
+					table, insertColumns.toString(), insertRow.toString());
+			info.onCreateBatch = stmtCreateBatch;
+			info.resultIndex = resultIndex;
+			return info;
 		} catch (Exception e) {
 			if(e instanceof DatabaseException){
 				throw (DatabaseException) e;
@@ -1283,210 +2824,672 @@ public final class Database implements Decodable{
 		}
 	}
 
-	protected <F extends DatabaseObject> DBClassInfo<F>  recoverClassChanged(
+	/**
+	 * Bring a table up to date with a class which has gained keys, by adding a column for each.
+	 * The columns are added without a default, which every backend does without rewriting the table;
+	 * existing rows read the new columns as null (primitive fields keep the value they were
+	 * constructed with), and are backfilled as they are next flushed.
+	 * Columns the class no longer has are left in place, and ignored.
+	 * The table is only changed if {@link Database#FORCEDBUPDATE} is set.
+	 * @param clazz The class which has changed
+	 * @param table The table of the class
+	 * @param keys The keys of the class, by column name
+	 * @param missing The keys which have no column in the table
+	 */
+	protected <F extends DatabaseObject> void recoverClassChanged(
 				Class<F> clazz,
-				Class<?>[] constructorParams,
-				HashMap<String,Field> keys){
-		//--Display warning
-		System.err.println("WARNING: Class " + clazz.getName() + " is out of sync with the database.");
+				String table,
+				HashMap<String,Field> keys,
+				List<String> missing){
 		if(!FORCEDBUPDATE){
-			Console c = new TextConsole().show();
-			if(!c.readBoolean("Allow automatic update (y/N)? ")){
-				throw new DatabaseException("Class definition is out of sync with the database: " + clazz);
+			throw new DatabaseException("Class definition is out of sync with the database (missing columns " + missing + " in " + table + "; set FORCEDBUPDATE to add them): " + clazz);
+		}
+		System.err.println("WARNING: Class " + clazz.getName() + " is out of sync with the database; adding columns " + missing + " to " + table);
+		int nextIndexIdentifier = getTableIndices(table).length;
+		for(String name : missing){
+			Field f = keys.get(name);
+			//(error checks)
+			if(f.getAnnotation(PrimaryKey.class) != null){
+				throw new DatabaseException("Cannot add a primary key to an existing table: " + name + " in class " + clazz);
+			}
+			if(f.getAnnotation(Index.class) != null && f.getAnnotation(Index.class).type() == Index.Type.RTREE){
+				throw new DatabaseException("Cannot add an RTREE indexed (not null) column to an existing table: " + name + " in class " + clazz);
+			}
+			//(add column)
+			Key key = f.getAnnotation(Key.class);
+			String sqlType = key == null ? typeJava2sql(type, f, -1) : typeJava2sql(type, f, key.length(), key.type());
+			update("ALTER TABLE " + table + " ADD COLUMN " + columnName(name) + " " + sqlType + ";");
+			//(add indices)
+			for(Annotation ann : f.getAnnotations()){
+				if(ann instanceof Parent && ((Parent) ann).indexType() != Index.Type.NONE){
+					update(indexQuery(((Parent) ann).indexType(), table, name, nextIndexIdentifier++));
+				}else if(ann instanceof Index && ((Index) ann).type() != Index.Type.NONE){
+					update(indexQuery(ann, f, table, nextIndexIdentifier++));
+				}else if(ann instanceof IndexList){
+					for(Index index : ((IndexList) ann).value()){
+						if(index.type() != Index.Type.NONE){ update(indexQuery(index, f, table, nextIndexIdentifier++)); }
+					}
+				}
 			}
 		}
-		System.err.println("Attempting to recover");
-		
-		//TODO implement me
-		throw new NoSuchMethodError("Not implemented yet");
 	}
 	
+	/**
+	 * Make sure the current connection is usable, reconnecting if it has gone bad.
+	 * A connection is only checked if it has not been checked recently.
+	 */
 	private void ensureConnection(){
-		if (conn != null) {
-			Statement statement = null;
-			try {
-				//(try a statement)
-				statement = conn.createStatement();
-				statement.execute("SELECT 1");
-				if(conn.getMetaData() == null){
-					//(case: statement failed)
-					conn = null;
-					connect();
+		if(!isConnected()){
+			//(case; never pretended to be connected)
+			connect();
+			return;
+		}
+		Session session = session();
+		long now = System.currentTimeMillis();
+		if(now - session.validated < VALIDATE_INTERVAL){ return; }
+		if(!isValid(session.conn)){
+			//(case: conn went bad)
+			session.lastStatement = null;
+			if(pool != null){
+				session.conn = pool.replace(session.conn);
+			} else {
+				try {
+					session.conn.close();
+				} catch (SQLException e) { }
+				try {
+					session.conn = openConnection();
+				} catch (SQLException e) {
+					throw new DatabaseException(e);
 				}
-			} catch (SQLException e) {
-				//(case: conn exception'd)
-				conn = null;
-				connect();
-			} finally {
-				if(statement != null){
-					try {
-						statement.close();
-					} catch (SQLException e) { }
+			}
+		}
+		session.validated = now;
+	}
+
+	private static boolean isValid(Connection conn){
+		try {
+			return conn.isValid(VALIDATE_TIMEOUT);
+		} catch (AbstractMethodError e) {
+			//(case: pre-JDBC4 driver; fall through)
+		} catch (SQLException e) {
+			//(case: driver doesn't implement it; fall through)
+		}
+		Statement statement = null;
+		try {
+			statement = conn.createStatement();
+			statement.execute("SELECT 1");
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			if(statement != null){
+				try {
+					statement.close();
+				} catch (SQLException e) { }
+			}
+		}
+	}
+	
+	/**
+	 * Bind a single column value into a statement, according to the column's resolved kind.
+	 */
+	private void bindColumn(Column column, Object value, PreparedStatement stmt, int slot) throws SQLException{
+		switch(column.kind){
+		case Column.PARENT:
+			//(case: foreign key)
+			if(value == null){
+				stmt.setNull(slot, java.sql.Types.INTEGER);
+			}else{
+				if(value instanceof DatabaseObject){ flushPending((DatabaseObject) value); }
+				stmt.setInt(slot, column.parentKey(value));
+			}
+			break;
+		case Column.DECODABLE:
+			stmt.setString(slot, value == null ? null : ((Decodable) value).encode());
+			break;
+		case Column.CODEC:
+			if(value == null){
+				stmt.setNull(slot, java.sql.Types.BINARY);
+			}else{
+				stmt.setBytes(slot, column.codec.encode(value));
+			}
+			break;
+		case Column.SERIALIZABLE:
+			//(case: non-native serializable)
+			if(type == SQLITE) throw new DatabaseException("Cannot write serializable objects to sqlite database (try Decodable instead?)");
+			stmt.setBytes(slot, Utils.obj2bytes((Serializable) value));
+			break;
+		default:
+			//(case: native)
+			obj2db(stmt, slot, value);
+		}
+	}
+
+	/**
+	 * Bind the insertable columns of an instance into a statement, starting at the given slot.
+	 * @return The next free slot in the statement
+	 */
+	private <E extends DatabaseObject> int bindRow(DBClassInfo<E> info, E instance, PreparedStatement stmt, int slot){
+		try {
+			for(Column column : info.columns){
+				if(column.kind == Column.PRIMARY){ continue; }
+				bindColumn(column, column.get(instance), stmt, slot);
+				slot += 1;
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+		return slot;
+	}
+
+	private <E extends DatabaseObject> void setPrimaryKey(DBClassInfo<E> info, E instance, int id){
+		info.primaryKeyColumn.set(instance, id);
+	}
+
+	private <E extends DatabaseObject> void addRow(DBClassInfo<E> info, E instance){
+		ensureConnection();
+		bindRow(info, instance, info.onCreate.get(conn()), 1);
+		try {
+			//(execute)
+			long start = System.nanoTime();
+			info.onCreate.get(conn()).execute();
+			observe(QueryEvent.Operation.CREATE, instance.getClass(), info.onCreate.get(conn()), start, 0, 1);
+			//(set primary key)
+			if (info.onCreate.get(conn()).getUpdateCount() == 1 && info.primaryKey != null) {
+				ResultSet res = info.onCreate.get(conn()).getGeneratedKeys();
+				if(res == null || !res.next()){ throw new DatabaseException("Could not get created row (res.next() call failed)"); }
+				int id = -1;
+				if(type == PSQL){
+					id = res.getInt(info.primaryKeyName);
+				}else{
+					id = res.getInt(1);
 				}
+				setPrimaryKey(info, instance, id);
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * Insert a number of rows at once. On Postgres this is a single multi-row INSERT
+	 * returning the created keys; elsewhere the rows are sent as a JDBC batch.
+	 */
+	private <E extends DatabaseObject> void addRows(DBClassInfo<E> info, final List<E> instances){
+		if(instances.isEmpty()){ return; }
+		ensureConnection();
+		try {
+			if(type == PSQL && instances.size() >= COPY_MIN_ROWS && copyRows(info, instances)){
+				//(case: written with COPY; keys are already set)
+				return;
+			}
+			if(type == PSQL && instances.size() > DEFAULT_BATCH_SIZE){
+				//(case: too many parameters for a single insert)
+				for(int start=0; start<instances.size(); start+=DEFAULT_BATCH_SIZE){
+					addRows(info, instances.subList(start, Math.min(instances.size(), start + DEFAULT_BATCH_SIZE)));
+				}
+				return;
+			}
+			if(type == H2){
+				//(case: in process, so a row at a time costs no round trips, and every key is known)
+				for(E instance : instances){ addRow(info, instance); }
+				return;
+			}
+			int[] ids = new int[instances.size()];
+			if(type == PSQL){
+				//--Case: multi-row insert
+				Batch batch = batches.get();
+				boolean cached = instances.size() == DEFAULT_BATCH_SIZE || (batch != null && instances.size() == batch.size);
+				PreparedStatement stmt = multiRowInsert(info, instances.size(), cached);
+				int slot = 1;
+				for(E instance : instances){
+					slot = bindRow(info, instance, stmt, slot);
+				}
+				if(verbose){ System.out.println(stmt); }
+				long start = System.nanoTime();
+				if(info.primaryKey == null){
+					stmt.executeUpdate();
+					ids = null;
+				} else {
+					ResultSet res = stmt.executeQuery();
+					int i = 0;
+					while(res.next()){ ids[i++] = res.getInt(1); }
+					res.close();
+					if(i != ids.length){ throw new DatabaseException("Could not get created rows (expected " + ids.length + " keys; got " + i + ")"); }
+				}
+				observe(QueryEvent.Operation.CREATE, instances.get(0).getClass(), stmt, start, 0, instances.size());
+				if(!cached){ stmt.close(); }
+			} else {
+				//--Case: JDBC batch
+				PreparedStatement stmt = info.onCreateBatch.get(conn());
+				for(E instance : instances){
+					bindRow(info, instance, stmt, 1);
+					stmt.addBatch();
+				}
+				long start = System.nanoTime();
+				stmt.executeBatch();
+				observe(QueryEvent.Operation.CREATE, instances.get(0).getClass(), stmt, start, 0, instances.size());
+				if(info.primaryKey == null){
+					ids = null;
+				} else {
+					ResultSet res = stmt.getGeneratedKeys();
+					List<Integer> keys = new ArrayList<Integer>();
+					while(res != null && res.next()){ keys.add(res.getInt(1)); }
+					if(keys.size() == ids.length){
+						//(case: driver reports every key)
+						for(int i=0; i<ids.length; i++){ ids[i] = keys.get(i); }
+					} else if(type == SQLITE && keys.size() > 0){
+						//(case: sqlite reports the last rowid; rows in a transaction are contiguous)
+						int last = keys.get(keys.size()-1);
+						for(int i=0; i<ids.length; i++){ ids[i] = last - ids.length + 1 + i; }
+					} else {
+						throw new DatabaseException("Could not get created rows (expected " + ids.length + " keys; got " + keys.size() + ")");
+					}
+				}
+			}
+			//(set primary keys)
+			if(ids != null){
+				int i = 0;
+				for(E instance : instances){ setPrimaryKey(info, instance, ids[i++]); }
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	/*
+	 * BULK LOADING
+	 */
+
+	//(Postgres' copy API, found reflectively so that the driver is not needed to compile)
+	private static volatile Method pgCopyAPI = null;
+	private static volatile Method pgCopyIn = null;
+	private static volatile boolean pgCopyUnavailable = false;
+
+	/**
+	 * Get the CopyManager of a Postgres connection, or null if the driver does not provide one.
+	 */
+	private static Object copyManager(Connection conn){
+		if(pgCopyUnavailable){ return null; }
+		try {
+			Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+			Object pg = pgConnection.isInstance(conn) ? conn : conn.unwrap(pgConnection);
+			if(pgCopyAPI == null){ pgCopyAPI = pgConnection.getMethod("getCopyAPI"); }
+			Object manager = pgCopyAPI.invoke(pg);
+			if(pgCopyIn == null){ pgCopyIn = manager.getClass().getMethod("copyIn", String.class, Reader.class); }
+			return manager;
+		} catch (ClassNotFoundException e) {
+			pgCopyUnavailable = true;
+		} catch (NoSuchMethodException e) {
+			pgCopyUnavailable = true;
+		} catch (IllegalAccessException e) {
+			pgCopyUnavailable = true;
+		} catch (InvocationTargetException e) {
+			//(case: this connection can't copy; e.g., it's wrapped)
+		} catch (SQLException e) {
+			//(case: this connection can't copy; e.g., it's wrapped)
+		} catch (AbstractMethodError e) {
+			pgCopyUnavailable = true;  // pre-JDBC4 driver
+		}
+		return null;
+	}
+
+	/**
+	 * Write rows into Postgres with COPY ... FROM STDIN, taking their primary keys from
+	 * a range reserved on the table's sequence.
+	 * @return False if the driver cannot COPY, in which case nothing is written
+	 */
+	private <E extends DatabaseObject> boolean copyRows(DBClassInfo<E> info, List<E> instances) throws SQLException{
+		Object manager = copyManager(conn());
+		if(manager == null){ return false; }
+		//--Reserve Keys
+		int[] ids = null;
+		if(info.primaryKey != null){
+			ids = new int[instances.size()];
+			String reserve = "SELECT nextval(pg_get_serial_sequence(?, ?)) FROM generate_series(1, ?)";
+			PreparedStatement stmt = borrow(reserve);
+			try {
+				stmt.setString(1, info.table);
+				stmt.setString(2, info.primaryKeyName.toLowerCase());
+				stmt.setInt(3, ids.length);
+				ResultSet res = stmt.executeQuery();
+				int i = 0;
+				while(res.next()){ ids[i++] = res.getInt(1); }
+				res.close();
+				if(i != ids.length){ throw new DatabaseException("Could not reserve keys (expected " + ids.length + "; got " + i + ")"); }
+			} finally {
+				giveBack(reserve, stmt);
+			}
+		}
+		//--Encode Rows
+		StringBuilder csv = new StringBuilder(instances.size() * 64);
+		int row = 0;
+		for(E instance : instances){
+			boolean first = true;
+			if(ids != null){
+				csv.append(ids[row]);
+				first = false;
+			}
+			for(Column column : info.columns){
+				if(column.kind == Column.PRIMARY){ continue; }
+				if(!first){ csv.append(','); }
+				appendCsv(csv, column, column.get(instance));
+				first = false;
+			}
+			csv.append('\n');
+			row += 1;
+		}
+		//--Copy
+		StringBuilder q = new StringBuilder();
+		q.append("COPY ").append(info.table).append(" (");
+		if(info.primaryKey != null){
+			q.append("\"").append(info.primaryKeyName).append("\"");
+			if(info.insertColumns.length() > 0){ q.append(","); }
+		}
+		q.append(info.insertColumns).append(") FROM STDIN WITH CSV");
+		if(verbose){ System.out.println(q + " [" + instances.size() + " rows]"); }
+		try {
+			long start = System.nanoTime();
+			pgCopyIn.invoke(manager, q.toString(), new StringReader(csv.toString()));
+			observe(QueryEvent.Operation.CREATE, instances.get(0).getClass(), q, start, 0, instances.size());
+		} catch (IllegalAccessException e) {
+			throw new DatabaseException(e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof SQLException){ throw (SQLException) cause; }
+			throw new DatabaseException(cause);
+		}
+		//--Set Keys
+		if(ids != null){
+			int i = 0;
+			for(E instance : instances){ setPrimaryKey(info, instance, ids[i++]); }
+		}
+		return true;
+	}
+
+	/**
+	 * Append a single column value as a Postgres CSV field, storing it as bindColumn() would.
+	 */
+	private void appendCsv(StringBuilder csv, Column column, Object value){
+		if(value == null){ return; } //(unquoted empty field is NULL)
+		switch(column.kind){
+		case Column.PARENT:
+			if(value instanceof DatabaseObject){ flushPending((DatabaseObject) value); }
+			csv.append(column.parentKey(value));
+			return;
+		case Column.CODEC:
+			appendBytea(csv, column.codec.encode(value));
+			return;
+		case Column.SERIALIZABLE:
+			appendBytea(csv, Utils.obj2bytes((Serializable) value));
+			return;
+		case Column.DECODABLE:
+			appendQuoted(csv, ((Decodable) value).encode());
+			return;
+		default:
+			break;
+		}
+		//(native)
+		if(value instanceof Boolean){
+			csv.append(((Boolean) value) ? 't' : 'f');
+		}else if(value instanceof Character){
+			csv.append((int) ((Character) value).charValue());
+		}else if(value instanceof Float || value instanceof Double){
+			double d = ((Number) value).doubleValue();
+			if(!Double.isInfinite(d) && !Double.isNaN(d)){ csv.append(value); }
+		}else if(value instanceof Number){
+			csv.append(value);
+		}else if(value instanceof Date){
+			appendQuoted(csv, new java.sql.Timestamp(((Date) value).getTime()).toString());
+		}else if(value instanceof Calendar){
+			appendQuoted(csv, new java.sql.Timestamp(((Calendar) value).getTimeInMillis()).toString());
+		}else if(value instanceof Class){
+			appendQuoted(csv, ((Class) value).getName());
+		}else if(value instanceof Decodable){
+			appendQuoted(csv, ((Decodable) value).encode());
+		}else if(Codecs.defaultFor(value.getClass()) != null){
+			appendBytea(csv, encodeDefault(value));
+		}else if(value.getClass().isArray()){
+			appendQuoted(csv, Arrays.toString((Object[]) value));
+		}else{
+			appendQuoted(csv, value.toString());
+		}
+	}
+
+	private static void appendQuoted(StringBuilder csv, String value){
+		csv.append('"');
+		for(int i=0; i<value.length(); i++){
+			char c = value.charAt(i);
+			if(c == '"'){ csv.append('"'); }
+			csv.append(c);
+		}
+		csv.append('"');
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static void appendBytea(StringBuilder csv, byte[] bytes){
+		//(hex format; Postgres 9.0 and later)
+		csv.append("\"\\x");
+		for(byte b : bytes){
+			csv.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		csv.append('"');
+	}
+
+	/**
+	 * Write a large number of new objects to the database as quickly as the backend allows.
+	 * On Postgres, rows are streamed in with COPY, and their primary keys are taken from a range
+	 * reserved on each table's sequence; elsewhere they are written as batched inserts.
+	 * Objects are written in chunks of BULK_BATCH_SIZE rows per class, in the order their classes first appear,
+	 * so parents should come before their children (or be in the database already).
+	 * Objects already in the database are updated as usual.
+	 * If a batch is already in progress, the objects join it; otherwise, they are written
+	 * (and their primary keys set) before this method returns.
+	 * @param objects The objects to write
+	 * @return The number of objects which were not yet in the database
+	 */
+	public int bulkLoad(Iterable<? extends DatabaseObject> objects){
+		boolean ownBatch = !inBatch();
+		if(ownBatch){ beginBatch(BULK_BATCH_SIZE); }
+		int loaded = 0;
+		try {
+			for(DatabaseObject obj : objects){
+				if(!obj.isInDatabase()){ loaded += 1; }
+				obj.flush();
+			}
+		} catch (RuntimeException e) {
+			if(ownBatch){ batches.remove(); }
+			throw e;
+		}
+		if(ownBatch){ endBatch(); }
+		return loaded;
+	}
+
+	private <E extends DatabaseObject> PreparedStatement multiRowInsert(final DBClassInfo<E> info, final int rows, boolean cache) throws SQLException{
+		final StringBuilder q = new StringBuilder();
+		q.append("INSERT INTO ").append(info.table).append(" (").append(info.insertColumns).append(") VALUES ");
+		for(int i=0; i<rows; i++){
+			if(i > 0){ q.append(", "); }
+			q.append(info.insertRow);
+		}
+		if(info.primaryKey != null){
+			q.append(" RETURNING \"").append(info.primaryKeyName).append("\"");
+		}
+		q.append(";");
+		if(cache){
+			//(case: full batch; cache the statement)
+			PromiseOfStatement promise = info.onCreateMulti.get(rows);
+			if(promise == null){
+				promise = new PromiseOfStatement(){
+					@Override
+					protected PreparedStatement create(Connection conn) throws SQLException {
+						return conn.prepareStatement(q.toString());
+					}
+				};
+				info.onCreateMulti.put(rows, promise);
 			}
+			return promise.get(conn());
 		} else {
-			//(case; never pretended to be connected)
-			connect();
+			//(case: partial batch)
+			return conn().prepareStatement(q.toString());
 		}
 	}
-	
-	@SuppressWarnings("unchecked")
-	private <E extends DatabaseObject> void addRow(DBClassInfo<E> info, E instance){
+
+	private <E extends DatabaseObject> void updateRow(DBClassInfo<E> info, E instance){
 		ensureConnection();
-		int slot = 1;
-		for(int i=0; i<info.fields.length; i++){
-			try {
-				Field f = info.fields[i];
-				Class ftype = f.getType();
-				if(f.getAnnotation(Key.class) != null && f.getAnnotation(Key.class).type() != Object.class){
-					ftype = f.getAnnotation(Key.class).type();
-				}
-				boolean restore = true;
-				if(!f.isAccessible()){ f.setAccessible(true); restore = false; }
-				if(f.getAnnotation(Parent.class) != null){
-					//(case: foreign key)
-					E foreign = (E) f.get(instance);
-					if(foreign == null){
-						info.onCreate.get(conn).setObject(slot, null);
-					}else{
-						String pkey = foreign.getInfo().primaryKey.getAnnotation(PrimaryKey.class).name();
-						if(pkey == null){ throw new DatabaseException("Referenced object has no primary key: " + f.getType()); }
-						int primaryKey = -1;
-						try {
-							Field fld = MetaClass.findField(foreign.getClass(), pkey);
-							boolean savePerm = fld.isAccessible();
-							if(!savePerm) fld.setAccessible(true);
-							primaryKey = fld.getInt(foreign);
-							if(!savePerm) fld.setAccessible(savePerm);
-						} catch (SecurityException e) {
-							if(!restore) f.setAccessible(false);
-							throw new DatabaseException(e);
-						} catch (NoSuchFieldException e) {
-							if(!restore) f.setAccessible(false);
-							throw new DatabaseException(e);
-						}
-						info.onCreate.get(conn).setObject(slot, primaryKey);
-					}
-				}else if(Decodable.class.isAssignableFrom(f.getType())){
-					Object o = f.get(instance);
-					if(o == null){ info.onCreate.get(conn).setString(slot, null); }
-					else { info.onCreate.get(conn).setString(slot, ((Decodable) f.get(instance)).encode()); }
-				} else if(nonNative(ftype) && !Class.class.isAssignableFrom(ftype) && Serializable.class.isAssignableFrom(ftype)){
-					//(case: non-native serializable)
-					if(type == SQLITE) throw new DatabaseException("Cannot write serializable objects to sqlite database (try Decodable instead?)");
-					info.onCreate.get(conn).setBytes(slot, Utils.obj2bytes((Serializable) f.get(instance)));
-				}else{
-					//(case: native)
-					if(f != info.primaryKey) obj2db(info.onCreate.get(conn), slot, f.get(instance));
+		Column[] columns = info.columns;
+		//--Find Changed Columns
+		Object[] current = null;
+		BitSet changed = null;
+		if(trackChanges && info.primaryKey != null){
+			current = fingerprints(info, instance, true);
+			Object[] snapshot = instance.snapshot;
+			if(snapshot != null){
+				changed = new BitSet(columns.length);
+				for(int i=0; i<columns.length; i++){
+					if(columns[i].kind != Column.PRIMARY && !unchanged(snapshot[i], current[i])){ changed.set(i); }
 				}
-				//(overhead)
-				if(!restore) f.setAccessible(false);
-				if(f != info.primaryKey){ slot += 1; }
-			} catch (IllegalArgumentException e) {
-				throw new DatabaseException(e);
-			} catch (SQLException e) {
-				throw new DatabaseException(e);
-			} catch (IllegalAccessException e) {
-				throw new DatabaseException("Trying to save a final field: " + info.fields[i]);
+				//(case: nothing to write)
+				if(changed.isEmpty()){ return; }
 			}
 		}
+		PreparedStatement stmt = changed == null ? null : partialUpdate(info, changed);
 		try {
-			//(execute)
-			info.onCreate.get(conn).execute();
-			//(set primary key)
-			if (info.onCreate.get(conn).getUpdateCount() == 1 && info.primaryKey != null) {
-				ResultSet res = info.onCreate.get(conn).getGeneratedKeys();
-				if(res == null || !res.next()){ throw new DatabaseException("Could not get created row (res.next() call failed)"); }
-				int id = -1;
-				if(type == PSQL){
-					id = res.getInt(info.primaryKey.getAnnotation(PrimaryKey.class).name());
-				}else{
-					id = res.getInt(1);
+			if(stmt == null){
+				//(set every field)
+				stmt = info.onUpdate.get(conn());
+				for(int i=0; i<columns.length; i++){
+					bindColumn(columns[i], columns[i].get(instance), stmt, i + 1);
+				}
+				//(set primary key cond)
+				stmt.setInt(columns.length + 1, (Integer) info.primaryKeyColumn.get(instance));
+			} else {
+				//(set changed fields)
+				int slot = 1;
+				for(int i=changed.nextSetBit(0); i>=0; i=changed.nextSetBit(i+1)){
+					bindColumn(columns[i], columns[i].get(instance), stmt, slot);
+					slot += 1;
 				}
-				boolean saveAccessible = true;
-				if(!info.primaryKey.isAccessible()){ saveAccessible = false; info.primaryKey.setAccessible(true); }
-				info.primaryKey.setInt(instance, id);
-				if(!saveAccessible){ info.primaryKey.setAccessible(false); }
+				stmt.setInt(slot, (Integer) info.primaryKeyColumn.get(instance));
 			}
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
-		} catch (IllegalArgumentException e) {
-			throw new DatabaseException(e);
-		} catch (SecurityException e) {
-			throw new DatabaseException(e);
-		} catch (IllegalAccessException e) {
+		}
+		//(flush)
+		try {
+			if(verbose){ System.out.println(stmt); }
+			long start = System.nanoTime();
+			stmt.execute();
+			observe(QueryEvent.Operation.UPDATE, instance.getClass(), stmt, start, 0, 1);
+		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
+		instance.snapshot = current;
 	}
 
-	private <E extends DatabaseObject> void updateRow(DBClassInfo<E> info, E instance){
-		ensureConnection();
-		//(set fields)
-		for(int i=0; i<info.fields.length; i++){
-			try {
-				Field f = info.fields[i];
-				Class<?> ftype = f.getType();
-				if(f.getAnnotation(Key.class) != null && f.getAnnotation(Key.class).type() != Object.class){
-					ftype = f.getAnnotation(Key.class).type();
-				}
-				boolean restore = true;
-				if(!f.isAccessible()){ f.setAccessible(true); restore = false; }
-				if(f.getAnnotation(Parent.class) != null){
-					//(foreign key handled specially)
-					Parent fkey = f.getAnnotation(Parent.class);
-					Object target = f.get(instance);
-					if(target == null){
-						info.onUpdate.get(conn).setNull(i + 1, java.sql.Types.INTEGER);
-					}else{
-						Field toFillFrom;
-						try {
-              toFillFrom = MetaClass.findField(f.getType(), fkey.parentField());
-						} catch (SecurityException e) {
-							throw new DatabaseException(e);
-						} catch (NoSuchFieldException e) {
-							throw new DatabaseException("Foreign key references non-existent field (" + f + "): " + fkey.parentField());
-						}
-						boolean accessible = toFillFrom.isAccessible();
-						if(!accessible){ toFillFrom.setAccessible(true); }
-						info.onUpdate.get(conn).setInt(i + 1, toFillFrom.getInt(target));
-						if(!accessible){ toFillFrom.setAccessible(false); }
-					}
-				}else if(nonNative(ftype) && ftype != Class.class && ftype instanceof Serializable){
-					if(type == SQLITE) throw new DatabaseException("Cannot write serializable objects to sqlite database (try Decodable?)");
-					info.onUpdate.get(conn).setBytes(i + 1, Utils.obj2bytes((Serializable) f.get(instance)));
-				}else{
-					obj2db(info.onUpdate.get(conn), i+1, f.get(instance));
-				}
-				if(!restore) f.setAccessible(false);
-			} catch (IllegalArgumentException e) {
-				throw new DatabaseException(e);
-			} catch (SQLException e) {
-				throw new DatabaseException(e);
-			} catch (IllegalAccessException e) {
-				throw new DatabaseException("Trying to save a final field: " + info.fields[i]);
+	/**
+	 * The statement updating only the given columns of a row, or null if too many column sets
+	 * have been seen for the class already.
+	 */
+	private PreparedStatement partialUpdate(DBClassInfo<?> info, BitSet changed){
+		PromiseOfStatement promise = info.onUpdateColumns.get(changed);
+		if(promise == null){
+			if(info.onUpdateColumns.size() >= MAX_UPDATE_STATEMENTS){ return null; }
+			final StringBuilder q = new StringBuilder();
+			q.append("UPDATE ").append(info.table).append(" SET ");
+			for(int i=changed.nextSetBit(0); i>=0; i=changed.nextSetBit(i+1)){
+				if(q.charAt(q.length()-1) == '?'){ q.append(", "); }
+				q.append("\"").append(field2name(info.fields[i])).append("\"=?");
 			}
+			q.append(" WHERE \"").append(info.primaryKeyName).append("\"=?;");
+			promise = new PromiseOfStatement(){
+				@Override
+				protected PreparedStatement create(Connection conn) throws SQLException {
+					return conn.prepareStatement(q.toString());
+				}
+			};
+			PromiseOfStatement existing = info.onUpdateColumns.putIfAbsent((BitSet) changed.clone(), promise);
+			if(existing != null){ promise = existing; }
 		}
-		//(set primary key cond)
-		try {
-			boolean restore = true;
-			if(!info.primaryKey.isAccessible()){ info.primaryKey.setAccessible(true); restore = false; }
-			int key = info.primaryKey.getInt(instance);
-			if(!restore) info.primaryKey.setAccessible(false);
-			info.onUpdate.get(conn).setInt(info.fields.length + 1, key);
-		} catch (IllegalArgumentException e1) {
-			throw new DatabaseException(e1);
-		} catch (IllegalAccessException e1) {
-			throw new DatabaseException(e1);
-		} catch (SQLException e1) {
-			throw new DatabaseException(e1);
+		return promise.get(conn());
+	}
+
+	/*
+	 * CHANGE TRACKING
+	 */
+	//(a value whose changes cannot be detected; it is never unchanged)
+	private static final Object UNTRACKED = new Object();
+
+	/**
+	 * The fingerprint of each column of an object, as it is in memory
+	 */
+	private <E extends DatabaseObject> Object[] fingerprints(DBClassInfo<E> info, E instance, boolean flushParents){
+		Column[] columns = info.columns;
+		Object[] rtn = new Object[columns.length];
+		for(int i=0; i<columns.length; i++){
+			if(columns[i].kind == Column.PRIMARY){ continue; }
+			rtn[i] = fingerprint(columns[i], columns[i].get(instance), flushParents);
 		}
-		//(flush)
-		try {
-			if(verbose){ System.out.println(info.onUpdate.get(conn)); }
-			info.onUpdate.get(conn).execute();
-		} catch (SQLException e) {
-			throw new DatabaseException(e);
+		return rtn;
+	}
+
+	/**
+	 * A value which is equal for two values of a column exactly when they would be stored the same;
+	 * blobs and encoded values are reduced to a 64 bit hash of their stored form.
+	 * @param flushParents If true, a parent still queued in a batch is written, so that its key is known
+	 */
+	private Object fingerprint(Column column, Object value, boolean flushParents){
+		if(value == null){ return null; }
+		switch(column.kind){
+		case Column.PARENT:
+			if(flushParents && value instanceof DatabaseObject){ flushPending((DatabaseObject) value); }
+			return column.parentKey(value);
+		case Column.CODEC:
+			return fingerprint(column.codec.encode(value));
+		case Column.SERIALIZABLE:
+			return fingerprint(Utils.obj2bytes((Serializable) value));
+		case Column.DECODABLE:
+			return fingerprint(((Decodable) value).encode());
+		default:
+			break;
+		}
+		//(native; immutable values stand for themselves)
+		if(value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double ||
+				value instanceof Float || value instanceof Boolean || value instanceof Short || value instanceof Byte ||
+				value instanceof Character || value instanceof BigInteger || value instanceof BigDecimal ||
+				value instanceof Class || value instanceof Enum){
+			return value;
+		}else if(value instanceof Date){
+			return ((Date) value).getTime();
+		}else if(value instanceof Calendar){
+			return ((Calendar) value).getTimeInMillis();
+		}else{
+			return UNTRACKED;
+		}
+	}
+
+	private static Long fingerprint(byte[] bytes){
+		//(FNV-1a)
+		long hash = 0xcbf29ce484222325L;
+		for(byte b : bytes){
+			hash ^= (b & 0xFF);
+			hash *= 0x100000001b3L;
 		}
+		return hash;
+	}
+
+	private static Long fingerprint(String str){
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<str.length(); i++){
+			hash ^= str.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static boolean unchanged(Object before, Object after){
+		if(before == UNTRACKED || after == UNTRACKED){ return false; }
+		return before == null ? after == null : before.equals(after);
 	}
 
 	/**
@@ -1501,28 +3504,226 @@ public final class Database implements Decodable{
 	protected <E extends DatabaseObject, F extends E> void flush(DBClassInfo<E> info, E instance){
 		if(instance.isInDatabase()){
 			updateRow(info, instance);
+			if(cache != null && info.primaryKey != null){
+				cache.put(instance.getClass(), info.primaryKeyColumn.get(instance), instance);
+			}
+		}else if(batches.get() != null){
+			enqueue(info, instance);
 		}else{
 			addRow(info, instance);
-			instance.setInDatabase(true);
-			if(info.primaryKey != null){
+			inserted(info, instance);
+		}
+	}
+
+	private <E extends DatabaseObject> void inserted(DBClassInfo<E> info, E instance){
+		instance.setInDatabase(true);
+		if(info.primaryKey != null){
+			//(the row now matches the object; see updateRow())
+			instance.snapshot = trackChanges ? fingerprints(info, instance, false) : null;
+			Object pk = info.primaryKeyColumn.get(instance);
+			cacheObject(instance, info.primaryKey, pk);
+			if(cache != null){ cache.put(instance.getClass(), pk, instance); }
+		}
+	}
+
+	/*
+	 * BATCHED INSERTS
+	 */
+
+	/**
+	 * Begin queueing inserts rather than writing them as they are flushed.
+	 * New objects flushed while in a batch are written batchSize rows at a time
+	 * (grouped by class), and have their primary keys set once they are written.
+	 * Updates to objects already in the database are still written immediately.
+	 * Each thread has its own batch: objects flushed by other threads are written as usual,
+	 * even when the threads share a connection.
+	 * @param batchSize The number of queued rows at which the batch is written automatically
+	 * @return This database
+	 */
+	public Database beginBatch(int batchSize){
+		if(!isConnected()){ throw new DatabaseException("Database has not been connected yet"); }
+		if(batches.get() != null){ throw new DatabaseException("Already in a batch"); }
+		if(batchSize <= 0){ throw new IllegalArgumentException("Batch size must be positive: " + batchSize); }
+		batches.set(new Batch(batchSize));
+		return this;
+	}
+
+	public Database beginBatch(){
+		return beginBatch(DEFAULT_BATCH_SIZE);
+	}
+
+	public boolean inBatch(){
+		return isConnected() && batches.get() != null;
+	}
+
+	/**
+	 * Write every row queued in the current batch, without ending the batch.
+	 * @return The number of rows written
+	 */
+	public int flushBatch(){
+		Batch batch = batches.get();
+		if(batch == null){ throw new DatabaseException("Not in a batch (forgot to call beginBatch()?)"); }
+		int before = batch.count;
+		if(before == 0){ return 0; }
+		Session session = session();
+		ensureConnection();
+		boolean ownTransaction = !session.inTransaction;
+		try {
+			if(ownTransaction){ session.conn.setAutoCommit(false); }
+			while(!batch.queue.isEmpty()){
+				flushQueue(batch, batch.queue.keySet().iterator().next());
+			}
+			if(ownTransaction){ session.conn.commit(); }
+		} catch (SQLException e) {
+			if(ownTransaction){ rollbackQuietly(session.conn); }
+			throw new DatabaseException(e);
+		} catch (RuntimeException e) {
+			if(ownTransaction){ rollbackQuietly(session.conn); }
+			throw e;
+		} finally {
+			if(ownTransaction){
+				try {
+					session.conn.setAutoCommit(true);
+				} catch (SQLException e) {
+					throw new DatabaseException(e);
+				}
+			}
+		}
+		return before - batch.count;
+	}
+
+	/**
+	 * Write every queued row, and stop batching.
+	 * If the write fails, the batch is rolled back and its remaining rows are discarded.
+	 * @return The number of rows written
+	 */
+	public int endBatch(){
+		try {
+			return flushBatch();
+		} finally {
+			batches.remove();
+		}
+	}
+
+	/**
+	 * If the given object is waiting in the current batch, write it (and anything it depends on)
+	 * now, so that its primary key is available.
+	 * @param obj The object which should be in the database
+	 */
+	public void flushPending(DatabaseObject obj){
+		Batch batch = batches.get();
+		if(batch == null || !batch.queued.contains(obj)){ return; }
+		Session session = session();
+		ensureConnection();
+		boolean ownTransaction = false;
+		try {
+			//(join a batch or transaction already in progress)
+			ownTransaction = session.conn.getAutoCommit();
+			if(ownTransaction){ session.conn.setAutoCommit(false); }
+			resolvePending(batch, obj);
+			if(ownTransaction){ session.conn.commit(); }
+		} catch (SQLException e) {
+			if(ownTransaction){ rollbackQuietly(session.conn); }
+			throw new DatabaseException(e);
+		} finally {
+			if(ownTransaction){
 				try {
-					boolean restore = false;
-					if(!info.primaryKey.isAccessible()){ restore = true; info.primaryKey.setAccessible(true); }
-					cacheObject(instance, info.primaryKey, info.primaryKey.get(instance));
-					if(restore){ info.primaryKey.setAccessible(false);}
-				} catch (IllegalAccessException e) {
-					throw new DatabaseException("Could not cache object: " + instance);
+					session.conn.setAutoCommit(true);
+				} catch (SQLException e) {
+					throw new DatabaseException(e);
+				}
+			}
+		}
+	}
+
+	private static void rollbackQuietly(Connection conn){
+		try {
+			conn.rollback();
+		} catch (SQLException e) { }
+	}
+
+	private void enqueue(DBClassInfo info, DatabaseObject instance){
+		Batch batch = batches.get();
+		if(batch.queued.contains(instance)){ return; }
+		List<DatabaseObject> queue = batch.queue.get(info);
+		if(queue == null){
+			queue = new ArrayList<DatabaseObject>();
+			batch.queue.put(info, queue);
+		}
+		queue.add(instance);
+		batch.queued.add(instance);
+		batch.count += 1;
+		if(batch.count >= batch.size){ flushBatch(); }
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resolvePending(Batch batch, DatabaseObject target){
+		if(!batch.queued.contains(target)){ return; }
+		DBClassInfo info = target.getInfo();
+		if(batch.queue.containsKey(info)){
+			//(case: write the whole queue the target is in)
+			flushQueue(batch, info);
+		}
+		if(batch.queued.contains(target)){
+			//(case: the target's queue is already being written)
+			batch.queued.remove(target);
+			batch.count -= 1;
+			addRow(info, target);
+			inserted(info, target);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void flushQueue(Batch batch, DBClassInfo info){
+		List<DatabaseObject> rows = batch.queue.remove(info);
+		if(rows == null){ return; }
+		List<DatabaseObject> chunk = new ArrayList<DatabaseObject>();
+		Set<DatabaseObject> inChunk = Collections.newSetFromMap(new IdentityHashMap<DatabaseObject,Boolean>());
+		for(DatabaseObject row : rows){
+			if(!batch.queued.contains(row)){ continue; } //already written out of order
+			//(make sure parents have keys)
+			for(Column parent : info.parentColumns){
+				Object target = parent.get(row);
+				if(target != null && batch.queued.contains(target)){
+					if(inChunk.contains(target)){
+						writeChunk(batch, info, chunk, inChunk);
+					} else {
+						resolvePending(batch, (DatabaseObject) target);
+					}
 				}
 			}
+			if(!batch.queued.contains(row)){ continue; } //written while resolving a cycle
+			//(add to chunk)
+			chunk.add(row);
+			inChunk.add(row);
+			if(chunk.size() >= batch.size){
+				writeChunk(batch, info, chunk, inChunk);
+			}
+		}
+		writeChunk(batch, info, chunk, inChunk);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeChunk(Batch batch, DBClassInfo info, List<DatabaseObject> chunk, Set<DatabaseObject> inChunk){
+		if(chunk.isEmpty()){ return; }
+		addRows(info, chunk);
+		for(DatabaseObject row : chunk){
+			batch.queued.remove(row);
+			batch.count -= 1;
+			inserted(info, row);
 		}
+		chunk.clear();
+		inChunk.clear();
 	}
 
 
-    private void prepareStatement() throws SQLException{
-      if(conn == null) throw new DatabaseException("Querying without an open database connection");
+    private Statement prepareStatement() throws SQLException{
+      if(!isConnected()) throw new DatabaseException("Querying without an open database connection");
 			ensureConnection();
-	    if(lastStatement != null){ lastStatement.close(); }
-	    lastStatement = conn.createStatement();
+			Session session = session();
+	    if(session.lastStatement != null){ session.lastStatement.close(); }
+	    session.lastStatement = session.conn.createStatement();
+	    return session.lastStatement;
     }
 	/**
 	 * Run a raw database query. The raw result of this query
@@ -1534,9 +3735,11 @@ public final class Database implements Decodable{
 	public ResultSet query(String query) {
 		try {
 			ensureConnection();
-    	prepareStatement();
+    	Statement stmt = prepareStatement();
 			if(verbose){ System.out.println(query); }
-      ResultSet rs =  lastStatement.executeQuery(query);
+			long start = System.nanoTime();
+      ResultSet rs =  stmt.executeQuery(query);
+			observe(QueryEvent.Operation.QUERY, null, query, start, 0, 0);
 			if(type == MYSQL){
 				rs.beforeFirst();
 			}
@@ -1548,7 +3751,7 @@ public final class Database implements Decodable{
 
 	public <E extends DatabaseObject> Query<E> statement(Class<E> clazz, String query){
 		try {
-			return new Query<E>( clazz, conn.prepareStatement(query) );
+			return new Query<E>( clazz, conn().prepareStatement(query) );
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
@@ -1562,9 +3765,9 @@ public final class Database implements Decodable{
 	private int update(String query) {
 		try {
 			ensureConnection();
-			prepareStatement();
+			Statement stmt = prepareStatement();
 			if(verbose){ System.out.println(query); }
-			return lastStatement.executeUpdate(query);
+			return stmt.executeUpdate(query);
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
@@ -1609,6 +3812,9 @@ public final class Database implements Decodable{
 			stmt.setObject(slot, new java.sql.Timestamp(((Calendar) obj).getTimeInMillis()));
 		} else if(obj instanceof Class){
 			stmt.setString(slot, ((Class) obj).getName());
+		}else if(obj != null && Codecs.defaultFor(obj.getClass()) != null){
+			//(case: stored with a codec, e.g., primitive arrays)
+			stmt.setBytes(slot, encodeDefault(obj));
 		}else if(obj != null && obj.getClass().isArray()){
 			stmt.setString(slot, Arrays.toString((Object[]) obj));
 		}else{
@@ -1616,6 +3822,11 @@ public final class Database implements Decodable{
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	private static byte[] encodeDefault(Object obj){
+		return ((ColumnCodec<Object>) Codecs.defaultFor(obj.getClass())).encode(obj);
+	}
+
 	private static Object db2obj(Class<?> type, Object o){
 		if(o == null){
 			if(type == boolean.class){
@@ -1717,7 +3928,8 @@ public final class Database implements Decodable{
 		}else{
 			//(native type)
 			if(type == SQLITE){
-				return (E) Utils.cast(o == null ? null : o.toString(), clazz);	//sqlite has no types
+				if(o == null){ return (E) db2obj(clazz, null); }
+				return (E) Utils.cast(o.toString(), clazz);	//sqlite has no types
 			}else{
 				if(o instanceof BigInteger && !BigInteger.class.isAssignableFrom(clazz)){
 					//(case: BigInt to Int)
@@ -1730,6 +3942,9 @@ public final class Database implements Decodable{
 				} else if(o instanceof BigDecimal && BigInteger.class.isAssignableFrom(clazz)){
 					//(case: BigDec to BigInt)
 					o =  ((BigDecimal) o).unscaledValue();
+				} else if(o instanceof BigDecimal && (clazz == long.class || clazz == Long.class)){
+					//(case: BigDec to Long; longs are stored as NUMERIC(20), which a double cannot hold exactly)
+					o = ((BigDecimal) o).longValueExact();
 				} else if(o instanceof BigDecimal && !BigInteger.class.isAssignableFrom(clazz)){
 					//(case: BigDec to Double)
 					o = ((BigDecimal) o).doubleValue();
@@ -1741,23 +3956,43 @@ public final class Database implements Decodable{
 	
 	private <E extends DatabaseObject> E populateObject(DBClassInfo<E> info, ResultSet results, E instance){
 		try {
-			Field[] fields = info.fields;
-			for(int i=0; i<fields.length; i++){
-				Field f = fields[i];
-				if(f.getAnnotation(Parent.class) != null){ continue; }
-				boolean accessible = true;
-				if(!f.isAccessible()){
-					f.setAccessible(true);
-					accessible = false;
-				}
-				f.set(instance, castResult(results, i, f.getType()));
-				if(!accessible){ f.setAccessible(false); }
+			Column[] columns = info.columns;
+			//(the fingerprint of each column as read; see updateRow())
+			Object[] snapshot = trackChanges && info.primaryKey != null ? new Object[columns.length] : null;
+			for(int i=0; i<columns.length; i++){
+				Column column = columns[i];
+				int index = info.resultIndex[i];
+				if(column.kind == Column.PARENT){
+					//(the stored key, whether or not the parent has been fetched)
+					if(snapshot != null){
+						int key = results.getInt(index+1);
+						snapshot[i] = results.wasNull() ? null : key;
+					}
+					continue;
+				}
+				if(column.kind == Column.CODEC){
+					byte[] bytes = results.getBytes(index+1);
+					column.set(instance, bytes == null ? null : column.codec.decode(bytes));
+					if(snapshot != null && bytes != null){ snapshot[i] = fingerprint(bytes); }
+					continue;
+				}
+				Object value = castResult(results, index, column.type);
+				if(snapshot != null && value != null){
+					//(stored forms are fingerprinted as read, rather than encoded again)
+					if(column.kind == Column.DECODABLE){
+						snapshot[i] = fingerprint(results.getString(index+1));
+					}else if(column.kind == Column.SERIALIZABLE){
+						snapshot[i] = fingerprint(results.getBytes(index+1));
+					}else if(column.kind != Column.PRIMARY){
+						snapshot[i] = fingerprint(column, value, false);
+					}
+				}
+				//(a null primitive keeps its default; e.g., a column added after the row was written)
+				if(value == null && column.type.isPrimitive()){ continue; }
+				column.set(instance, value);
 			}
+			instance.snapshot = snapshot;
 			return instance;
-		} catch (IllegalArgumentException e) {
-			throw new DatabaseException(e);
-		} catch (IllegalAccessException e) {
-			throw new DatabaseException(e);
 		} catch (SQLException e) {
 			throw new DatabaseException(e);
 		}
@@ -1796,6 +4031,8 @@ public final class Database implements Decodable{
 			this.type = MYSQL;
 		}else if(strType.equalsIgnoreCase("sqlite")){
 			this.type = SQLITE;
+		}else if(strType.equalsIgnoreCase("h2")){
+			this.type = H2;
 		}else{
 			throw new IllegalArgumentException("Unknown database type: " + strType);
 		}
@@ -1814,6 +4051,13 @@ public final class Database implements Decodable{
 			this.sqlite = new File(encoded);
 			if(!this.sqlite.exists()){ throw new IllegalArgumentException("No such sqlite file: " + encoded); }
 			break;
+		case H2:
+			//(h2://mem:name, or h2://file:path)
+			if(!encoded.startsWith("mem:") && !encoded.startsWith("file:")){
+				throw new IllegalArgumentException("H2 database must be mem:<name> or file:<path>: " + encoded);
+			}
+			this.h2 = encoded;
+			break;
 		}
 		return this;
 	}
@@ -1839,6 +4083,8 @@ public final class Database implements Decodable{
 			return "mysql://"+username+"@"+server+":"+schema;
 		case SQLITE:
 			return "sqlite://" + sqlite.getPath();
+		case H2:
+			return "h2://" + h2;
 		case PSQL:
 			return "postgresql://"+username+"@"+server+":"+schema;
 		default:
@@ -1900,6 +4146,15 @@ public final class Database implements Decodable{
 		Class <?> clazz = (suggestedType != java.lang.Object.class) ? suggestedType : f.getType();
 		if(f.getAnnotation(Parent.class) != null){
 			return "INTEGER";
+		}else if(f.getAnnotation(PrimaryKey.class) == null && Codecs.forField(f, clazz) != null){
+			if(databaseType == PSQL){
+				return "BYTEA";
+			}else if(databaseType == H2){
+				return length < 0 ? "VARBINARY" : "VARBINARY(" + length + ")";  //(H2 reads a BLOB as a Blob, not bytes)
+			}else{
+				if(length < 0){ return "BLOB"; }
+				else{ return "VARBINARY(" + length + ")"; }
+			}
 		}else if(clazz == boolean.class || Boolean.class.isAssignableFrom(clazz)){
 			return "BOOLEAN";
 		}else if(clazz == byte.class || Byte.class.isAssignableFrom(clazz)){
@@ -1913,29 +4168,30 @@ public final class Database implements Decodable{
 		}else if(clazz == long.class || Long.class.isAssignableFrom(clazz)){
 			return "NUMERIC(20)";
 		}else if(clazz == double.class || Double.class.isAssignableFrom(clazz)){
-			return "FLOAT8";
+			return databaseType == H2 ? "DOUBLE PRECISION" : "FLOAT8";
 		}else if(clazz == float.class || Float.class.isAssignableFrom(clazz)){
-			return "FLOAT4";
+			return databaseType == H2 ? "REAL" : "FLOAT4";
 		}else if(Date.class.isAssignableFrom(clazz) || Calendar.class.isAssignableFrom(clazz)){
 			switch(databaseType){
 			case MYSQL:
 				return "DATETIME";
 			case PSQL:
 			case SQLITE:
+			case H2:
 				return "TIMESTAMP";
 			default:
 				throw new DatabaseException("Unknown Database type: " + databaseType);
 			}
 		}else if(String.class.isAssignableFrom(clazz) || isEnum(clazz)){
 			if(length < 0){
-				return "TEXT";
+				return databaseType == H2 ? "VARCHAR" : "TEXT";  //(H2 reads a TEXT as a Clob)
 			}else{
 				return "VARCHAR(" + length + ")";
 			}
 		}else if(clazz.isArray() && String.class.isAssignableFrom(clazz.getComponentType()) ||
 				isEnum(clazz.getComponentType())){
 			if(length < 0){
-				return "TEXT";
+				return databaseType == H2 ? "VARCHAR" : "TEXT";
 			}else{
 				return "VARCHAR(" + length + ")";
 			}
@@ -1944,17 +4200,260 @@ public final class Database implements Decodable{
 		}else if(nonNative(clazz) && Serializable.class.isAssignableFrom(clazz)){
 			if(databaseType == PSQL){
 				return "BYTEA";
+			}else if(databaseType == H2){
+				return length < 0 ? "VARBINARY" : "VARBINARY(" + length + ")";
 			}else{
 				if(length < 0){ return "BLOB"; }
 				else{ return "VARBINARY(" + length + ")"; }
 			}
 		}else if(Decodable.class.isAssignableFrom(clazz)){
-			return "TEXT";
+			return databaseType == H2 ? "VARCHAR" : "TEXT";
 		}else{
 			return "INTEGER"; //default: foreign key / primary key
 		}
 	}
 	
+	/*
+	 * SNAPSHOTS
+	 */
+
+	/**
+	 * Write every object of a class to a read-only, memory mapped {@link Snapshot} file,
+	 * in order of primary key. Values are stored as the database would store them; foreign key
+	 * (@Parent) columns are not stored. Read the objects back with {@link Database#openSnapshot(Class, File)}.
+	 * @param clazz The class whose table to export
+	 * @param file The file to write the snapshot to; it is overwritten if it exists
+	 * @return The number of objects written
+	 */
+	public <E extends DatabaseObject> int exportSnapshot(Class<E> clazz, File file){
+		DBClassInfo<E> info = ensureClassInfo(clazz);
+		if(info.primaryKey == null){ throw new DatabaseException("Cannot snapshot a class without a primary key: " + clazz); }
+		Column[] columns = snapshotColumns(info.fields);
+		String[] names = new String[columns.length];
+		Snapshot.Type[] types = new Snapshot.Type[columns.length];
+		for(int c=0; c<columns.length; c++){
+			names[c] = field2name(columns[c].field);
+			types[c] = snapshotType(columns[c]);
+		}
+		Snapshot.Writer writer = new Snapshot.Writer(file, names, types);
+		try {
+			Iterator<E> iter = stream(QueryEvent.Operation.QUERY, clazz,
+					"SELECT * FROM " + info.table + " ORDER BY \"" + info.primaryKeyName + "\";");
+			Object[] row = new Object[columns.length];
+			while(iter.hasNext()){
+				E obj = iter.next();
+				for(int c=0; c<columns.length; c++){
+					row[c] = toSnapshot(columns[c], types[c], columns[c].get(obj));
+				}
+				writer.addRow(row);
+			}
+		} catch (RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		writer.close();
+		return writer.rows();
+	}
+
+	/**
+	 * Read objects from a snapshot written by {@link Database#exportSnapshot(Class, File)}.
+	 * This needs no database connection.
+	 * @param clazz The class of the objects in the snapshot
+	 * @param file The snapshot file
+	 * @return The snapshot's rows, as objects of the given class
+	 */
+	public static <E extends DatabaseObject> SnapshotTable<E> openSnapshot(Class<E> clazz, File file){
+		return new SnapshotTable<E>(clazz, Snapshot.open(file));
+	}
+
+	/**
+	 * The objects of a class, read from a {@link Snapshot} rather than a database.
+	 * Each call to get() decodes a fresh object from the mapped file. The objects are
+	 * read only and belong to no database, so their foreign key links cannot be refreshed.
+	 * Fields the snapshot has no column for keep their initial values.
+	 */
+	public static final class SnapshotTable<E extends DatabaseObject> implements Closeable {
+		private final Class<E> clazz;
+		private final Snapshot snapshot;
+		private final Column[] columns;
+		private final int[] snapshotColumn;
+		private final int primaryKey;
+		private final MetaClass.ClassFactory<E> factory;
+
+		private SnapshotTable(Class<E> clazz, Snapshot snapshot){
+			this.clazz = clazz;
+			this.snapshot = snapshot;
+			this.columns = snapshotColumns(MetaClass.getFields(clazz));
+			this.snapshotColumn = new int[columns.length];
+			int pk = -1;
+			for(int c=0; c<columns.length; c++){
+				snapshotColumn[c] = snapshot.column(field2name(columns[c].field));
+				if(snapshotColumn[c] >= 0 && snapshot.type(snapshotColumn[c]) != snapshotType(columns[c])){
+					throw new DatabaseException("Column " + snapshot.name(snapshotColumn[c]) + " of " + snapshot.file() + " is " +
+							snapshot.type(snapshotColumn[c]) + " but " + columns[c].field + " is stored as " + snapshotType(columns[c]));
+				}
+				if(columns[c].kind == Column.PRIMARY){ pk = snapshotColumn[c]; }
+			}
+			if(pk < 0){ throw new DatabaseException("Snapshot " + snapshot.file() + " has no primary key for " + clazz); }
+			this.primaryKey = pk;
+			this.factory = new MetaClass(clazz).createFactory(new Class[0]);
+		}
+
+		public Snapshot snapshot(){ return snapshot; }
+		public int size(){ return snapshot.rows(); }
+
+		/**
+		 * @param row The index of the row, in order of primary key
+		 * @return The object in the row
+		 */
+		public E get(int row){
+			E obj = factory.createInstance();
+			for(int c=0; c<columns.length; c++){
+				if(snapshotColumn[c] < 0){ continue; }
+				Object value = fromSnapshot(columns[c], snapshot, row, snapshotColumn[c]);
+				if(value == null && columns[c].type.isPrimitive()){ continue; }
+				columns[c].set(obj, value);
+			}
+			obj.setReadOnly(true);
+			return obj;
+		}
+
+		public int getId(int row){
+			return snapshot.getInt(row, primaryKey);
+		}
+
+		/**
+		 * @param id A primary key
+		 * @return The row holding the object with the key, or -1 if there is none
+		 */
+		public int rowOf(int id){
+			int lo = 0;
+			int hi = snapshot.rows() - 1;
+			while(lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				int key = snapshot.getInt(mid, primaryKey);
+				if(key < id){
+					lo = mid + 1;
+				}else if(key > id){
+					hi = mid - 1;
+				}else{
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param id A primary key
+		 * @return The object with the key, or null if there is none
+		 */
+		public E getById(int id){
+			int row = rowOf(id);
+			return row < 0 ? null : get(row);
+		}
+
+		@Override
+		public void close(){
+			snapshot.close();
+		}
+
+		@Override
+		public String toString(){
+			return clazz.getSimpleName() + " " + snapshot;
+		}
+	}
+
+	/**
+	 * The columns of a class which are stored in a snapshot: every key, but not foreign keys
+	 */
+	private static Column[] snapshotColumns(Field[] fields){
+		List<Column> rtn = new ArrayList<Column>(fields.length);
+		for(Field f : fields){
+			if(f.getAnnotation(PrimaryKey.class) == null && f.getAnnotation(Key.class) == null){ continue; }
+			rtn.add(new Column(f));
+		}
+		return rtn.toArray(new Column[rtn.size()]);
+	}
+
+	private static Snapshot.Type snapshotType(Column column){
+		if(column.kind == Column.PRIMARY){ return Snapshot.Type.INT; }
+		if(column.kind != Column.NATIVE){ return Snapshot.Type.BYTES; }
+		Class<?> type = column.type;
+		if(type == boolean.class || type == Boolean.class){ return Snapshot.Type.BOOLEAN; }
+		if(type == byte.class || type == Byte.class){ return Snapshot.Type.BYTE; }
+		if(type == short.class || type == Short.class){ return Snapshot.Type.SHORT; }
+		if(type == char.class || type == Character.class){ return Snapshot.Type.CHAR; }
+		if(type == int.class || type == Integer.class){ return Snapshot.Type.INT; }
+		if(type == long.class || type == Long.class){ return Snapshot.Type.LONG; }
+		if(type == float.class || type == Float.class){ return Snapshot.Type.FLOAT; }
+		if(type == double.class || type == Double.class){ return Snapshot.Type.DOUBLE; }
+		if(Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)){ return Snapshot.Type.LONG; }
+		return Snapshot.Type.BYTES;
+	}
+
+	private static final java.nio.charset.Charset UTF8 = java.nio.charset.Charset.forName("UTF-8");
+
+	/**
+	 * The value of a field, as stored in a snapshot column of the given type
+	 */
+	private static Object toSnapshot(Column column, Snapshot.Type type, Object value){
+		if(value == null){ return null; }
+		switch(column.kind){
+		case Column.CODEC:
+			return column.codec.encode(value);
+		case Column.SERIALIZABLE:
+			return Utils.obj2bytes((Serializable) value);
+		case Column.DECODABLE:
+			return ((Decodable) value).encode().getBytes(UTF8);
+		default:
+			break;
+		}
+		if(type != Snapshot.Type.BYTES){
+			if(value instanceof Date){ return ((Date) value).getTime(); }
+			if(value instanceof Calendar){ return ((Calendar) value).getTimeInMillis(); }
+			return value;
+		}
+		//(stored as its string form, as obj2db() would)
+		String str;
+		if(value instanceof Class){
+			str = ((Class) value).getName();
+		}else if(value.getClass().isArray()){
+			str = Arrays.toString((Object[]) value);
+		}else{
+			str = value.toString();
+		}
+		return str.getBytes(UTF8);
+	}
+
+	/**
+	 * The value of a field, read from a snapshot column
+	 */
+	private static Object fromSnapshot(Column column, Snapshot snapshot, int row, int index){
+		Object raw = snapshot.get(row, index);
+		if(raw == null){ return null; }
+		switch(column.kind){
+		case Column.CODEC:
+			return column.codec.decode((byte[]) raw);
+		case Column.SERIALIZABLE:
+			return Utils.bytes2obj((byte[]) raw);
+		case Column.DECODABLE:
+			return db2obj(column.type, new String((byte[]) raw, UTF8));
+		default:
+			break;
+		}
+		if(!(raw instanceof byte[])){
+			if(Date.class.isAssignableFrom(column.type)){ return new Date((Long) raw); }
+			if(Calendar.class.isAssignableFrom(column.type)){
+				GregorianCalendar cal = new GregorianCalendar();
+				cal.setTimeInMillis((Long) raw);
+				return cal;
+			}
+			return raw;
+		}
+		String str = new String((byte[]) raw, UTF8);
+		return String.class.equals(column.type) ? str : db2obj(column.type, str);
+	}
+
 	private static final String field2name(Field f){
 		if(f.getAnnotation(Key.class) != null){
 			return f.getAnnotation(Key.class).name();
@@ -7,6 +7,8 @@ import org.goobs.util.MetaClass;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class DatabaseObject {
 
@@ -15,12 +17,15 @@ public abstract class DatabaseObject {
 	protected static final byte FLAG_READ_ONLY = (1<<2);
 	private static final byte FLAG_FLUSHING = (byte) (1<<7);
 	
+	//(read on every flush, from any thread; Class and Database compare by identity)
 	@SuppressWarnings("rawtypes")
-	private static final Map<Class,Map<Database,DBClassInfo>> dbInfo 
-		= new IdentityHashMap<Class,Map<Database,DBClassInfo>>();
+	private static final ConcurrentMap<Class,ConcurrentMap<Database,DBClassInfo>> dbInfo 
+		= new ConcurrentHashMap<Class,ConcurrentMap<Database,DBClassInfo>>();
 	
 	protected Database database;
 	private byte flags = 0x0;
+	//(a fingerprint of each column as last read or written; null if unknown, in which case every column is written)
+	Object[] snapshot = null;
 	
 	private static boolean flag(byte flags, byte flag){
 		return (flag & flags) != 0;
@@ -48,33 +53,37 @@ public abstract class DatabaseObject {
 		//(set flags)
 		this.flags = flags;
 		//(prepared statements)
-		Map<Database,DBClassInfo> m = dbInfo.get(clazz);
-		if(m == null){
-			m = new IdentityHashMap<Database,DBClassInfo>();
-			dbInfo.put(clazz,  m);
-		}
+		ConcurrentMap<Database,DBClassInfo> m = infoFor(clazz);
 		if(!m.containsKey(db)){
-			if(args == null){ throw new DatabaseException("Constructor arguments needed when creating new type (forgot to call Database.registerType?); class=" + clazz); }
-			Class<?>[] types = new Class<?>[args.length];
-			for(int i=0; i<types.length; i++){
-				types[i] = args[i].getClass();
+			//(case: new type; created once, while lookups go on unlocked)
+			synchronized(dbInfo){
+				if(!m.containsKey(db)){
+					if(args == null){ throw new DatabaseException("Constructor arguments needed when creating new type (forgot to call Database.registerType?); class=" + clazz); }
+					Class<?>[] types = new Class<?>[args.length];
+					for(int i=0; i<types.length; i++){
+						types[i] = args[i].getClass();
+					}
+					m.put(db, database.createObjectInfo(this.getClass(), types));
+				}
 			}
-			m.put(db, database.createObjectInfo(this.getClass(), types));
 		}
 		return (E) this;
 	}
 
-
-	protected static void register(Database db, Class clazz, DBClassInfo info){
-		Map<Database,DBClassInfo> m = dbInfo.get(clazz);
+	@SuppressWarnings("rawtypes")
+	private static ConcurrentMap<Database,DBClassInfo> infoFor(Class clazz){
+		ConcurrentMap<Database,DBClassInfo> m = dbInfo.get(clazz);
 		if(m == null){
-			m = new IdentityHashMap<Database,DBClassInfo>();
-			dbInfo.put(clazz,  m);
-		}
-		if(!m.containsKey(db)){
-			m.put(db, info);
+			m = new ConcurrentHashMap<Database,DBClassInfo>();
+			ConcurrentMap<Database,DBClassInfo> race = dbInfo.putIfAbsent(clazz, m);
+			if(race != null){ m = race; }
 		}
+		return m;
+	}
 
+
+	protected static void register(Database db, Class clazz, DBClassInfo info){
+		infoFor(clazz).putIfAbsent(db, info);
 	}
 	@SuppressWarnings("unchecked")
 	protected <E> DBClassInfo<E> getInfo(){
@@ -92,8 +101,8 @@ public abstract class DatabaseObject {
 	}
 
 	protected static void clearInfo(Database database){
-		for(Class clazz : dbInfo.keySet()){
-			dbInfo.get(clazz).remove(database);
+		for(Map<Database,DBClassInfo> m : dbInfo.values()){
+			m.remove(database);
 		}
 	}
 	
@@ -102,6 +111,13 @@ public abstract class DatabaseObject {
 	}
 	protected void setInDatabase(boolean inDB){ setFlag(FLAG_IN_DB, inDB); }
 	public void setReadOnly(boolean readOnly){ setFlag(FLAG_READ_ONLY, readOnly); }
+
+	/**
+	 * Write every column the next time this object is flushed, rather than only those
+	 * which changed since it was read or last written. This is only needed to overwrite
+	 * a row which was changed by other means, such as raw SQL.
+	 */
+	public void markDirty(){ snapshot = null; }
 	
 
 
@@ -275,7 +291,7 @@ public abstract class DatabaseObject {
 		if(flag(flags,FLAG_READ_ONLY)){
 			throw new IllegalStateException("Cannot flush a read-only object");
 		}
-		database.flush(dbInfo.get(this.getClass()).get(database), this);
+		database.flush(this.<DatabaseObject>getInfo(), this);
 		this.postFlush(database);
 	}
 
@@ -10,4 +10,6 @@ public @interface Key {
 	int id() default -1;
 	int length() default -1;
 	Class type() default java.lang.Object.class;
+	/** Store the field as a binary column, with this codec (see {@link Codecs}) */
+	Class<? extends ColumnCodec> codec() default ColumnCodec.class;
 }
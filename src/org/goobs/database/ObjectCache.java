@@ -0,0 +1,87 @@
+package org.goobs.database;
+
+import org.goobs.util.Pair;
+
+import java.lang.ref.SoftReference;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * A bounded identity map from (class, primary key) to database objects.
+ * Entries are evicted least recently used first, and are softly referenced
+ * so that they give way under memory pressure.
+ */
+final class ObjectCache {
+	private final int capacity;
+	private final LinkedHashMap<Pair<Class,Object>,SoftReference<DatabaseObject>> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	ObjectCache(final int capacity){
+		if(capacity <= 0){ throw new IllegalArgumentException("Cache size must be positive: " + capacity); }
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Pair<Class,Object>,SoftReference<DatabaseObject>>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Pair<Class,Object>,SoftReference<DatabaseObject>> eldest) {
+				if(size() > ObjectCache.this.capacity){
+					evictions += 1;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Integral keys are compared by value, whatever their boxed type
+	 */
+	private static Object key(Object primaryKey){
+		if(primaryKey instanceof Integer || primaryKey instanceof Long || primaryKey instanceof Short || primaryKey instanceof Byte){
+			return ((Number) primaryKey).longValue();
+		} else if(primaryKey instanceof BigInteger && ((BigInteger) primaryKey).bitLength() < 64){
+			return ((BigInteger) primaryKey).longValue();
+		}
+		return primaryKey;
+	}
+
+	@SuppressWarnings("unchecked")
+	synchronized <E extends DatabaseObject> E get(Class<E> clazz, Object primaryKey){
+		Pair<Class,Object> k = Pair.make((Class) clazz, key(primaryKey));
+		SoftReference<DatabaseObject> ref = entries.get(k);
+		DatabaseObject obj = ref == null ? null : ref.get();
+		if(obj == null || !obj.isInDatabase()){
+			if(ref != null){ entries.remove(k); }
+			misses += 1;
+			return null;
+		}
+		hits += 1;
+		return (E) obj;
+	}
+
+	synchronized void put(Class<?> clazz, Object primaryKey, DatabaseObject obj){
+		entries.put(Pair.make((Class) clazz, key(primaryKey)), new SoftReference<DatabaseObject>(obj));
+	}
+
+	synchronized void remove(Class<?> clazz, Object primaryKey){
+		entries.remove(Pair.make((Class) clazz, key(primaryKey)));
+	}
+
+	synchronized void removeClass(Class<?> clazz){
+		Iterator<Pair<Class,Object>> iter = entries.keySet().iterator();
+		while(iter.hasNext()){
+			if(iter.next().car() == clazz){ iter.remove(); }
+		}
+	}
+
+	synchronized void clear(){
+		entries.clear();
+	}
+
+	synchronized int size(){ return entries.size(); }
+	int capacity(){ return capacity; }
+	synchronized long hits(){ return hits; }
+	synchronized long misses(){ return misses; }
+	synchronized long evictions(){ return evictions; }
+}
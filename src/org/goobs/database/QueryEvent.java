@@ -0,0 +1,63 @@
+package org.goobs.database;
+
+/**
+ * A single statement run by a database, as seen by a {@link QueryListener}.
+ * The time of a query includes reading its results, but not building objects from them.
+ * The results of a query which is iterated over are reported once the iterator is exhausted or closed.
+ */
+public final class QueryEvent {
+	/**
+	 * The kinds of statement a database runs
+	 */
+	public static enum Operation {
+		/** Inserting new objects */
+		CREATE,
+		/** Writing objects already in the database */
+		UPDATE,
+		/** Deleting objects */
+		DELETE,
+		/** Looking up objects by their primary key */
+		KEY_SEARCH,
+		/** Looking up objects by another key, or a foreign key link */
+		FIND_BY_INDEX,
+		/** Any other query: a where clause, or raw SQL */
+		QUERY
+	}
+
+	private final Operation operation;
+	private final Class<?> type;
+	private final String table;
+	private final Object statement;
+	private final long nanos;
+	private final int rowsRead;
+	private final int rowsWritten;
+
+	QueryEvent(Operation operation, Class<?> type, String table, Object statement, long nanos, int rowsRead, int rowsWritten){
+		this.operation = operation;
+		this.type = type;
+		this.table = table;
+		this.statement = statement;
+		this.nanos = nanos;
+		this.rowsRead = rowsRead;
+		this.rowsWritten = rowsWritten;
+	}
+
+	public Operation getOperation(){ return operation; }
+	/** The class of the objects read or written, or null for raw SQL */
+	public Class<?> getType(){ return type; }
+	/** The table of the objects read or written, or null for raw SQL */
+	public String getTable(){ return table; }
+	/** The statement, as the driver prints it; this is computed on demand */
+	public String getStatement(){ return String.valueOf(statement); }
+	public long getNanos(){ return nanos; }
+	public double getMillis(){ return ((double) nanos) / 1000000.0; }
+	/** The number of rows returned; not counted for raw SQL queries */
+	public int getRowsRead(){ return rowsRead; }
+	public int getRowsWritten(){ return rowsWritten; }
+
+	@Override
+	public String toString(){
+		return operation + (type == null ? "" : " " + type.getSimpleName()) + " (" + (nanos / 1000000) + "ms, "
+				+ rowsRead + " read, " + rowsWritten + " written): " + getStatement();
+	}
+}
@@ -0,0 +1,14 @@
+package org.goobs.database;
+
+/**
+ * Observes the statements a database runs; see {@link Database#addQueryListener(QueryListener)}.
+ * Listeners are called on the thread which ran the statement, once it has completed,
+ * so they should be quick, and thread safe if the database is pooled.
+ * {@link QueryMetrics} is a listener which aggregates what it observes.
+ */
+public interface QueryListener {
+	/**
+	 * @param event The statement which was run, and how long it took
+	 */
+	public void onQuery(QueryEvent event);
+}
@@ -0,0 +1,203 @@
+package org.goobs.database;
+
+import org.goobs.net.CanJSON;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link QueryListener} which keeps, for each class and {@link QueryEvent.Operation},
+ * the number of statements run, their total and percentile latency, and the rows they read and wrote.
+ * Register it with {@link Database#addQueryListener(QueryListener)}, and read it with
+ * {@link QueryMetrics#getStats()} or {@link QueryMetrics#toJSON()}.
+ * Latency percentiles come from a logarithmic histogram, and are accurate to within 25%.
+ */
+public class QueryMetrics implements QueryListener, CanJSON {
+	/**
+	 * The statements of one operation on one class
+	 */
+	public static final class Stats {
+		//(four buckets per power of two; bucket i>=4 starts at (4 + i%4) << (i/4 - 1))
+		private static final int BUCKETS = 248;
+
+		private final Class<?> type;
+		private final String table;
+		private final QueryEvent.Operation operation;
+		private long count = 0;
+		private long nanos = 0;
+		private long maxNanos = 0;
+		private long rowsRead = 0;
+		private long rowsWritten = 0;
+		private long[] histogram;
+
+		private Stats(Class<?> type, String table, QueryEvent.Operation operation, long[] histogram){
+			this.type = type;
+			this.table = table;
+			this.operation = operation;
+			this.histogram = histogram;
+		}
+
+		private static int bucket(long nanos){
+			if(nanos < 4){ return (int) Math.max(nanos, 0); }
+			int exp = 63 - Long.numberOfLeadingZeros(nanos);
+			return 4 * (exp - 1) + (int) ((nanos >>> (exp - 2)) & 3);
+		}
+
+		private static long upperBound(int bucket){
+			if(bucket < 3){ return bucket; }
+			if(bucket >= BUCKETS - 1){ return Long.MAX_VALUE; }
+			int next = bucket + 1;
+			return ((4L + next % 4) << (next / 4 - 1)) - 1;
+		}
+
+		private synchronized void add(QueryEvent event){
+			count += 1;
+			nanos += event.getNanos();
+			maxNanos = Math.max(maxNanos, event.getNanos());
+			rowsRead += event.getRowsRead();
+			rowsWritten += event.getRowsWritten();
+			histogram[bucket(event.getNanos())] += 1;
+		}
+
+		private synchronized Stats copy(){
+			Stats rtn = new Stats(type, table, operation, histogram.clone());
+			rtn.count = count;
+			rtn.nanos = nanos;
+			rtn.maxNanos = maxNanos;
+			rtn.rowsRead = rowsRead;
+			rtn.rowsWritten = rowsWritten;
+			return rtn;
+		}
+
+		/** The class queried, or null for raw SQL */
+		public Class<?> getType(){ return type; }
+		public String getTable(){ return table; }
+		public QueryEvent.Operation getOperation(){ return operation; }
+		public synchronized long getCount(){ return count; }
+		public synchronized long getRowsRead(){ return rowsRead; }
+		public synchronized long getRowsWritten(){ return rowsWritten; }
+		public synchronized double getTotalMillis(){ return ((double) nanos) / 1000000.0; }
+		public synchronized double getMeanMillis(){ return count == 0 ? 0.0 : ((double) nanos) / ((double) count) / 1000000.0; }
+		public synchronized double getMaxMillis(){ return ((double) maxNanos) / 1000000.0; }
+
+		/**
+		 * @param percentile The percentile to get, between 0 and 100
+		 * @return The latency, in milliseconds, which this percentage of statements took at most
+		 */
+		public synchronized double getPercentileMillis(double percentile){
+			if(percentile < 0.0 || percentile > 100.0){ throw new IllegalArgumentException("Not a percentile: " + percentile); }
+			if(count == 0){ return 0.0; }
+			long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * ((double) count)));
+			long seen = 0;
+			for(int i=0; i<histogram.length; i++){
+				seen += histogram[i];
+				if(seen >= rank){ return ((double) Math.min(upperBound(i), maxNanos)) / 1000000.0; }
+			}
+			return getMaxMillis();
+		}
+
+		@Override
+		public String toString(){
+			return operation + (type == null ? "" : " " + type.getSimpleName()) + ": " + getCount() + " statements in "
+					+ ((long) getTotalMillis()) + "ms (p50 " + getPercentileMillis(50) + "ms; p99 " + getPercentileMillis(99) + "ms)";
+		}
+	}
+
+	private final ConcurrentMap<String,Stats> stats = new ConcurrentHashMap<String,Stats>();
+
+	@Override
+	public void onQuery(QueryEvent event){
+		String key = (event.getType() == null ? "" : event.getType().getName()) + "/" + event.getOperation();
+		Stats entry = stats.get(key);
+		if(entry == null){
+			Stats created = new Stats(event.getType(), event.getTable(), event.getOperation(), new long[Stats.BUCKETS]);
+			entry = stats.putIfAbsent(key, created);
+			if(entry == null){ entry = created; }
+		}
+		entry.add(event);
+	}
+
+	/**
+	 * @return A copy of the statistics for every class and operation seen, most total time first
+	 */
+	public List<Stats> getStats(){
+		List<Stats> rtn = new ArrayList<Stats>(stats.size());
+		for(Stats s : stats.values()){ rtn.add(s.copy()); }
+		Collections.sort(rtn, new Comparator<Stats>(){
+			@Override
+			public int compare(Stats a, Stats b){
+				return a.nanos < b.nanos ? 1 : (a.nanos > b.nanos ? -1 : 0);
+			}
+		});
+		return rtn;
+	}
+
+	/**
+	 * @param type The class queried, or null for raw SQL
+	 * @param operation The operation
+	 * @return A copy of the statistics for the class and operation, or null if none were seen
+	 */
+	public Stats getStats(Class<?> type, QueryEvent.Operation operation){
+		Stats entry = stats.get((type == null ? "" : type.getName()) + "/" + operation);
+		return entry == null ? null : entry.copy();
+	}
+
+	public void clear(){
+		stats.clear();
+	}
+
+	/**
+	 * @return The statistics as a JSON object, most total time first
+	 */
+	@Override
+	public String toJSON(){
+		StringBuilder b = new StringBuilder();
+		b.append("{\"queries\":[");
+		boolean first = true;
+		for(Stats s : getStats()){
+			if(!first){ b.append(","); }
+			first = false;
+			b.append("\n  {\"class\":").append(quote(s.type == null ? null : s.type.getName()))
+			.append(",\"table\":").append(quote(s.table))
+			.append(",\"operation\":").append(quote(s.operation.name()))
+			.append(",\"count\":").append(s.count)
+			.append(",\"rowsRead\":").append(s.rowsRead)
+			.append(",\"rowsWritten\":").append(s.rowsWritten)
+			.append(",\"totalMillis\":").append(s.getTotalMillis())
+			.append(",\"meanMillis\":").append(s.getMeanMillis())
+			.append(",\"p50Millis\":").append(s.getPercentileMillis(50))
+			.append(",\"p90Millis\":").append(s.getPercentileMillis(90))
+			.append(",\"p99Millis\":").append(s.getPercentileMillis(99))
+			.append(",\"maxMillis\":").append(s.getMaxMillis())
+			.append("}");
+		}
+		b.append("\n]}");
+		return b.toString();
+	}
+
+	private static String quote(String str){
+		if(str == null){ return "null"; }
+		StringBuilder b = new StringBuilder(str.length() + 2);
+		b.append('"');
+		for(int i=0; i<str.length(); i++){
+			char c = str.charAt(i);
+			if(c == '"' || c == '\\'){
+				b.append('\\').append(c);
+			}else if(c < 0x20){
+				b.append(String.format("\\u%04x", (int) c));
+			}else{
+				b.append(c);
+			}
+		}
+		b.append('"');
+		return b.toString();
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder b = new StringBuilder();
+		for(Stats s : getStats()){ b.append(s).append("\n"); }
+		return b.toString();
+	}
+}
@@ -0,0 +1,59 @@
+package org.goobs.database;
+
+import java.util.*;
+
+/**
+ * Counts and times the lookups made on each (table, column set),
+ * so that the database can suggest which indices are worth having.
+ */
+final class QueryStatistics {
+	static final class Entry {
+		final String table;
+		final String primaryKey;  // of the table; null if it has none
+		final String[] columns;
+		long count = 0;
+		long nanos = 0;
+		private Entry(String table, String primaryKey, String[] columns){
+			this.table = table;
+			this.primaryKey = primaryKey;
+			this.columns = columns;
+		}
+	}
+
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+	synchronized void record(String table, String primaryKey, String[] columns, long nanos){
+		String key = table.toLowerCase() + Arrays.toString(columns).toLowerCase();
+		Entry entry = entries.get(key);
+		if(entry == null){
+			entry = new Entry(table, primaryKey, columns);
+			entries.put(key, entry);
+		}
+		entry.count += 1;
+		entry.nanos += nanos;
+	}
+
+	/**
+	 * A copy of every entry, most total time first
+	 */
+	synchronized List<Entry> snapshot(){
+		List<Entry> rtn = new ArrayList<Entry>(entries.size());
+		for(Entry e : entries.values()){
+			Entry copy = new Entry(e.table, e.primaryKey, e.columns);
+			copy.count = e.count;
+			copy.nanos = e.nanos;
+			rtn.add(copy);
+		}
+		Collections.sort(rtn, new Comparator<Entry>(){
+			@Override
+			public int compare(Entry a, Entry b){
+				return a.nanos < b.nanos ? 1 : (a.nanos > b.nanos ? -1 : 0);
+			}
+		});
+		return rtn;
+	}
+
+	synchronized void clear(){
+		entries.clear();
+	}
+}
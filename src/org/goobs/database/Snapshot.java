@@ -0,0 +1,412 @@
+package org.goobs.database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A read-only, columnar table in a file, which is memory mapped rather than read.
+ * Opening a snapshot costs a handful of system calls regardless of its size, and
+ * processes reading the same snapshot share its pages through the OS cache.
+ * Each column is stored contiguously: a bitmap of null rows, then either fixed width
+ * values, or (for {@link Type#BYTES}) row offsets followed by the bytes of every row.
+ * Snapshots are written with a {@link Snapshot.Writer}; {@link Database#exportSnapshot(Class, File)}
+ * writes one from a table, and {@link Database#openSnapshot(Class, File)} reads objects back from it.
+ * Reading is thread safe.
+ */
+public final class Snapshot implements Closeable {
+	private static final long MAGIC = 0x4a454c49534e5031L;  // "JELISNP1"
+	//(variable length data is mapped in windows of this size, as a single mapping is limited to 2GB)
+	private static final long SEGMENT = 1L << 30;
+
+	/**
+	 * The type of a column
+	 */
+	public static enum Type {
+		BOOLEAN(1), BYTE(1), SHORT(2), CHAR(2), INT(4), LONG(8), FLOAT(4), DOUBLE(8),
+		/** Variable length bytes; e.g., strings, or encoded objects */
+		BYTES(8);
+		private final int width;
+		private Type(int width){ this.width = width; }
+	}
+
+	private static long align(long offset){
+		return (offset + 7) & ~7L;
+	}
+
+	private static int bitmapLength(int rows){
+		return (rows + 7) / 8;
+	}
+
+	/*
+	 * WRITER
+	 */
+
+	/**
+	 * Writes a snapshot a row at a time. Each column is buffered in a temporary file next to the
+	 * snapshot, so that memory use does not grow with the size of the table; the snapshot is
+	 * assembled when the writer is closed.
+	 */
+	public static final class Writer implements Closeable {
+		private final File file;
+		private final String[] names;
+		private final Type[] types;
+		private final File[] valueFiles;
+		private final DataOutputStream[] values;
+		private final File[] dataFiles;
+		private final OutputStream[] data;
+		private final long[] dataLength;
+		private final BitSet[] nulls;
+		private int rows = 0;
+		private boolean closed = false;
+
+		public Writer(File file, String[] names, Type[] types){
+			if(names.length != types.length){ throw new IllegalArgumentException("Column names and types differ in length"); }
+			this.file = file;
+			this.names = names.clone();
+			this.types = types.clone();
+			this.valueFiles = new File[names.length];
+			this.values = new DataOutputStream[names.length];
+			this.dataFiles = new File[names.length];
+			this.data = new OutputStream[names.length];
+			this.dataLength = new long[names.length];
+			this.nulls = new BitSet[names.length];
+			try {
+				File dir = file.getAbsoluteFile().getParentFile();
+				for(int c=0; c<names.length; c++){
+					nulls[c] = new BitSet();
+					valueFiles[c] = File.createTempFile(file.getName() + ".", ".col", dir);
+					values[c] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(valueFiles[c])));
+					if(types[c] == Type.BYTES){
+						dataFiles[c] = File.createTempFile(file.getName() + ".", ".dat", dir);
+						data[c] = new BufferedOutputStream(new FileOutputStream(dataFiles[c]));
+						values[c].writeLong(0L);
+					}
+				}
+			} catch (IOException e) {
+				discard();
+				throw new DatabaseException(e);
+			}
+		}
+
+		/**
+		 * Add a row to the snapshot.
+		 * @param row A boxed value for each column (e.g., an Integer for an INT column, or a byte[] for a BYTES column),
+		 * or null. Nulls in primitive columns read back as zero.
+		 */
+		public void addRow(Object... row){
+			if(closed){ throw new IllegalStateException("Writer is closed"); }
+			if(row.length != types.length){ throw new IllegalArgumentException("Expected " + types.length + " columns; got " + row.length); }
+			try {
+				for(int c=0; c<types.length; c++){
+					Object value = row[c];
+					if(value == null){ nulls[c].set(rows); }
+					DataOutputStream out = values[c];
+					switch(types[c]){
+					case BOOLEAN: out.writeBoolean(value != null && (Boolean) value); break;
+					case BYTE: out.writeByte(value == null ? 0 : (Byte) value); break;
+					case SHORT: out.writeShort(value == null ? 0 : (Short) value); break;
+					case CHAR: out.writeChar(value == null ? 0 : (Character) value); break;
+					case INT: out.writeInt(value == null ? 0 : (Integer) value); break;
+					case LONG: out.writeLong(value == null ? 0L : (Long) value); break;
+					case FLOAT: out.writeFloat(value == null ? 0.0f : (Float) value); break;
+					case DOUBLE: out.writeDouble(value == null ? 0.0 : (Double) value); break;
+					case BYTES:
+						if(value != null){
+							byte[] bytes = (byte[]) value;
+							data[c].write(bytes);
+							dataLength[c] += bytes.length;
+						}
+						out.writeLong(dataLength[c]);
+						break;
+					default: throw new IllegalStateException("Unknown type: " + types[c]);
+					}
+				}
+			} catch (ClassCastException e) {
+				throw new IllegalArgumentException("Value of the wrong type for column: " + e.getMessage());
+			} catch (IOException e) {
+				throw new DatabaseException(e);
+			}
+			rows += 1;
+		}
+
+		public int rows(){ return rows; }
+
+		/**
+		 * Give up on the snapshot: remove the temporary files, and write nothing
+		 */
+		public void abort(){
+			if(closed){ return; }
+			closed = true;
+			discard();
+		}
+
+		private byte[] header(long[] offsets){
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeLong(MAGIC);
+				out.writeInt(rows);
+				out.writeInt(names.length);
+				for(int c=0; c<names.length; c++){
+					out.writeUTF(names[c]);
+					out.writeByte(types[c].ordinal());
+					out.writeLong(offsets[c]);
+				}
+				out.close();
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new DatabaseException(e);
+			}
+		}
+
+		/**
+		 * Write the snapshot file, and remove the temporary files
+		 */
+		@Override
+		public void close(){
+			if(closed){ return; }
+			closed = true;
+			RandomAccessFile out = null;
+			try {
+				for(int c=0; c<names.length; c++){
+					values[c].close();
+					if(data[c] != null){ data[c].close(); }
+				}
+				//--Lay Out Columns
+				long[] offsets = new long[names.length];
+				long position = align(header(offsets).length);
+				for(int c=0; c<names.length; c++){
+					offsets[c] = position;
+					position = align(position + bitmapLength(rows));
+					position = align(position + valueFiles[c].length());
+					if(dataFiles[c] != null){ position = align(position + dataFiles[c].length()); }
+				}
+				//--Write
+				out = new RandomAccessFile(file, "rw");
+				out.setLength(0);
+				out.setLength(position);  //(transferFrom() will not write past the end of a file)
+				out.write(header(offsets));
+				FileChannel channel = out.getChannel();
+				for(int c=0; c<names.length; c++){
+					byte[] bitmap = new byte[bitmapLength(rows)];
+					byte[] set = nulls[c].toByteArray();
+					System.arraycopy(set, 0, bitmap, 0, set.length);
+					out.seek(offsets[c]);
+					out.write(bitmap);
+					out.seek(align(out.getFilePointer()));
+					copy(valueFiles[c], channel, out.getFilePointer());
+					if(dataFiles[c] != null){
+						out.seek(align(out.getFilePointer() + valueFiles[c].length()));
+						copy(dataFiles[c], channel, out.getFilePointer());
+					}
+				}
+			} catch (IOException e) {
+				throw new DatabaseException(e);
+			} finally {
+				if(out != null){
+					try { out.close(); } catch (IOException ignored) { }
+				}
+				discard();
+			}
+		}
+
+		private static void copy(File from, FileChannel to, long position) throws IOException{
+			FileInputStream in = new FileInputStream(from);
+			try {
+				FileChannel source = in.getChannel();
+				long length = source.size();
+				long copied = 0;
+				while(copied < length){
+					long n = to.transferFrom(source, position + copied, length - copied);
+					if(n <= 0){ throw new IOException("Could not copy " + from); }
+					copied += n;
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private void discard(){
+			for(int c=0; c<names.length; c++){
+				try {
+					if(values[c] != null){ values[c].close(); }
+					if(data[c] != null){ data[c].close(); }
+				} catch (IOException ignored) { }
+				if(valueFiles[c] != null && !valueFiles[c].delete()){ valueFiles[c].deleteOnExit(); }
+				if(dataFiles[c] != null && !dataFiles[c].delete()){ dataFiles[c].deleteOnExit(); }
+			}
+		}
+	}
+
+	/*
+	 * READER
+	 */
+	private final File file;
+	private final RandomAccessFile raf;
+	private final int rows;
+	private final String[] names;
+	private final Type[] types;
+	//(per column: the null bitmap and values, and for BYTES columns the data, in windows of SEGMENT bytes)
+	private final MappedByteBuffer[] values;
+	private final int[] valuesStart;
+	private final MappedByteBuffer[][] data;
+
+	private Snapshot(File file){
+		this.file = file;
+		try {
+			this.raf = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			throw new DatabaseException("No such snapshot: " + file);
+		}
+		try {
+			FileChannel channel = raf.getChannel();
+			//--Read Header
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			long[] offsets;
+			try {
+				if(in.readLong() != MAGIC){ throw new DatabaseException("Not a snapshot: " + file); }
+				this.rows = in.readInt();
+				int columns = in.readInt();
+				this.names = new String[columns];
+				this.types = new Type[columns];
+				offsets = new long[columns];
+				for(int c=0; c<columns; c++){
+					names[c] = in.readUTF();
+					types[c] = Type.values()[in.readByte()];
+					offsets[c] = in.readLong();
+				}
+			} finally {
+				in.close();
+			}
+			//--Map Columns
+			this.values = new MappedByteBuffer[names.length];
+			this.valuesStart = new int[names.length];
+			this.data = new MappedByteBuffer[names.length][];
+			for(int c=0; c<names.length; c++){
+				int bitmap = (int) align(bitmapLength(rows));
+				long width = ((long) rows + (types[c] == Type.BYTES ? 1 : 0)) * types[c].width;
+				if(bitmap + width > Integer.MAX_VALUE){ throw new DatabaseException("Too many rows to map column " + names[c] + ": " + rows); }
+				values[c] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[c], bitmap + width);
+				valuesStart[c] = bitmap;
+				if(types[c] == Type.BYTES){
+					long start = align(offsets[c] + bitmap + width);
+					long length = values[c].getLong(bitmap + 8 * rows);
+					MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT - 1) / SEGMENT)];
+					for(int s=0; s<segments.length; s++){
+						segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start + s * SEGMENT, Math.min(SEGMENT, length - s * SEGMENT));
+					}
+					data[c] = segments;
+				}
+			}
+		} catch (IOException e) {
+			try { raf.close(); } catch (IOException ignored) { }
+			throw new DatabaseException(e);
+		}
+	}
+
+	/**
+	 * Map a snapshot file
+	 * @param file A file written by a {@link Snapshot.Writer}
+	 * @return The snapshot
+	 */
+	public static Snapshot open(File file){
+		return new Snapshot(file);
+	}
+
+	public File file(){ return file; }
+	public int rows(){ return rows; }
+	public int columns(){ return names.length; }
+	public String name(int column){ return names[column]; }
+	public Type type(int column){ return types[column]; }
+
+	/**
+	 * @param name The name of a column, case insensitive
+	 * @return The index of the column, or -1 if there is no such column
+	 */
+	public int column(String name){
+		for(int c=0; c<names.length; c++){
+			if(names[c].equalsIgnoreCase(name)){ return c; }
+		}
+		return -1;
+	}
+
+	private int position(int row, int column, Type type){
+		if(row < 0 || row >= rows){ throw new IndexOutOfBoundsException("Row " + row + " of " + rows); }
+		if(types[column] != type){ throw new IllegalArgumentException("Column " + names[column] + " is " + types[column] + ", not " + type); }
+		return valuesStart[column] + row * type.width;
+	}
+
+	public boolean isNull(int row, int column){
+		if(row < 0 || row >= rows){ throw new IndexOutOfBoundsException("Row " + row + " of " + rows); }
+		return (values[column].get(row >>> 3) & (1 << (row & 7))) != 0;
+	}
+
+	public boolean getBoolean(int row, int column){ return values[column].get(position(row, column, Type.BOOLEAN)) != 0; }
+	public byte getByte(int row, int column){ return values[column].get(position(row, column, Type.BYTE)); }
+	public short getShort(int row, int column){ return values[column].getShort(position(row, column, Type.SHORT)); }
+	public char getChar(int row, int column){ return values[column].getChar(position(row, column, Type.CHAR)); }
+	public int getInt(int row, int column){ return values[column].getInt(position(row, column, Type.INT)); }
+	public long getLong(int row, int column){ return values[column].getLong(position(row, column, Type.LONG)); }
+	public float getFloat(int row, int column){ return values[column].getFloat(position(row, column, Type.FLOAT)); }
+	public double getDouble(int row, int column){ return values[column].getDouble(position(row, column, Type.DOUBLE)); }
+
+	/**
+	 * @return A copy of the bytes in a BYTES column, or null if the value is null
+	 */
+	public byte[] getBytes(int row, int column){
+		int position = position(row, column, Type.BYTES);
+		if(isNull(row, column)){ return null; }
+		long start = values[column].getLong(position);
+		long end = values[column].getLong(position + 8);
+		byte[] rtn = new byte[(int) (end - start)];
+		int copied = 0;
+		while(copied < rtn.length){
+			long offset = start + copied;
+			ByteBuffer segment = data[column][(int) (offset / SEGMENT)].duplicate();
+			segment.position((int) (offset % SEGMENT));
+			int n = Math.min(rtn.length - copied, segment.remaining());
+			segment.get(rtn, copied, n);
+			copied += n;
+		}
+		return rtn;
+	}
+
+	/**
+	 * @return The value of a column, boxed; null if it is null
+	 */
+	public Object get(int row, int column){
+		if(isNull(row, column)){ return null; }
+		switch(types[column]){
+		case BOOLEAN: return getBoolean(row, column);
+		case BYTE: return getByte(row, column);
+		case SHORT: return getShort(row, column);
+		case CHAR: return getChar(row, column);
+		case INT: return getInt(row, column);
+		case LONG: return getLong(row, column);
+		case FLOAT: return getFloat(row, column);
+		case DOUBLE: return getDouble(row, column);
+		case BYTES: return getBytes(row, column);
+		default: throw new IllegalStateException("Unknown type: " + types[column]);
+		}
+	}
+
+	/**
+	 * Release the file. The mappings themselves are released once they are garbage collected.
+	 */
+	@Override
+	public void close(){
+		try {
+			raf.close();
+		} catch (IOException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "Snapshot(" + file + "; " + rows + " rows, " + names.length + " columns)";
+	}
+}
@@ -0,0 +1,94 @@
+package org.goobs.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A bounded cache of prepared statements on a single connection, keyed by their SQL text.
+ * Statements are borrowed for the duration of a query and given back afterwards,
+ * so that two open queries never share a statement; the least recently used
+ * idle statements are closed once the cache is full.
+ */
+final class StatementCache {
+	private final Connection conn;
+	private final int capacity;
+	private final LinkedHashMap<String,PreparedStatement> idle;
+	private long hits = 0;
+	private long misses = 0;
+	private boolean closed = false;
+
+	StatementCache(Connection conn, final int capacity){
+		if(capacity <= 0){ throw new IllegalArgumentException("Statement cache size must be positive: " + capacity); }
+		this.conn = conn;
+		this.capacity = capacity;
+		this.idle = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+				if(size() > StatementCache.this.capacity){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	Connection connection(){ return conn; }
+
+	/**
+	 * Take a statement for the given SQL, preparing one if none is idle
+	 */
+	synchronized PreparedStatement borrow(String sql) throws SQLException{
+		PreparedStatement stmt = idle.remove(sql);
+		if(stmt != null){
+			hits += 1;
+			return stmt;
+		}
+		misses += 1;
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * Return a borrowed statement to the cache, closing it if another is already idle for the same SQL
+	 */
+	synchronized void giveBack(String sql, PreparedStatement stmt){
+		if(closed){
+			closeQuietly(stmt);
+			return;
+		}
+		try {
+			stmt.clearParameters();
+		} catch (SQLException e) {
+			//(case: the statement is closed, or otherwise unusable)
+			closeQuietly(stmt);
+			return;
+		}
+		if(idle.containsKey(sql)){
+			closeQuietly(stmt);
+		} else {
+			idle.put(sql, stmt);
+		}
+	}
+
+	/**
+	 * Close every idle statement. Borrowed statements are closed as they are given back.
+	 */
+	synchronized void close(){
+		closed = true;
+		for(PreparedStatement stmt : idle.values()){ closeQuietly(stmt); }
+		idle.clear();
+	}
+
+	synchronized int size(){ return idle.size(); }
+	synchronized long hits(){ return hits; }
+	synchronized long misses(){ return misses; }
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try {
+			stmt.close();
+		} catch (SQLException e) { }
+	}
+}
@@ -58,6 +58,8 @@ public class Execution {
 	protected static String execDir;
 	@Option(name="numThreads", gloss="Number of threads on machine")
 	public static int numThreads = Runtime.getRuntime().availableProcessors();
+	@Option(name="execPooled", gloss="Give each thread its own connection to the output database")
+	private static boolean pooledOutput = false;
 	@Option(name="host", gloss="N of computer we are running on")
 	public static String host = "(unknown)";
 	@Option(name="defaultExitStatus", gloss="default exit status message")
@@ -489,6 +491,10 @@ public class Execution {
 	protected static final void initDatabase(Class<?>[] classes, Map<String,String> options, Map<String,Field> optionFields){
 		if(outputDB == null){ return; }
 		//--Init Database
+		if(pooledOutput && !outputDB.isLite() && numThreads > 1){
+			//(a connection per worker, plus the main and logging threads)
+			outputDB.setPoolSize(numThreads + 2);
+		}
 		outputDB.connect();
 		DBResultLogger logger = new DBResultLogger(outputDB, runName);
 		Execution.logger = logger;
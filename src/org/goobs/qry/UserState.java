@@ -89,7 +89,7 @@ public class UserState extends DatabaseObject {
 		//--Ensure Iterator
 		if(this.runIterator == null){
 			this.runIterator = this.database.getObjectsWhere(DBResultLogger.Run.class,
-					"rid >= " + this.minRid + " AND rid < " + this.maxRid + " ORDER BY rid DESC");
+					"rid >= ? AND rid < ? ORDER BY rid DESC", this.minRid, this.maxRid);
 		}
 		if(!this.runIterator.hasNext()){
 			this.runIterator = null;
@@ -0,0 +1,721 @@
+package org.goobs.scheme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a Scheme expression, once, into a tree of executable nodes.
+ * Special forms are resolved when the expression is analyzed rather than every time it is run,
+ * and each variable is given a lexical address: the number of frames to walk up
+ * from the running environment, and its slot in that frame.
+ * The frames of a compiled expression mirror its lambdas; the outermost frame is the
+ * environment the expression was analyzed against, where any free variable is resolved.
+ * Free variables of the global environment are interned, and looked up directly.
+ * Compiled expressions are run by a {@link Machine}.
+ */
+class Analyzer {
+
+	/**
+	 * A pre-analyzed expression, run by a {@link Machine}
+	 */
+	protected static abstract class Node {
+		/**
+		 * Evaluate this node: either produce its value, or push a continuation and
+		 * evaluate a subexpression
+		 */
+		protected abstract void exec(Machine m, Environment env);
+		/**
+		 * Continue evaluating this node, given the value of the subexpression it was waiting on
+		 */
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			throw new SchemeException("[INTERNAL]: cannot resume " + getClass().getSimpleName());
+		}
+		/**
+		 * @return The call being evaluated when this continuation was pushed, if any; for error messages
+		 */
+		protected ScmObject pendingCall(Machine.Frame k){
+			return null;
+		}
+	}
+
+	/**
+	 * The compiled parameter list and body of a lambda expression
+	 */
+	protected static class Procedure {
+		protected final ScmObject[] names;		//(the slots of a call's frame)
+		protected final int[] params;			//(the slot of each parameter; -1 if not a binding)
+		protected final boolean hasRest;
+		protected final int rest;				//(the slot of the rest parameter; -1 if not a binding)
+		protected final boolean illDefined;
+		protected final Node body;
+		private Procedure(ScmObject[] names, int[] params, boolean hasRest, int rest, boolean illDefined, Node body){
+			this.names = names;
+			this.params = params;
+			this.hasRest = hasRest;
+			this.rest = rest;
+			this.illDefined = illDefined;
+			this.body = body;
+		}
+	}
+
+	//--Scopes
+	//(the variables bound by a lambda, in slot order: its parameters and its internal definitions)
+	private static class Scope {
+		private final Scope parent;
+		private final List<ScmObject> names;
+		private Scope(Scope parent, List<ScmObject> names){
+			this.parent = parent;
+			this.names = names;
+		}
+	}
+
+	//(the slot of a name, added if it is new)
+	private static int slot(List<ScmObject> names, ScmObject name){
+		int slot = names.indexOf(name);
+		if(slot < 0){
+			slot = names.size();
+			names.add(name);
+		}
+		return slot;
+	}
+
+	private static final ScmObject DOT = new ScmObject(".", ScmObject.BINDING);
+
+	private static int depth(ScmObject name, Scope scope){
+		int depth = 0;
+		while(scope != null){
+			if(scope.names.contains(name)){
+				return depth;
+			}
+			scope = scope.parent;
+			depth += 1;
+		}
+		return depth;
+	}
+
+	private static Variable variable(ScmObject name, Scope scope, Environment env){
+		int depth = 0;
+		while(scope != null){
+			int slot = scope.names.indexOf(name);
+			if(slot >= 0){
+				return new LocalRef(name, depth, slot);
+			}
+			scope = scope.parent;
+			depth += 1;
+		}
+		if(env.isGlobal()){
+			return new GlobalRef(name, env.intern(name));
+		}else{
+			return new FreeRef(name, depth);
+		}
+	}
+
+	private static boolean isBound(ScmObject name, Scope scope){
+		while(scope != null){
+			if(scope.names.contains(name)){
+				return true;
+			}
+			scope = scope.parent;
+		}
+		return false;
+	}
+
+	//(the name of the special form an expression starts with, or null)
+	private static String specialForm(ScmObject exp, Scope scope, Environment env){
+		if(!exp.isType(ScmObject.PAIR) || !exp.car().isType(ScmObject.BINDING) || isBound(exp.car(), scope)){
+			return null;
+		}
+		ScmObject form = env.getBindingOrNull(exp.car());
+		if(form == null || !form.isType(ScmObject.SPECIAL_FORM)){
+			return null;
+		}
+		return formName(form);
+	}
+
+	private static String formName(ScmObject form){
+		String content = (String) form.getContent();
+		return content.substring("#[subr ".length(), content.length() - 1);
+	}
+
+	//(collect the variables an expression defines in the frame it is run in)
+	private static void scanDefines(ScmObject exp, Environment env, List<ScmObject> names){
+		if(!exp.isType(ScmObject.PAIR)){
+			return;
+		}
+		String form = specialForm(exp, null, env);
+		if("lambda".equals(form) || "quote".equals(form)){
+			return;
+		}else if("define".equals(form)){
+			if(exp.cdr().isType(ScmObject.PAIR) && exp.cdr().car().isType(ScmObject.BINDING)){
+				slot(names, exp.cdr().car());
+			}
+		}else if("let-par".equals(form)){
+			if(exp.cdr().isType(ScmObject.PAIR)){
+				ScmObject clauses = exp.cdr().car();
+				while(clauses.isType(ScmObject.PAIR)){
+					if(clauses.car().isType(ScmObject.PAIR) && clauses.car().car().isType(ScmObject.BINDING)){
+						slot(names, clauses.car().car());
+					}
+					clauses = clauses.cdr();
+				}
+			}
+		}
+		while(exp.isType(ScmObject.PAIR)){
+			scanDefines(exp.car(), env, names);
+			exp = exp.cdr();
+		}
+	}
+
+	//--Analysis
+	/**
+	 * Compile an expression to be run in the given environment.
+	 * @param exp The expression to compile
+	 * @param env The environment the expression will be run in; its special forms are resolved now
+	 * @return The compiled expression
+	 */
+	protected static Node analyze(ScmObject exp, Environment env){
+		return analyze(exp, null, env);
+	}
+
+	/**
+	 * Compile a lambda expression, whose free variables are looked up from the environment
+	 * it is created in.
+	 * @param args The parameter list and body of the lambda
+	 * @param env The environment the lambda is created in
+	 * @return The compiled procedure
+	 */
+	protected static Procedure analyzeLambda(ScmObject args, Environment env){
+		return lambda(args, null, env);
+	}
+
+	private static Node analyze(ScmObject exp, Scope scope, Environment env){
+		//(variables)
+		if(exp.isType(ScmObject.BINDING)){
+			return variable(exp, scope, env);
+		}
+		//(literals)
+		if(!exp.isType(ScmObject.PAIR)){
+			return new Const(exp);
+		}
+		//(special forms)
+		String form = specialForm(exp, scope, env);
+		if(form != null){
+			return special(form, exp, scope, env);
+		}
+		//(applications)
+		Node op = analyze(exp.car(), scope, env);
+		List<Node> args = new ArrayList<Node>();
+		ScmObject rest = exp.cdr();
+		while(!rest.isNil()){
+			args.add(analyze(rest.car(), scope, env));
+			rest = rest.cdr();
+		}
+		return new Application(exp, op, args.toArray(new Node[args.size()]));
+	}
+
+	private static Node[] analyzeAll(ScmObject exps, Scope scope, Environment env){
+		List<Node> rtn = new ArrayList<Node>();
+		while(!exps.isNil()){
+			rtn.add(analyze(exps.car(), scope, env));
+			exps = exps.cdr();
+		}
+		return rtn.toArray(new Node[rtn.size()]);
+	}
+
+	private static Node special(String form, ScmObject exp, Scope scope, Environment env){
+		ScmObject args = exp.cdr();
+		if(form.equals("and")){
+			return new And(analyzeAll(args, scope, env));
+		}else if(form.equals("cond")){
+			List<Node> tests = new ArrayList<Node>();
+			List<Node> values = new ArrayList<Node>();
+			while(!args.isNil()){
+				ScmObject clause = args.car();
+				if(!clause.isType(ScmObject.PAIR) || !clause.cdr().isType(ScmObject.PAIR)){
+					throw new SchemeException("cond: bad clause: " + clause);
+				}
+				if(clause.car().isType(ScmObject.BINDING) && clause.car().getContent().equals("else")){
+					tests.add(null);
+				}else{
+					tests.add(analyze(clause.car(), scope, env));
+				}
+				values.add(analyze(clause.cdr().car(), scope, env));
+				args = args.cdr();
+			}
+			return new Cond(tests.toArray(new Node[tests.size()]), values.toArray(new Node[values.size()]));
+		}else if(form.equals("define")){
+			if(args.getType() != ScmObject.PAIR){
+				throw new SchemeException("define: bad definition: " + args);
+			}
+			if(args.car().getType() != ScmObject.BINDING){
+				throw new SchemeException("define: bad variable name: " + args.car());
+			}
+			int slot = scope == null ? -1 : scope.names.indexOf(args.car());
+			return new Define(args.car(), slot, analyze(args.cdr().car(), scope, env));
+		}else if(form.equals("do")){
+			return new Sequence(analyzeAll(args, scope, env));
+		}else if(form.equals("if")){
+			if(args.isNil() || args.cdr().isNil() || args.cdr().cdr().isNil()
+					|| !args.cdr().cdr().cdr().isNil()){
+				throw new SchemeException("if: bad syntax: " + exp);
+			}
+			return new If(analyze(args.car(), scope, env),
+					analyze(args.cdr().car(), scope, env),
+					analyze(args.cdr().cdr().car(), scope, env));
+		}else if(form.equals("lambda")){
+			return new MakeLambda(args, lambda(args, scope, env));
+		}else if(form.equals("or")){
+			return new Or(analyzeAll(args, scope, env));
+		}else if(form.equals("quote")){
+			if (args.isNil() || !args.cdr().isNil() ) {
+				throw new SchemeException("quote: bad number of parameters");
+			}
+			return new Quote(args.car());
+		}else if(form.equals("set!") || form.equals("set-car!") || form.equals("set-cdr!")){
+			if (args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()) {
+				throw new SchemeException(form + ": bad number of parameters");
+			}else if(!args.car().isType(ScmObject.BINDING)){
+				throw new SchemeException(form + ": not a binding: " + args.car());
+			}
+			Node value = analyze(args.cdr().car(), scope, env);
+			if(form.equals("set!")){
+				return new Assign(args.car(), depth(args.car(), scope), value);
+			}else{
+				return new SetCdr(variable(args.car(), scope, env), value);
+			}
+		}else if(form.equals("let-par")){
+			if(args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()){
+				throw new SchemeException("let-par: bad number of parameters");
+			}
+			return new LetPar(args.car(), analyze(args.cdr().car(), scope, env));
+		}else{
+			throw new SchemeException("[INTERNAL]: unimplemented special form: " + form);
+		}
+	}
+
+	private static Procedure lambda(ScmObject args, Scope scope, Environment env){
+		if(!args.isType(ScmObject.PAIR) || !args.cdr().isType(ScmObject.PAIR)){
+			throw new SchemeException("lambda: cannot create lambda");
+		}
+		//--Parameters
+		List<Integer> params = new ArrayList<Integer>();
+		boolean hasRest = false;
+		int rest = -1;
+		boolean illDefined = false;
+		List<ScmObject> names = new ArrayList<ScmObject>();
+		ScmObject vars = args.car();
+		while(vars.isType(ScmObject.PAIR)){
+			ScmObject var = vars.car();
+			if(var.equals(DOT)){
+				//(list lambda: exactly one variable after the dot)
+				hasRest = true;
+				if(!vars.cdr().isType(ScmObject.PAIR) || !vars.cdr().cdr().isNil()){
+					illDefined = true;
+				}else if(vars.cdr().car().isType(ScmObject.BINDING)){
+					rest = slot(names, vars.cdr().car());
+				}
+				break;
+			}
+			params.add(var.isType(ScmObject.BINDING) ? slot(names, var) : -1);
+			vars = vars.cdr();
+		}
+		int[] paramSlots = new int[params.size()];
+		for(int i=0; i<paramSlots.length; i++){
+			paramSlots[i] = params.get(i);
+		}
+		//--Body
+		scanDefines(args.cdr(), env, names);
+		Node body = new Sequence(analyzeAll(args.cdr(), new Scope(scope, names), env));
+		return new Procedure(names.toArray(new ScmObject[names.size()]), paramSlots, hasRest, rest, illDefined, body);
+	}
+
+	//--Nodes
+	private static class Const extends Node {
+		private final ScmObject value;
+		private Const(ScmObject value){ this.value = value; }
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.value(value);
+		}
+	}
+
+	private static abstract class Variable extends Node {
+		protected final ScmObject name;
+		private Variable(ScmObject name){ this.name = name; }
+		protected abstract ScmObject lookup(Environment env);
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.value(lookup(env));
+		}
+	}
+
+	//(a variable bound by an enclosing lambda)
+	private static class LocalRef extends Variable {
+		private final int depth;
+		private final int slot;
+		private LocalRef(ScmObject name, int depth, int slot){
+			super(name);
+			this.depth = depth;
+			this.slot = slot;
+		}
+		@Override
+		protected ScmObject lookup(Environment env){
+			Environment frame = env.ancestor(depth);
+			ScmObject rtn = frame.getSlot(slot);
+			if(rtn == null){
+				//(an internal definition which has not been run yet)
+				return frame.getParent().resolve(name);
+			}
+			return rtn;
+		}
+	}
+
+	//(a free variable of the global environment)
+	private static class GlobalRef extends Variable {
+		private final Environment.Cell cell;
+		private GlobalRef(ScmObject name, Environment.Cell cell){
+			super(name);
+			this.cell = cell;
+		}
+		@Override
+		protected ScmObject lookup(Environment env){
+			ScmObject rtn = cell.value;
+			if(rtn == null){
+				return Environment.unbound(name);
+			}
+			return rtn;
+		}
+	}
+
+	//(a free variable of any other environment)
+	private static class FreeRef extends Variable {
+		private final int depth;
+		private FreeRef(ScmObject name, int depth){
+			super(name);
+			this.depth = depth;
+		}
+		@Override
+		protected ScmObject lookup(Environment env){
+			return env.ancestor(depth).resolve(name);
+		}
+	}
+
+	private static class Quote extends Node {
+		private final ScmObject value;
+		private Quote(ScmObject value){ this.value = value; }
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.value(new ScmObject(value, ScmObject.WORD));
+		}
+	}
+
+	private static class And extends Node {
+		private final Node[] terms;
+		private And(Node[] terms){ this.terms = terms; }
+		@Override
+		protected void exec(Machine m, Environment env){
+			if(terms.length == 0){
+				m.value(ScmObject.makeTrue());
+			}else{
+				m.push(this, env, 0);
+				m.eval(terms[0], env);
+			}
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if(value.isType(ScmObject.FALSE)){
+				m.value(ScmObject.makeFalse());
+			}else if(k.index == terms.length - 1){
+				m.value(ScmObject.makeTrue());
+			}else{
+				k.index += 1;
+				m.push(k);
+				m.eval(terms[k.index], k.env);
+			}
+		}
+	}
+
+	private static class Or extends Node {
+		private final Node[] terms;
+		private Or(Node[] terms){ this.terms = terms; }
+		@Override
+		protected void exec(Machine m, Environment env){
+			if(terms.length == 0){
+				m.value(ScmObject.makeFalse());
+			}else{
+				m.push(this, env, 0);
+				m.eval(terms[0], env);
+			}
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if(value.isType(ScmObject.TRUE)){
+				m.value(ScmObject.makeTrue());
+			}else if(k.index == terms.length - 1){
+				m.value(ScmObject.makeFalse());
+			}else{
+				k.index += 1;
+				m.push(k);
+				m.eval(terms[k.index], k.env);
+			}
+		}
+	}
+
+	private static class Cond extends Node {
+		private final Node[] tests;	//(null for an else clause)
+		private final Node[] values;
+		private Cond(Node[] tests, Node[] values){
+			this.tests = tests;
+			this.values = values;
+		}
+		private void test(Machine m, Environment env, int clause){
+			if(clause >= tests.length){
+				throw new SchemeException("cond: no conditions are satisfied");
+			}else if(tests[clause] == null){
+				m.eval(values[clause], env);
+			}else{
+				m.push(this, env, clause);
+				m.eval(tests[clause], env);
+			}
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			test(m, env, 0);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if(!value.isFalse()){
+				m.eval(values[k.index], k.env);
+			}else{
+				test(m, k.env, k.index + 1);
+			}
+		}
+	}
+
+	private static class Define extends Node {
+		private final ScmObject name;
+		private final int slot;		//(-1 if not defined in a lambda's frame)
+		private final Node value;
+		private Define(ScmObject name, int slot, Node value){
+			this.name = name;
+			this.slot = slot;
+			this.value = value;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.push(this, env, 0);
+			m.eval(value, env);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if(slot >= 0){
+				k.env.setSlot(slot, value);
+			}else{
+				k.env.putBinding(name, value);
+			}
+			m.value(new ScmObject(name, ScmObject.WORD));
+		}
+	}
+
+	//(the body of a lambda, or a do expression; the last expression is in tail position)
+	private static class Sequence extends Node {
+		private final Node[] exps;
+		private Sequence(Node[] exps){ this.exps = exps; }
+		@Override
+		protected void exec(Machine m, Environment env){
+			if(exps.length == 0){
+				m.value(new ScmObject("okay", ScmObject.WORD));
+			}else if(exps.length == 1){
+				m.eval(exps[0], env);
+			}else{
+				m.push(this, env, 0);
+				m.eval(exps[0], env);
+			}
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			k.index += 1;
+			if(k.index < exps.length - 1){
+				m.push(k);
+			}
+			m.eval(exps[k.index], k.env);
+		}
+	}
+
+	private static class If extends Node {
+		private final Node test;
+		private final Node then;
+		private final Node otherwise;
+		private If(Node test, Node then, Node otherwise){
+			this.test = test;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.push(this, env, 0);
+			m.eval(test, env);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if( !value.isFalse() ){
+				m.eval(then, k.env);
+			}else{
+				m.eval(otherwise, k.env);
+			}
+		}
+	}
+
+	private static class MakeLambda extends Node {
+		private final ScmObject args;
+		private final Procedure proc;
+		private MakeLambda(ScmObject args, Procedure proc){
+			this.args = args;
+			this.proc = proc;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.value(ScmObject.makeLambda(args, proc, env));
+		}
+	}
+
+	private static class Assign extends Node {
+		private final ScmObject name;
+		private final int depth;
+		private final Node value;
+		private Assign(ScmObject name, int depth, Node value){
+			this.name = name;
+			this.depth = depth;
+			this.value = value;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.push(this, env, 0);
+			m.eval(value, env);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			k.env.setBinding(name, value, depth);
+			m.value(new ScmObject("okay", ScmObject.WORD));
+		}
+	}
+
+	//(note: both set-car! and set-cdr! replace the cdr)
+	private static class SetCdr extends Node {
+		private final Variable pair;
+		private final Node value;
+		private SetCdr(Variable pair, Node value){
+			this.pair = pair;
+			this.value = value;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			Machine.Frame k = m.push(this, env, 0);
+			k.value = pair.lookup(env);
+			m.eval(value, env);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			k.value.replaceCdr(value);
+			m.value(new ScmObject("okay", ScmObject.WORD));
+		}
+	}
+
+	private static class LetPar extends Node {
+		private final ScmObject letClauses;
+		private final Node finalExp;
+		private LetPar(ScmObject letClauses, Node finalExp){
+			this.letClauses = letClauses;
+			this.finalExp = finalExp;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			SchemeThreadPool.SchemeThread thread = m.thread();
+			//(error checking)
+			if(Scheme.auxPool == null){
+				throw new SchemeException("parallelization has been disabled");
+			}
+			if(thread == null){
+				throw new SchemeException("cannot parallelize in non-parallelizable mode");
+			}
+			//(collect tasks)
+			List<ScmObject> bindings = new ArrayList<ScmObject>();
+			List<ScmObject> toRun = new ArrayList<ScmObject>();
+			List<Environment> protectedEnvs = new ArrayList<Environment>();
+			ScmObject clauses = letClauses;
+			while(!clauses.isNil()){
+				ScmObject clause = clauses.car();
+				if(clause.cdr().isNil() || !clause.cdr().cdr().isNil()){
+					throw new SchemeException("let-par clauses should have only one argument");
+				}
+				bindings.add(clause.car());
+				toRun.add(clause.cdr().car());
+				protectedEnvs.add(env.extendLockedEnvironment());	//extends calling environment
+				clauses = clauses.cdr();
+			}
+			//(run them in parallel, and bind their values)
+			ScmObject[] values = Scheme.auxPool.evalAll(toRun.toArray(new ScmObject[toRun.size()]),
+					protectedEnvs.toArray(new Environment[protectedEnvs.size()]), thread);
+			for(int i=0; i<values.length; i++){
+				env.putBinding(bindings.get(i), values[i]);
+			}
+			//(run final statement)
+			m.eval(finalExp, env);
+		}
+	}
+
+	//(index 0 evaluates the operator; index i evaluates argument i)
+	private static class Application extends Node {
+		private final ScmObject exp;
+		private final Node op;
+		private final Node[] args;
+		private Application(ScmObject exp, Node op, Node[] args){
+			this.exp = exp;
+			this.op = op;
+			this.args = args;
+		}
+		@Override
+		protected void exec(Machine m, Environment env){
+			m.push(this, env, 0);
+			m.eval(op, env);
+		}
+		@Override
+		protected void resume(Machine m, Machine.Frame k, ScmObject value){
+			if(k.index == 0){
+				if(value.isType(ScmObject.SPECIAL_FORM)){
+					//(a special form not known when analyzed; e.g., passed as an argument)
+					m.eval(special(formName(value), exp, null, k.env), k.env);
+					return;
+				}
+				k.value = value;
+				k.vals = new ScmObject[args.length];
+			}else{
+				k.vals[k.index - 1] = value;
+			}
+			if(k.index < args.length){
+				k.index += 1;
+				m.push(k);
+				m.eval(args[k.index - 1], k.env);
+				return;
+			}
+			//(apply)
+			ScmObject list = ScmObject.makeNil();
+			for(int i=k.vals.length-1; i>=0; i--){
+				list = ScmObject.makePair(k.vals[i], list);
+			}
+			try {
+				m.apply(k.value, list, exp);
+			} catch (SchemeException e) {
+				//ignore repetitive 'eval:' tags
+				if(e.getMessage() != null && e.getMessage().startsWith("eval:")){
+					throw e;
+				}
+				throw new SchemeException("eval: " + e.getMessage() + ": " + exp);
+			}
+		}
+		@Override
+		protected ScmObject pendingCall(Machine.Frame k){
+			return k.index > 0 ? exp : null;
+		}
+	}
+}
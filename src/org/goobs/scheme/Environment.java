@@ -4,14 +4,34 @@ import java.util.HashMap;
 
 public class Environment {
 	
+	/**
+	 * A global (or otherwise dynamically bound) variable, interned once so that compiled code
+	 * can hold on to it; its value is null while it is unbound
+	 */
+	protected static final class Cell {
+		protected ScmObject value;
+	}
+	
 	private Environment parent;
-	private HashMap <ScmObject, ScmObject> bindings;
+	//(the frame of a lambda call: variables in slots laid out when the lambda was analyzed)
+	private ScmObject[] names;
+	private ScmObject[] slots;
+	//(any other variables; e.g., the global environment)
+	private HashMap <ScmObject, Cell> bindings;
 	private boolean writeLock = false;
 	private static boolean resolveBindings = true;
 	
 	protected Environment(Environment p){
 		parent = p;
-		bindings = new HashMap <ScmObject, ScmObject> ();
+		bindings = new HashMap <ScmObject, Cell> ();
+	}
+	
+	//the frame of a lambda call, with one slot per name
+	protected Environment(Environment p, ScmObject[] names, boolean writeLock){
+		parent = p;
+		this.names = names;
+		this.slots = new ScmObject[names.length];
+		this.writeLock = writeLock;
 	}
 	
 	protected ScmObject apply(ScmObject proc, ScmObject args, SchemeThreadPool.SchemeThread thread){
@@ -20,203 +40,73 @@ public class Environment {
 	
 	//exp must be a list
 	protected ScmObject eval(ScmObject exp, SchemeThreadPool.SchemeThread thread) throws SchemeException{
-		//expression is a binding
-		if(exp.isType(ScmObject.BINDING)){
-			if(resolveBindings){
-				return getBinding(exp);
-			}else{
-				ScmObject rtn = getBindingOrNull(exp);
-				if(rtn == null){
-					return exp;
-				}else{
-					return rtn;
-				}
-			}
-		}
-		//expression is a function
-		if(exp.isType(ScmObject.PAIR)){
-			ScmObject func = eval(exp.car(), thread);
-			if(func.isType(ScmObject.SPECIAL_FORM)){
-				return specialApply(func, exp.cdr(),thread);
-			}else{
-				try {
-					return apply(func, mapEval(exp.cdr(), thread), thread);
-				} catch (SchemeException e) {
-					//ignore repetitive 'eval:' tags
-					if(e.getMessage().substring(0,5).equals("eval:")){
-						throw e;
-					}
-					throw new SchemeException("eval: " + e.getMessage() + ": " + exp);
-				}
-			}
-		}
-		//expression must be a literal
-		return exp;
+		return Machine.run(Analyzer.analyze(exp, this), this, thread);
 	}
 	
-	private ScmObject specialApply(ScmObject func, ScmObject args, SchemeThreadPool.SchemeThread thread){
-		//and
-		if(func.getContent().equals("#[subr and]")){
-			return andHelper(args, thread);
-		//cond
-		}else if(func.getContent().equals("#[subr cond]")){
-			return condHelper(args, thread);
-		//define
-		}else if(func.getContent().equals("#[subr define]")){
-			if(args.getType() != ScmObject.PAIR){
-				throw new SchemeException("define: bad definition: " + args);
-			}
-			if(args.car().getType() != ScmObject.BINDING){
-				throw new SchemeException("define: bad variable name: " + args.car());
-			}
-			putBinding(args.car(), eval(args.cdr().car(), thread));
-			return new ScmObject(args.car(), ScmObject.WORD);
-		//do
-		}else if(func.getContent().equals("#[subr do]")){
-			if(args.isNil()){
-				return new ScmObject("okay", ScmObject.WORD);
-			}
-			return doHelper(args, thread);
-		//if
-		}else if(func.getContent().equals("#[subr if]")){
-			if(args.isNil() || args.cdr().isNil() || args.cdr().cdr().isNil()
-					|| !args.cdr().cdr().cdr().isNil()){
-				throw new SchemeException("if: bad syntax: " + ScmObject.makePair(func, args));
-			}
-			if( !eval(args.car(), thread).isFalse() ){
-				return eval(args.cdr().car(), thread);
-			}else{
-				return eval(args.cdr().cdr().car(), thread);
-			}
-		//lambda
-		}else if(func.getContent().equals("#[subr lambda]")){
-			return ScmObject.makeLambda(args, this);
-		//or
-		}else if(func.getContent().equals("#[subr or]")){
-			return orHelper(args, thread);
-		//quote
-		}else if(func.getContent().equals("#[subr quote]")){
-			if (args.isNil() || !args.cdr().isNil() ) {
-				throw new SchemeException("quote: bad number of parameters");
-			}
-			return new ScmObject(args.car(), ScmObject.WORD);
-		//set!
-		}else if(func.getContent().equals("#[subr set!]")){
-			if (args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()) {
-				throw new SchemeException("set!: bad number of parameters");
-			}else if(!args.car().isType(ScmObject.BINDING)){
-				throw new SchemeException("set!: not a binding: " + args.car());
-			}
-			setBinding( args.car(), eval(args.cdr().car(), thread) );
-			return new ScmObject("okay", ScmObject.WORD);
-		//set-car!
-		}else if(func.getContent().equals("#[subr set-car!]")){
-			if (args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()) {
-				throw new SchemeException("set-car!: bad number of parameters");
-			}else if(!args.car().isType(ScmObject.BINDING)){
-				throw new SchemeException("set-car!: not a binding: " + args.car());
-			}
-			getBinding(args.car()).replaceCdr( eval(args.cdr().car(), thread) );
-			return new ScmObject("okay", ScmObject.WORD);
-		//set-cdr!
-		}else if(func.getContent().equals("#[subr set-cdr!]")){
-			if (args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()) {
-				throw new SchemeException("set-cdr!: bad number of parameters");
-			}else if(!args.car().isType(ScmObject.BINDING)){
-				throw new SchemeException("set-cdr!: not a binding: " + args.car());
-			}
-			getBinding(args.car()).replaceCdr( eval(args.cdr().car(), thread) );
-			return new ScmObject("okay", ScmObject.WORD);
-		//let-par
-		}else if(func.getContent().equals("#[subr let-par]")){
-			//(error checking)
-			if(args.isNil() || args.cdr().isNil() || !args.cdr().cdr().isNil()){
-				throw new SchemeException("let-par: bad number of parameters");
-			}
-			if(Scheme.auxPool == null){
-				throw new SchemeException("parallelization has been disabled");
-			}
-			if(thread == null){
-				throw new SchemeException("cannot parallelize in non-parallelizable mode");
-			}
-			//(get two parts of let-par)
-			ScmObject letClauses = args.car();
-			ScmObject finalExp = args.cdr().car();
-			Scheme.auxPool.beginAppend(thread);
-			//(append tasks)
-			while(!letClauses.isNil()){
-				ScmObject clause = letClauses.car();
-				if(clause.cdr().isNil() || !clause.cdr().cdr().isNil()){
-					throw new SchemeException("let-par clauses should have only one argument");
-				}
-				ScmObject binding = clause.car();
-				ScmObject toRun  = clause.cdr().car();
-				ScmObject toFill = ScmObject.makeFalse();	//dummy object
-				Environment protectedEnv = extendLockedEnvironment();	//extends calling environment
-				putBinding(binding, toFill);
-				Scheme.auxPool.append(toRun, protectedEnv, toFill, thread);
-				letClauses = letClauses.cdr();
-			}
-			//(run final statement)
-			Scheme.auxPool.endAppendAndWait(thread);
-			return eval(finalExp, thread);
-
-		}else{
-			throw new SchemeException("[INTERNAL]: unimplemented special form: " + func);
+	/**
+	 * @param depth The number of frames to walk up
+	 * @return The environment of the lambda depth frames out from this one
+	 */
+	protected Environment ancestor(int depth){
+		Environment rtn = this;
+		for(int i=0; i<depth; i++){
+			rtn = rtn.parent;
 		}
-		
+		return rtn;
 	}
 	
-	private ScmObject andHelper(ScmObject args, SchemeThreadPool.SchemeThread thread){
-		if(args.isType(ScmObject.NIL)){
-			return ScmObject.makeTrue();
-		}else if( eval(args.car(), thread).isType(ScmObject.FALSE) ){
-			return ScmObject.makeFalse();
-		}else{
-			return andHelper(args.cdr(), thread);
-		}
+	protected Environment getParent(){
+		return parent;
 	}
 	
-	//preds is not nil and is a list
-	private ScmObject condHelper(ScmObject preds, SchemeThreadPool.SchemeThread thread){
-		if(preds.isType(ScmObject.NIL)){
-			throw new SchemeException("cond: no conditions are satisfied");
-		}
-		ScmObject current = preds.car();
-		if(current.car().getContent().equals("else") && current.car().isType(ScmObject.BINDING)){
-			return eval(current.cdr().car(), thread);
-		}else if(eval(current.car(), thread).isFalse()){
-			return condHelper(preds.cdr(), thread);
-		}else{
-			return eval(current.cdr().car(), thread);
-		}
+	protected boolean isGlobal(){
+		return parent == null;
 	}
 	
-	//exps is not nil as precondition and exps is a list
-	private ScmObject doHelper(ScmObject exps, SchemeThreadPool.SchemeThread thread){
-		if(exps.cdr().isNil()){
-			return eval(exps.car(), thread);
-		}else{
-			eval(exps.car(), thread);
-			return doHelper(exps.cdr(), thread);
+	protected ScmObject getSlot(int slot){
+		return slots[slot];
+	}
+	
+	protected void setSlot(int slot, ScmObject value){
+		slots[slot] = value;
+	}
+	
+	/**
+	 * @param binding The variable
+	 * @return The cell the variable is bound in, in this environment; created unbound if need be
+	 */
+	protected Cell intern(ScmObject binding){
+		if(bindings == null){
+			bindings = new HashMap <ScmObject, Cell> ();
+		}
+		Cell cell = bindings.get(binding);
+		if(cell == null){
+			cell = new Cell();
+			bindings.put(binding, cell);
 		}
+		return cell;
 	}
 	
-	private ScmObject orHelper(ScmObject args, SchemeThreadPool.SchemeThread thread){
-		if(args.isType(ScmObject.NIL)){
-			return ScmObject.makeFalse();
-		}else if( eval(args.car(), thread).isType(ScmObject.TRUE) ){
-			return ScmObject.makeTrue();
+	//the value of a variable, or the variable itself if unbound and bindings are not resolved
+	protected ScmObject resolve(ScmObject binding){
+		if(resolveBindings){
+			return getBinding(binding);
 		}else{
-			return orHelper(args.cdr(), thread);
+			ScmObject rtn = getBindingOrNull(binding);
+			if(rtn == null){
+				return binding;
+			}else{
+				return rtn;
+			}
 		}
 	}
 	
-	private ScmObject mapEval(ScmObject exps, SchemeThreadPool.SchemeThread thread){
-		if(exps.isNil()){
-			return ScmObject.makeNil();
+	//the value a variable which is unbound resolves to
+	protected static ScmObject unbound(ScmObject binding){
+		if(resolveBindings){
+			throw new SchemeException("Unbound variable: " + binding);
 		}else{
-			return ScmObject.makePair(eval(exps.car(), thread), mapEval(exps.cdr(), thread));
+			return binding;
 		}
 	}
 	
@@ -227,33 +117,82 @@ public class Environment {
 	}
 	
 	protected void putBinding(ScmObject binding, ScmObject value){
-		bindings.put(binding, value);
+		if(names != null){
+			for(int i=0; i<names.length; i++){
+				if(names[i].equals(binding)){
+					slots[i] = value;
+					return;
+				}
+			}
+		}
+		intern(binding).value = value;
+	}
+	
+	//the value of a variable in this environment only, or null
+	private ScmObject getLocalBinding(ScmObject binding){
+		if(names != null){
+			for(int i=0; i<names.length; i++){
+				if(names[i].equals(binding)){
+					return slots[i];
+				}
+			}
+		}
+		if(bindings != null){
+			Cell cell = bindings.get(binding);
+			if(cell != null){
+				return cell.value;
+			}
+		}
+		return null;
+	}
+	
+	//rebind a variable in this environment only; false if it is not bound here
+	private boolean setLocalBinding(ScmObject binding, ScmObject value){
+		if(names != null){
+			for(int i=0; i<names.length; i++){
+				if(names[i].equals(binding) && slots[i] != null){
+					slots[i] = value;
+					return true;
+				}
+			}
+		}
+		if(bindings != null){
+			Cell cell = bindings.get(binding);
+			if(cell != null && cell.value != null){
+				cell.value = value;
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	protected void setBinding(ScmObject binding, ScmObject value){
-		ScmObject old = null;
-		if(writeLock){
+		//(the variable is rebound where it is bound; values themselves are never
+		//  mutated, as small integers are shared)
+		if(setLocalBinding(binding, value)){
+			return;
+		}else if(writeLock){
 			//(we should not look in parent bindings - thread safety)
-			old = bindings.get(binding);
-			if(old == null){
-				throw new SchemeException("Unbound (or write-locked) variable: " + binding);
-			}
+			throw new SchemeException("Unbound (or write-locked) variable: " + binding);
+		}else if(parent == null){
+			throw new SchemeException("Unbound variable: " + binding);
 		}else{
-			//(get the binding)
-			old = getBinding(binding);
+			parent.setBinding(binding, value);
 		}
-		//can't set! nil
-		if(old.isType(ScmObject.NIL)){
-			putBinding(binding, value);
-			return;
+	}
+	
+	//set! a variable depth frames out from this one
+	protected void setBinding(ScmObject binding, ScmObject value, int depth){
+		if(depth == 0 || writeLock){
+			//(a write-locked environment cannot set outer variables)
+			setBinding(binding, value);
 		}else{
-			//set variable
-			old.setTo(value);
+			parent.setBinding(binding, value, depth - 1);
 		}
 	}
 	
-	private ScmObject getBindingOrNull(ScmObject binding){
-		ScmObject rtn = bindings.get(binding);
+	protected ScmObject getBindingOrNull(ScmObject binding){
+		ScmObject rtn = getLocalBinding(binding);
 		//if not in this environment
 		if(rtn == null){
 			if(parent == null){
@@ -281,7 +220,7 @@ public class Environment {
 		if(parent == null){
 			return null;
 		}
-		ScmObject rtn = bindings.get(binding);
+		ScmObject rtn = getLocalBinding(binding);
 		//if not in this environment
 		if(rtn == null){
 			//check parent environments, passing along the exception if not found
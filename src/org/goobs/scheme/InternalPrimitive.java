@@ -56,11 +56,13 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 	
 	private String id;
 	private Scheme scm;
+	private int fast;
 	
 	protected InternalPrimitive(String i, Scheme s){
 		super("#[subr " + i + "]", ScmObject.FUNCTION);
 		id = i;
 		scm = s;
+		fast = fastPath(i);
 	}
 	
 	protected static ScmObject makeSpecialForm(String nm){
@@ -69,6 +71,13 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 	
 	@Override
 	public ScmObject apply(ScmObject args, SchemeThreadPool.SchemeThread thread) throws SchemeException{
+		//(fixnum and flonum arithmetic, when it needs no promotion)
+		if(fast != SLOW){
+			ScmObject rtn = fastApply(fast, args);
+			if(rtn != null){
+				return rtn;
+			}
+		}
 		if(id.equals(InternalPrimitive.ADD)){
 			return numToScmObject( add(args, 0) );
 		}else if(id.equals(InternalPrimitive.SUBTRACT)){
@@ -148,13 +157,13 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 	
 	private ScmObject numToScmObject(Object num){
 		if(num instanceof Integer){
-			return new ScmObject(num, ScmObject.INTEGER);
+			return ScmObject.makeInteger((Integer) num);
 		}else if( num instanceof BigInteger){
 			return new ScmObject(num, ScmObject.BIGINT);
 		}else if( num instanceof Double){
 			double n = ((Double) num).doubleValue();
 			if(Math.floor(n) == n){
-				return new ScmObject(new Integer((int) n), ScmObject.INTEGER);
+				return ScmObject.makeInteger((int) n);
 			}else{
 				return new ScmObject(num, ScmObject.DOUBLE);
 			}
@@ -165,6 +174,193 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 		}
 	}
 	
+	//--Fast paths
+	private static final int SLOW = 0;
+	private static final int FAST_ADD = 1;
+	private static final int FAST_SUBTRACT = 2;
+	private static final int FAST_MULTIPLY = 3;
+	private static final int FAST_DIVIDE = 4;
+	private static final int FAST_LESS_THAN = 5;
+	private static final int FAST_GREATER_THAN = 6;
+	private static final int FAST_EQARITH = 7;
+	//(bounds on an accumulated product which cannot overflow a long)
+	private static final long MAX_FACTOR = 1L << 32;
+	//(2^27 + 1; for splitting a double into halves, in Dekker's exact product)
+	private static final double SPLITTER = 134217729.0;
+	
+	private static int fastPath(String id){
+		if(id.equals(ADD)){
+			return FAST_ADD;
+		}else if(id.equals(SUBTRACT)){
+			return FAST_SUBTRACT;
+		}else if(id.equals(MULTIPLY)){
+			return FAST_MULTIPLY;
+		}else if(id.equals(DIVIDE)){
+			return FAST_DIVIDE;
+		}else if(id.equals(LESS_THAN)){
+			return FAST_LESS_THAN;
+		}else if(id.equals(GREATER_THAN)){
+			return FAST_GREATER_THAN;
+		}else if(id.equals(EQARITH)){
+			return FAST_EQARITH;
+		}else{
+			return SLOW;
+		}
+	}
+	
+	/**
+	 * Apply an arithmetic primitive to fixnums and flonums directly, without boxing
+	 * the arguments or going through the BigInteger/BigDecimal promotion checks
+	 * @param op The primitive (one of the FAST_ constants)
+	 * @param args The arguments
+	 * @return The result, or null if the arguments are not all fixnums and flonums,
+	 * or if the result needs more precision; the general path handles these (and any errors).
+	 * Flonums are only handled where the result is the one the general path, which does its
+	 * arithmetic on the decimal forms of the arguments, would give.
+	 */
+	private static ScmObject fastApply(int op, ScmObject args){
+		//--Check the arguments
+		int count = 0;
+		boolean fixnums = true;
+		ScmObject term = args;
+		while(term.isType(ScmObject.PAIR)){
+			int type = term.car().getType();
+			if(type == ScmObject.DOUBLE){
+				fixnums = false;
+			}else if(type != ScmObject.INTEGER){
+				return null;
+			}
+			count += 1;
+			term = term.cdr();
+		}
+		if(!term.isNil() || count == 0){
+			return null;
+		}
+		//--Apply
+		switch(op){
+		case FAST_ADD:
+			//(a sum exact in binary need not be the decimal sum; e.g., 0.3 - 0.1)
+			if(!fixnums){
+				return null;
+			}
+			return ScmObject.makeInteger(fixnumSum(args));
+		case FAST_SUBTRACT:
+			if(!fixnums){
+				return null;
+			}
+			if(count == 1){
+				return ScmObject.makeInteger(-(long) args.car().intValue());
+			}
+			return ScmObject.makeInteger(args.car().intValue() - fixnumSum(args.cdr()));
+		case FAST_MULTIPLY:
+			if(fixnums){
+				long product = fixnumProduct(args);
+				return product == Long.MIN_VALUE ? null : ScmObject.makeInteger(product);
+			}else{
+				double product = 1.0;
+				for(ScmObject a = args; !a.isNil(); a = a.cdr()){
+					product = exactProduct(product, a.car().doubleValue());
+				}
+				return flonumToScmObject(product);
+			}
+		case FAST_DIVIDE:
+			if(!fixnums){
+				return null;
+			}
+			long numerator = count == 1 ? 1 : args.car().intValue();
+			long denominator = count == 1 ? args.car().intValue() : fixnumProduct(args.cdr());
+			if(denominator == 0 || denominator == Long.MIN_VALUE || numerator % denominator != 0){
+				return null;
+			}
+			return ScmObject.makeInteger(numerator / denominator);
+		case FAST_LESS_THAN:
+		case FAST_GREATER_THAN:
+			if(count != 2){
+				return null;
+			}
+			ScmObject a = args.car();
+			ScmObject b = args.cdr().car();
+			boolean less;
+			boolean greater;
+			if(fixnums){
+				less = a.intValue() < b.intValue();
+				greater = a.intValue() > b.intValue();
+			}else{
+				less = a.doubleValue() < b.doubleValue();
+				greater = a.doubleValue() > b.doubleValue();
+			}
+			if(op == FAST_LESS_THAN ? less : greater){
+				return ScmObject.makeTrue();
+			}else{
+				return ScmObject.makeFalse();
+			}
+		case FAST_EQARITH:
+			//(mixed fixnums and flonums are an error; leave it to the general path)
+			if(count != 2 || args.car().getType() != args.cdr().car().getType()){
+				return null;
+			}
+			if(args.car().eqeq(args.cdr().car())){
+				return ScmObject.makeTrue();
+			}else{
+				return ScmObject.makeFalse();
+			}
+		default:
+			return null;
+		}
+	}
+	
+	private static long fixnumSum(ScmObject args){
+		long sum = 0;
+		for(ScmObject a = args; !a.isNil(); a = a.cdr()){
+			sum += a.car().intValue();
+		}
+		return sum;
+	}
+	
+	//(Long.MIN_VALUE if the product may overflow)
+	private static long fixnumProduct(ScmObject args){
+		long product = 1;
+		for(ScmObject a = args; !a.isNil(); a = a.cdr()){
+			if(product >= MAX_FACTOR || product <= -MAX_FACTOR){
+				return Long.MIN_VALUE;
+			}
+			product *= a.car().intValue();
+		}
+		return product;
+	}
+	
+	//a * b, or NaN if it is not exact (Dekker's TwoProduct); an exact product is also the decimal one
+	private static double exactProduct(double a, double b){
+		double product = a * b;
+		if(product == 0.0){
+			//(the general path keeps the scale of a decimal zero; e.g., 0.00)
+			return Double.NaN;
+		}else if(Double.isNaN(product) || Math.abs(product) > 1e290 || Math.abs(product) < 1e-290){
+			//(the split may overflow, or the product underflow)
+			return Double.NaN;
+		}
+		double c = SPLITTER * a;
+		double aHigh = c - (c - a);
+		double aLow = a - aHigh;
+		c = SPLITTER * b;
+		double bHigh = c - (c - b);
+		double bLow = b - bHigh;
+		double error = ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+		return error == 0.0 ? product : Double.NaN;
+	}
+	
+	//(integral results are fixnums, as in numToScmObject(); null if the result was not exact,
+	// or is integral but too large for a fixnum)
+	private static ScmObject flonumToScmObject(double n){
+		if(Double.isNaN(n)){
+			return null;
+		}else if(Math.floor(n) == n){
+			return n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE ? ScmObject.makeInteger((long) n) : null;
+		}else{
+			return ScmObject.makeDouble(n);
+		}
+	}
+	
 	//type:
 	// 0 - int
 	// 1 - big int
@@ -573,8 +769,9 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 		if(args.cdr().isNil() || !args.cdr().cdr().isNil()){
 			throw new SchemeException("bad number of parameters");
 		}
-		ScmObject a = args.car();
-		ScmObject b = args.cdr().car();
+		//(cast copies; the arguments may be shared)
+		ScmObject a = args.car().clone();
+		ScmObject b = args.cdr().car().clone();
 		int type = Math.max(a.getType(), b.getType());
 		try {
 			a.cast(type);
@@ -605,8 +802,9 @@ public class InternalPrimitive extends ScmObject implements Primitive{
 		if(args.cdr().isNil() || !args.cdr().cdr().isNil()){
 			throw new SchemeException("bad number of parameters");
 		}
-		ScmObject a = args.car();
-		ScmObject b = args.cdr().car();
+		//(cast copies; the arguments may be shared)
+		ScmObject a = args.car().clone();
+		ScmObject b = args.cdr().car().clone();
 		int type = Math.max(a.getType(), b.getType());
 		try {
 			a.cast(type);
@@ -0,0 +1,174 @@
+package org.goobs.scheme;
+
+/**
+ * Runs compiled Scheme expressions (see {@link Analyzer}) without recursing on the Java stack.
+ * The machine keeps the expression it is evaluating, the environment it is evaluating it in,
+ * and a heap-allocated stack of continuation frames; a node which needs the value of a
+ * subexpression pushes a frame to be resumed with it.
+ * Calls in tail position push no frame, so iterative loops run in constant space,
+ * and non-tail recursion is bounded by {@link Machine#MAX_DEPTH} rather than the thread's stack.
+ */
+class Machine {
+	/** The deepest the continuation stack may grow before giving up */
+	protected static final int MAX_DEPTH = 1000000;
+
+	/**
+	 * A continuation: the node to resume, and the state it left for itself
+	 */
+	protected static final class Frame {
+		protected Analyzer.Node node;
+		protected Environment env;
+		protected int index;
+		protected ScmObject value;
+		protected ScmObject[] vals;
+	}
+
+	//--Registers
+	private Analyzer.Node node;		//(the next node to evaluate, or null if value holds a result)
+	private Environment env;
+	private ScmObject value;
+	private final SchemeThreadPool.SchemeThread thread;
+	//(the last closure call entered, and the stack depth it was entered at; for error messages)
+	private ScmObject call;
+	private int callDepth;
+
+	//--Stack
+	private Frame[] stack = new Frame[16];
+	private int size = 0;
+
+	private Machine(SchemeThreadPool.SchemeThread thread){
+		this.thread = thread;
+	}
+
+	/**
+	 * Evaluate a compiled expression
+	 * @param node The compiled expression
+	 * @param env The environment to evaluate it in
+	 * @param thread The Scheme thread evaluating it, or null if not parallel
+	 * @return The value of the expression
+	 */
+	protected static ScmObject run(Analyzer.Node node, Environment env, SchemeThreadPool.SchemeThread thread){
+		Machine m = new Machine(thread);
+		m.eval(node, env);
+		return m.loop();
+	}
+
+	private ScmObject loop(){
+		try {
+			while(true){
+				if(node != null){
+					//(evaluate a node)
+					Analyzer.Node n = node;
+					node = null;
+					n.exec(this, env);
+				}else if(size == 0){
+					//(done)
+					return value;
+				}else{
+					//(resume a continuation)
+					size -= 1;
+					Frame k = stack[size];
+					stack[size] = null;
+					if(size < callDepth){
+						call = null;
+					}
+					k.node.resume(this, k, value);
+				}
+			}
+		} catch (SchemeException e) {
+			throw unwind(e);
+		}
+	}
+
+	//(tag an error with the innermost call which was pending when it was thrown)
+	private SchemeException unwind(SchemeException e){
+		if(e.getMessage() != null && e.getMessage().startsWith("eval:")){
+			return e;
+		}
+		ScmObject exp = null;
+		for(int i=size-1; i>=0; i--){
+			ScmObject pending = stack[i].node.pendingCall(stack[i]);
+			if(pending != null){
+				if(call != null && callDepth > i){
+					exp = call;
+				}else{
+					exp = pending;
+				}
+				break;
+			}
+		}
+		if(exp == null){
+			exp = call;
+		}
+		if(exp == null){
+			return e;
+		}
+		return new SchemeException("eval: " + e.getMessage() + ": " + exp);
+	}
+
+	//--Operations for nodes
+	/**
+	 * Produce the value of the node being evaluated
+	 */
+	protected void value(ScmObject value){
+		this.value = value;
+	}
+
+	/**
+	 * Evaluate a node next, in place of the node being evaluated
+	 */
+	protected void eval(Analyzer.Node node, Environment env){
+		this.node = node;
+		this.env = env;
+	}
+
+	/**
+	 * Push a continuation, to be resumed with the value of the next node evaluated
+	 */
+	protected Frame push(Analyzer.Node owner, Environment env, int index){
+		Frame k = new Frame();
+		k.node = owner;
+		k.env = env;
+		k.index = index;
+		push(k);
+		return k;
+	}
+
+	/**
+	 * Push a continuation again, once it has been resumed
+	 */
+	protected void push(Frame k){
+		if(size == stack.length){
+			if(size >= MAX_DEPTH){
+				throw new SchemeException("too many recursions");
+			}
+			Frame[] grown = new Frame[Math.min(MAX_DEPTH, size * 2)];
+			System.arraycopy(stack, 0, grown, 0, size);
+			stack = grown;
+		}
+		stack[size] = k;
+		size += 1;
+	}
+
+	/**
+	 * Apply a function; a closure's body is evaluated in place of the node being evaluated
+	 * @param func The function
+	 * @param args The arguments to the function
+	 * @param exp The call, for error messages
+	 */
+	protected void apply(ScmObject func, ScmObject args, ScmObject exp){
+		Analyzer.Procedure proc = func.getProcedure();
+		if(proc == null){
+			value = func.apply(args, thread);
+		}else{
+			Environment frame = func.bindArguments(args, thread);
+			call = exp;
+			callDepth = size;
+			eval(proc.body, frame);
+		}
+	}
+
+	protected SchemeThreadPool.SchemeThread thread(){
+		return thread;
+	}
+}
@@ -13,9 +13,6 @@ import java.util.List;
 
 /*
  * TODO Scheme improvements
- *  -recursions are unusually shallow (fib calculated to 500): maybe need to implement tail-recursion efficiently? 
- *  	(define (fib x) (if (< x 2) 1 (+ x (fib (- x 1))) ) )
- *  	(define (fib x) (define (helper sofar index max) (if (> index max) sofar (helper (+ sofar index) (+ index 1) max)) ) (helper 0 0 x))
  *	-floor primitive can lose precision
  *  -make things not painfully slow
  */
@@ -260,13 +257,11 @@ public class Scheme {
 
 	private ScmObject evalImpl(ScmObject exp, boolean multiThread){
 		try {
-			ScmObject rtn = ScmObject.makeFalse();
 			if(auxPool == null || !multiThread){
-				rtn = global.eval(exp, null);
+				return global.eval(exp, null);
 			}else{
-				auxPool.runAsRoot(exp, global, rtn);
+				return auxPool.runAsRoot(exp, global);
 			}
-			return rtn;
 		} catch (RuntimeException e) {
 			//(case: unexpected exception)
 			if(e instanceof SchemeException){
@@ -42,92 +42,68 @@ public class ScmObject implements Serializable{
 	
 	private Object content;
 	private int type;
+	//(fixnums and flonums are kept unboxed: the value of an INTEGER, or the raw bits of a DOUBLE;
+	//  content is null for these types, and boxed on demand by getContent())
+	private long bits;
+	
+	//(small integers are shared, so numbers must never be mutated in place)
+	private static final int CACHE_LOW = -128;
+	private static final int CACHE_HIGH = 1024;
+	private static final ScmObject[] smallIntegers = new ScmObject[CACHE_HIGH - CACHE_LOW + 1];
+	static{
+		for(int i=0; i<smallIntegers.length; i++){
+			smallIntegers[i] = new ScmObject(null, INTEGER);
+			smallIntegers[i].bits = i + CACHE_LOW;
+		}
+	}
 	
 	
 	
 	private class Lambda{
 		private ScmObject vars;
 		private ScmObject body;
+		private Analyzer.Procedure proc;
 		private Environment creationEnvironment;
 		
-		private Lambda(ScmObject args, ScmObject bod, Environment env){
-			vars = args;
-			body = bod;
+		private Lambda(ScmObject args, Analyzer.Procedure code, Environment env){
+			vars = args.car();
+			body = args.cdr();
+			proc = code;
 			creationEnvironment = env;
 		}
 		
 		private ScmObject apply(ScmObject vals, SchemeThreadPool.SchemeThread thread){
-			ScmObject apply_vars = vars;
-			ScmObject apply_body = body;
-			Environment env = new Environment(creationEnvironment);;
-			Environment runEnv = null;
-			if(thread != null && thread.tid != SchemeThreadPool.ROOT_THREAD){
-				runEnv = env.extendLockedEnvironment();
-			}else{
-				runEnv = env;
+			return Machine.run(proc.body, bind(vals, thread), thread);
+		}
+		
+		//(make the frame of a call to this lambda)
+		private Environment bind(ScmObject vals, SchemeThreadPool.SchemeThread thread){
+			if(proc.illDefined){
+				throw new SchemeException("lambda: attempted evaluation of ill-defined lambda");
 			}
+			//(the frame of the call; write-locked if it is run in parallel)
+			Environment env = new Environment(creationEnvironment, proc.names,
+					thread != null && thread.tid != SchemeThreadPool.ROOT_THREAD);
 			//initialize the bindings in the new environment
-			while(vals.type != NIL){
-				if(apply_vars.type == NIL){
-					throw new SchemeException("lambda: too many arguments to lambda");
+			int[] params = proc.params;
+			for(int i=0; i<params.length; i++){
+				if(vals.type == NIL){
+					throw new SchemeException("Too few arguments to lambda");
 				}
-				ScmObject binding;
-				ScmObject value;
-
-				if(apply_vars.car().equals(ScmObject.specify("."))){
-					if(apply_vars.cdr().isType(ScmObject.NIL) ||
-						!	apply_vars.cdr().cdr().isType(ScmObject.NIL)){
-						throw new SchemeException("lambda: attempted evaluation of ill-defined lambda");
-					}
-					//list lambda
-					binding = apply_vars.cdr().car();
-					value = vals;
-					if(binding.type == BINDING){
-						env.putBinding(binding, value);
-					}
-					if(!apply_vars.cdr().cdr().isNil()){
-						throw new SchemeException("lambda: too many variables in declaration");
-					}
-					apply_vars = apply_vars.cdr().cdr();
-					break; //this must be the last argument
-				}else{
-					//standard lambda
-					binding = apply_vars.car();
-					value = vals.car();
-					if(binding.type == BINDING){
-						env.putBinding(binding, value);
-					}
-					vals = vals.cdr();
-
-					if(apply_vars.type == NIL){
-						throw new SchemeException("lambda: too many arguments to lambda");
-					}
-					apply_vars = apply_vars.cdr();
+				if(params[i] >= 0){
+					env.setSlot(params[i], vals.car());
 				}
+				vals = vals.cdr();
 			}
-			// too few arguments
-			if(apply_vars.type != NIL){
-				throw new SchemeException("Too few arguments to lambda");
-			}
-
-			// list lambda without a list term
-			if (apply_vars.isType(ScmObject.PAIR) && 
-					apply_vars.car().equals(ScmObject.specify("."))) {
-				if (apply_vars.cdr().isType(ScmObject.NIL)
-						|| !apply_vars.cdr().cdr().isType(ScmObject.NIL)) {
-					throw new SchemeException(
-							"lambda: attempted evaluation of ill-defined lambda");
+			if(proc.hasRest){
+				//list lambda
+				if(proc.rest >= 0){
+					env.setSlot(proc.rest, vals);
 				}
-				env.putBinding(apply_vars.cdr().car(), ScmObject.makeNil());
+			}else if(vals.type != NIL){
+				throw new SchemeException("lambda: too many arguments to lambda");
 			}
-			
-			//apply the body of the lambda
-			ScmObject rtn = makeNil();
-			while(apply_body.type != NIL){
-				rtn = runEnv.eval(apply_body.car(), thread);
-				apply_body = (apply_body.cdr());
-			}
-			return rtn;
+			return env;
 		}
 		
 		private ScmObject toList(ScmObject vals){
@@ -159,7 +135,13 @@ public class ScmObject implements Serializable{
 	
 	//Initialization
 	public ScmObject(Object c, int t){
-		content = c;
+		if(t == INTEGER && c instanceof Number){
+			bits = ((Number) c).intValue();
+		}else if(t == DOUBLE && c instanceof Number){
+			bits = Double.doubleToRawLongBits(((Number) c).doubleValue());
+		}else{
+			content = c;
+		}
 		type = t;
 	}
 	
@@ -180,9 +162,7 @@ public class ScmObject implements Serializable{
 			//LITERAL EXPRESSIONS
 			//  numbers
 			try {
-				content = Integer.parseInt(term);
-				type = ScmObject.INTEGER;
-				return new ScmObject(content, type);
+				return makeInteger(Integer.parseInt(term));
 			} catch (NumberFormatException e) {}
 			try{
 				content = new BigInteger(term);
@@ -320,17 +300,40 @@ public class ScmObject implements Serializable{
 		return new ScmObject("#t", TRUE);
 	}
 	
+	/**
+	 * @param n An integer
+	 * @return n as a fixnum, or as a BIGINT if it does not fit in one
+	 */
+	public static ScmObject makeInteger(long n){
+		if(n >= CACHE_LOW && n <= CACHE_HIGH){
+			return smallIntegers[(int) n - CACHE_LOW];
+		}else if(n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE){
+			ScmObject rtn = new ScmObject(null, INTEGER);
+			rtn.bits = n;
+			return rtn;
+		}else{
+			return new ScmObject(BigInteger.valueOf(n), BIGINT);
+		}
+	}
+	
+	public static ScmObject makeDouble(double d){
+		ScmObject rtn = new ScmObject(null, DOUBLE);
+		rtn.bits = Double.doubleToRawLongBits(d);
+		return rtn;
+	}
+	
 	public static ScmObject makePair(ScmObject car, ScmObject cdr){
 		ScmObject[] content = {car, cdr};
 		return new ScmObject(content, ScmObject.PAIR);
 	}
 	
 	public static ScmObject makeLambda(ScmObject args, Environment env){
-		if(args.type != PAIR || args.cdr().type != PAIR){
-			throw new SchemeException("lambda: cannot create lambda");
-		}
+		return makeLambda(args, Analyzer.analyzeLambda(args, env), env);
+	}
+	
+	protected static ScmObject makeLambda(ScmObject args, Analyzer.Procedure code, Environment env){
 		ScmObject rtn = new ScmObject( null, FUNCTION);
-		rtn.content = rtn.new Lambda(args.car(), args.cdr(), env);
+		rtn.content = rtn.new Lambda(args, code, env);
 		return rtn;
 	}
 	
@@ -346,6 +349,20 @@ public class ScmObject implements Serializable{
 		}
 	}
 	
+	//the compiled body of a lambda, or null if this is not a lambda
+	protected Analyzer.Procedure getProcedure(){
+		if(content instanceof Lambda){
+			return ((Lambda) content).proc;
+		}else{
+			return null;
+		}
+	}
+	
+	//the frame of a call to a lambda, with its arguments bound
+	protected Environment bindArguments(ScmObject args, SchemeThreadPool.SchemeThread thread){
+		return ((Lambda) content).bind(args, thread);
+	}
+	
 	public ScmObject car(){
 		if(type != PAIR){
 			throw new SchemeException("car: not a valid pair: " + this);
@@ -377,9 +394,10 @@ public class ScmObject implements Serializable{
 	}
 	
 	public boolean eq(ScmObject obj){
-		if( (type == INTEGER && obj.type == INTEGER) ||
-		    (type == DOUBLE && obj.type == DOUBLE)){
-			return content == obj.content;
+		if(type == INTEGER && obj.type == INTEGER){
+			return bits == obj.bits;
+		}else if(type == DOUBLE && obj.type == DOUBLE){
+			return doubleValue() == obj.doubleValue();
 		}else if( ( type == BIGINT && obj.type == BIGINT) ||
 				  ( type == BIGDEC && obj.type == BIGDEC) ){
 			return content.equals(obj.content);
@@ -389,9 +407,10 @@ public class ScmObject implements Serializable{
 	}
 	
 	public boolean eqeq(ScmObject obj){
-		if( (type == INTEGER && obj.type == INTEGER) ||
-		    (type == DOUBLE && obj.type == DOUBLE)){
-			return content == obj.content;
+		if(type == INTEGER && obj.type == INTEGER){
+			return bits == obj.bits;
+		}else if(type == DOUBLE && obj.type == DOUBLE){
+			return doubleValue() == obj.doubleValue();
 		}else if( ( type == BIGINT && obj.type == BIGINT) ||
 				  ( type == BIGDEC && obj.type == BIGDEC) ){
 			return content.equals(obj.content);
@@ -405,7 +424,7 @@ public class ScmObject implements Serializable{
 			if(this.type == PAIR){
 				return this.car().eqList(obj.car()) && this.cdr().eqList(obj.cdr());
 			}else{
-				return this.content.equals(obj.content);
+				return this.getContent().equals(obj.getContent());
 			}
 		}else{
 			return false;
@@ -416,7 +435,7 @@ public class ScmObject implements Serializable{
 		if(a.isNil()){
 			return;
 		}
-		if(a.car().isType(PAIR) && a.car().car().content.equals("and")){
+		if(a.car().isType(PAIR) && a.car().car().getContent().equals("and")){
 			ScmObject rec = a.car().cdr();
 			getClauses(rec, clauses);
 		}else{
@@ -471,12 +490,12 @@ public class ScmObject implements Serializable{
 		case BIGINT:
 		case DOUBLE:
 		case BIGDEC:
-			return this.content.equals(obj.content);
+			return this.getContent().equals(obj.getContent());
 		case PAIR:
 			if(!this.isType(PAIR)){
 				return false;
 			}
-			if(car().content.equals("and") && obj.car().content.equals("and")){
+			if(car().getContent().equals("and") && obj.car().getContent().equals("and")){
 				return sameFormAnd(cdr(), obj.cdr());
 			}
 			return car().sameFormAs(obj.car())
@@ -494,25 +513,26 @@ public class ScmObject implements Serializable{
 			return;
 		}else if(t == BIGDEC){
 			if(type == INTEGER){
-				content = new BigDecimal((Integer) content);
+				content = new BigDecimal((int) bits);
 			}else if(type == BIGINT){
 				content = new BigDecimal((BigInteger) content);
 			}else if(type == DOUBLE){
-				content = new BigDecimal((Double) content);
+				content = new BigDecimal(doubleValue());
 			}else{
 				throw new SchemeException("[INTERNAL]: invalid type cast: " + type + " to " + t);
 			}
 		}else if(t == DOUBLE){
 			if(type == INTEGER){
-				content = new Double((Integer) content);
+				bits = Double.doubleToRawLongBits((int) bits);
 			}else if(type == BIGINT){
-				content = Double.parseDouble(content.toString());
+				bits = Double.doubleToRawLongBits(Double.parseDouble(content.toString()));
+				content = null;
 			}else{
 				throw new SchemeException("[INTERNAL]: invalid type cast: " + type + " to " + t);
 			}
 		}else if(t == BIGINT){
 			if(type == INTEGER){
-				content = new BigInteger(content.toString());
+				content = BigInteger.valueOf(bits);
 			}else{
 				throw new SchemeException("[INTERNAL]: invalid type cast: " + type + " to " + t);
 			}
@@ -525,13 +545,35 @@ public class ScmObject implements Serializable{
 	public void setTo(ScmObject newObj){
 		if(this.type == NIL){ throw new IllegalStateException("Cannot set! nil"); }
 		content = newObj.content;
+		bits = newObj.bits;
 		type = newObj.type;
 	}
 
 	public Object getContent(){
+		if(content == null){
+			if(type == INTEGER){
+				return Integer.valueOf((int) bits);
+			}else if(type == DOUBLE){
+				return Double.valueOf(doubleValue());
+			}
+		}
 		return content;
 	}
 	
+	//the value of a fixnum
+	protected int intValue(){
+		return (int) bits;
+	}
+	
+	//the value of a fixnum or flonum, as a double
+	protected double doubleValue(){
+		if(type == INTEGER){
+			return (int) bits;
+		}else{
+			return Double.longBitsToDouble(bits);
+		}
+	}
+	
 	public int getType(){
 		return type;
 	}
@@ -598,13 +640,15 @@ public class ScmObject implements Serializable{
 			//(other pair)
 			return ScmObject.makePair(this.car().toList(env), this.cdr().toList(env));
 		default:
-			return new ScmObject(this.content.toString(), ScmObject.WORD);
+			return new ScmObject(this.getContent().toString(), ScmObject.WORD);
 		}
 	}
 	
 	@Override
 	public ScmObject clone(){
-		return new ScmObject(content, type);
+		ScmObject rtn = new ScmObject(content, type);
+		rtn.bits = bits;
+		return rtn;
 	}
 	
 	@Override
@@ -621,13 +665,13 @@ public class ScmObject implements Serializable{
 		}else if( type == NIL ){
 			return "()";
 		}else{
-			return content.toString();
+			return getContent().toString();
 		}
 	}
 	
 	@Override
 	public int hashCode(){
-		return content.hashCode();
+		return getContent().hashCode();
 	}
 	
 	@Override
@@ -641,7 +685,7 @@ public class ScmObject implements Serializable{
 				(type == FALSE && obj.type == FALSE)){
 				return true;
 			}
-			return content.equals(obj.content) && type == obj.type;
+			return type == obj.type && getContent().equals(obj.getContent());
 		}
 	}
 	
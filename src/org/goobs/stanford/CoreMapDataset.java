@@ -1,6 +1,8 @@
 package org.goobs.stanford;
 
 
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.ArrayCoreMap;
 import edu.stanford.nlp.util.CoreMap;
 import org.goobs.database.*;
 import org.goobs.exec.Log;
@@ -8,10 +10,16 @@ import org.goobs.testing.Dataset;
 import org.goobs.testing.Task;
 import org.goobs.util.MetaClass;
 import org.goobs.util.Range;
+import org.goobs.util.Utils;
 
+import java.io.File;
+import java.io.Serializable;
 import java.util.*;
 
 public class CoreMapDataset extends Dataset<DBCoreMap> {
+	/** The snapshot columns written by exportSnapshot() */
+	static final String SNAPSHOT_ID = "id";
+	static final String SNAPSHOT_MAP = "map";
 
 	private static class DependencyException extends RuntimeException {
 		private DependencyException() { super(); }
@@ -126,7 +134,11 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
 		this.maps = new DBCoreMap[this.dataset.maps.length];
 		//(fetch if applicable)
 		if(!lazy){
+			List<Integer> ids = new ArrayList<Integer>(maps.length);
+			for(String id : dataset.maps){ ids.add(Integer.parseInt(id)); }
+			List<DBCoreMap> fetched = db.getObjectsByIds(DBCoreMap.class, ids);
 			for(int id=0; id<numExamples(); id++){
+				maps[id] = fetched.get(id);
 				get(id);
 			}
 		}
@@ -191,13 +203,14 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
 		//--Data
 		//(flush data)
 		int index = 0;
+		db.beginBatch(Database.BULK_BATCH_SIZE);  // large chunks are COPYed into Postgres
 		for(DBCoreMap map : coreMaps){
-			String str = map.toString();
-			Log.log("flushing " + index++ + " / " + coreMaps.length + ": " + str.substring(0,Math.min(str.length(),20)));
+			Log.log("flushing " + index++ + " / " + coreMaps.length);
 			if(!map.isInDatabase()){
 				map.deepFlush(); }
 
 		}
+		db.endBatch();
 		//(create dataset)
 		Log.log("creating dataset");
 		this.dataset.maps = new String[coreMaps.length];
@@ -243,15 +256,18 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
   public <E extends Task> void forgetTask(E task) {
 		//--Ensure No Dependencies
 		for(Class<Task> depend : task.dependencies()){
-			if(db.getObjectsByKey(DatasetTask.class, "class", depend) != null){
+			Iterator<DatasetTask> active = db.getObjectsByKey(DatasetTask.class, "class", depend);
+			boolean isActive = active.hasNext();
+			Database.close(active);
+			if(isActive){
 				throw new DependencyException("Trying to forget task " + task.getClass() + " with active dependency " + depend);
 			}
 		}
 		//--Delete Task
 		DatasetTask toForget = db.getObjectByKey(DatasetTask.class, "class", task.getClass());
 		if(toForget != null){
-			db.deleteObjectsWhere(Dependency.class, "condition='"+toForget.tid +"'");
-			db.deleteObjectsWhere(Dependency.class, "allows='"+toForget.tid +"'");
+			db.deleteObjectsWhere(Dependency.class, "condition=?", toForget.tid);
+			db.deleteObjectsWhere(Dependency.class, "allows=?", toForget.tid);
 			db.deleteObjectById(DatasetTask.class, toForget.tid);
 		}
 	}
@@ -263,10 +279,10 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
 		if(dbTask == null){ throw new IllegalArgumentException("Called runTask() without creating it first"); }
 		db.beginTransaction();
     //(clear previous annotation)
-    db.deleteObjectsWhere(NestedElement.MapElem.class, "source='" + dbTask.tid + "'");
-    db.deleteObjectsWhere(DBCoreMap.class, "source='" + dbTask.tid + "'");
-    db.deleteObjectsWhere(NestedElement.ListElem.class, "source='" + dbTask.tid + "'");
-    db.deleteObjectsWhere(NestedElement.DBList.class, "source='" + dbTask.tid + "'");
+    db.deleteObjectsWhere(NestedElement.MapElem.class, "source=?", dbTask.tid);
+    db.deleteObjectsWhere(DBCoreMap.class, "source=?", dbTask.tid);
+    db.deleteObjectsWhere(NestedElement.ListElem.class, "source=?", dbTask.tid);
+    db.deleteObjectsWhere(NestedElement.DBList.class, "source=?", dbTask.tid);
 		clearCache();
 		//(perform)
 		db.endTransaction();
@@ -336,7 +352,7 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
 			for(Class<? extends Task> depend : toRemove){
 				DatasetTask condition = db.getObjectByKey(DatasetTask.class, "task", toAdd);
 				if(condition != null){ throw new DependencyException("New dependency of " + taskClass + " on " + depend + " cannot be removed, since the dependency is not in the database"); }
-				db.deleteObjectsWhere(Dependency.class,"allows='"+toCreate.tid +"' AND condition='"+condition.tid +"'");
+				db.deleteObjectsWhere(Dependency.class, "allows=? AND condition=?", toCreate.tid, condition.tid);
 			}
 		} else {
 			//(get dependencies)
@@ -353,6 +369,53 @@ public class CoreMapDataset extends Dataset<DBCoreMap> {
 		return this;
 	}
 
+	/**
+	 * Write this dataset to a memory mapped snapshot, which can be read without a database connection.
+	 * Each map is stored serialized, with its nested maps and lists copied out of the database.
+	 * @param file The file to write the snapshot to
+	 * @return The snapshot, as a dataset
+	 */
+	public MappedCoreMapDataset exportSnapshot(File file){
+		Log.startTrack("Exporting Snapshot");
+		Snapshot.Writer writer = new Snapshot.Writer(file,
+				new String[]{ SNAPSHOT_ID, SNAPSHOT_MAP }, new Snapshot.Type[]{ Snapshot.Type.INT, Snapshot.Type.BYTES });
+		try {
+			for(int id=0; id<numExamples(); id++){
+				Log.log("exporting " + id + " / " + numExamples());
+				writer.addRow(id, Utils.obj2bytes((Serializable) detach(get(id))));
+			}
+		} catch (RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		writer.close();
+		Log.end_track();
+		return new MappedCoreMapDataset(file);
+	}
+
+	/**
+	 * Copy a value out of the database, so it can be serialized on its own
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object detach(Object value){
+		if(value instanceof CoreMap){
+			CoreMap map = (CoreMap) value;
+			ArrayCoreMap rtn = new ArrayCoreMap(map.size());
+			for(Class key : map.keySet()){
+				rtn.set(key, detach(map.get(key)));
+			}
+			return (value instanceof CoreLabel) ? new CoreLabel(rtn) : rtn;
+		} else if(value instanceof List){
+			List<Object> rtn = new ArrayList<Object>(((List) value).size());
+			for(Object elem : (List) value){
+				rtn.add(detach(elem));
+			}
+			return rtn;
+		} else {
+			return value;
+		}
+	}
+
 	public CoreMapDataset deepCopy(){
 		CoreMapDataset rtn = new CoreMapDataset();
 		rtn.name = this.name;
@@ -81,8 +81,9 @@ public class DBCoreMap extends NestedElement implements CoreMap, Datum {
 			}
 			//(populate map)
 			impl = new ArrayCoreMap(0);
+			this.database.fetchLinks(Arrays.asList(elements), Database.Fetch.PARENTS);
+			prefetch(this.database, elements);
 			for (NestedElement.MapElem elem : elements) {
-				elem.refreshLinks();
 				impl.set(elem.key(), elem.value(this.database));
 			}
 			if(updateMarker.get(Thread.currentThread().getId()) == this){
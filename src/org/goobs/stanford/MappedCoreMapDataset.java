@@ -0,0 +1,65 @@
+package org.goobs.stanford;
+
+import org.goobs.database.Snapshot;
+import org.goobs.testing.Dataset;
+import org.goobs.util.Range;
+import org.goobs.util.Utils;
+
+import edu.stanford.nlp.util.CoreMap;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A CoreMap dataset read from a memory mapped snapshot, as written by
+ * {@link CoreMapDataset#exportSnapshot(File)}.
+ * Opening it needs no database connection, and processes reading the same file share its pages.
+ * Each call to get() deserializes a fresh copy of the map, which is not connected to the database.
+ */
+public class MappedCoreMapDataset extends Dataset<CoreMapDatum> implements Closeable {
+	private static final long serialVersionUID = 1L;
+
+	private final File file;
+	private transient Snapshot snapshot;
+	private transient int mapColumn;
+
+	public MappedCoreMapDataset(File file){
+		this.file = file;
+		init();
+	}
+
+	private void init(){
+		this.snapshot = Snapshot.open(file);
+		this.mapColumn = snapshot.column(CoreMapDataset.SNAPSHOT_MAP);
+		if(mapColumn < 0 || snapshot.type(mapColumn) != Snapshot.Type.BYTES){
+			snapshot.close();
+			throw new IllegalArgumentException("Not a CoreMap snapshot: " + file);
+		}
+	}
+
+	@Override
+	public int numExamples() {
+		return snapshot.rows();
+	}
+
+	@Override
+	public CoreMapDatum get(int id) {
+		if(id < 0 || id >= snapshot.rows()){ throw new IllegalArgumentException("ID is out of range: " + id); }
+		return new CoreMapDatum((CoreMap) Utils.bytes2obj(snapshot.getBytes(id, mapColumn)), id);
+	}
+
+	@Override
+	public Range range() {
+		return new Range(0,numExamples());
+	}
+
+	@Override
+	public void close(){
+		snapshot.close();
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+}
@@ -22,6 +22,7 @@ public abstract class NestedElement extends DatabaseObject {
   protected CoreMapDataset.DatasetTask source;
 
 	protected boolean changed;
+	private NestedElement fetched = null;
 
 	public NestedElement(Class type, Object value, CoreMapDataset.DatasetTask task){
 		this.valueType = type;
@@ -35,20 +36,24 @@ public abstract class NestedElement extends DatabaseObject {
 		if(value instanceof DBCoreMap){
 			//--Case: DB CoreMap
 			((DBCoreMap) value).deepFlush();
+			db.flushPending((DBCoreMap) value);
 			value = ""+((DBCoreMap) value).eid;
 		} else if(value instanceof CoreMap) {
 			//--Case: CoreMap
 			db.registerType(DBCoreMap.class, DBCoreMap.class, CoreMapDataset.DatasetTask.class);
 			DBCoreMap val = db.emptyObject(DBCoreMap.class, value, source).deepFlush();
+			db.flushPending(val);
 			value = ""+val.eid;
 		} else if(value instanceof DBList){
 			//--Case: DB List
 			((DBList) value).deepFlush();
+			db.flushPending((DBList) value);
 			value = ""+((DBList) value).eid;
 		} else if(value instanceof java.util.List) {
 			//--Case: List
 			db.registerType(DBList.class, java.util.List.class, CoreMapDataset.DatasetTask.class);
 			DBList val = db.emptyObject(DBList.class, value, source).deepFlush();
+			db.flushPending(val);
 			value = ""+val.eid;
 		} else if(value  instanceof Calendar){
 			value = ""+((Calendar) value).getTimeInMillis();
@@ -60,28 +65,71 @@ public abstract class NestedElement extends DatabaseObject {
 		this.changed = false;
 	}
 
+	/**
+	 * Look up the nested maps and lists referenced by a number of elements together,
+	 * with a query per type rather than a query per element.
+	 * @param db The database to read from
+	 * @param elems The elements whose values will be read
+	 */
+	protected static void prefetch(Database db, NestedElement[] elems){
+		//(collect references)
+		List<NestedElement> maps = new ArrayList<NestedElement>();
+		List<Integer> mapIds = new ArrayList<Integer>();
+		List<NestedElement> lists = new ArrayList<NestedElement>();
+		List<Integer> listIds = new ArrayList<Integer>();
+		for(NestedElement elem : elems){
+			if(elem.fetched != null || !(elem.value instanceof String) || elem.valueType == null){ continue; }
+			if(CoreMap.class.isAssignableFrom(elem.valueType)){
+				maps.add(elem);
+				mapIds.add(Integer.parseInt(elem.value.toString()));
+			} else if(DBList.class.isAssignableFrom(elem.valueType) || java.util.List.class.isAssignableFrom(elem.valueType)){
+				lists.add(elem);
+				listIds.add(Integer.parseInt(elem.value.toString()));
+			}
+		}
+		//(fetch)
+		if(!maps.isEmpty()){
+			List<DBCoreMap> fetched = db.getObjectsByIds(DBCoreMap.class, mapIds);
+			for(int i=0; i<maps.size(); i++){ maps.get(i).fetched = fetched.get(i); }
+		}
+		if(!lists.isEmpty()){
+			List<DBList> fetched = db.getObjectsByIds(DBList.class, listIds);
+			for(int i=0; i<lists.size(); i++){ lists.get(i).fetched = fetched.get(i); }
+		}
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private <E extends NestedElement> E fetch(Database db, Class<E> type){
+		if(fetched != null){
+			E rtn = (E) fetched;
+			fetched = null;
+			return rtn;
+		}
+		return db.getObjectById(type, Integer.parseInt(value.toString()));
+	}
+
 	@SuppressWarnings({"unchecked"})
 	public Object value(Database db){
 		if(DBCoreMap.class.isAssignableFrom(this.valueType)) {
 			//--Case: DB CoreMap
 			if(value instanceof String){
-				value = db.getObjectById(DBCoreMap.class, Integer.parseInt(value.toString()));
+				value = fetch(db, DBCoreMap.class);
 			}
 		} else if(CoreLabel.class.isAssignableFrom(this.valueType)){
 			//--Case: CoreLabel
 			if(value instanceof String){
-				value = new MyCoreLabel( db.getObjectById(DBCoreMap.class, Integer.parseInt(value.toString())) );
+				value = new MyCoreLabel( fetch(db, DBCoreMap.class) );
 			}
 		} else if(CoreMap.class.isAssignableFrom(this.valueType)) {
 			//--Case: Regular CoreMap
 			if(value instanceof String){
-				value = db.getObjectById(DBCoreMap.class, Integer.parseInt(value.toString()));
+				value = fetch(db, DBCoreMap.class);
 			}
 		} else if(DBList.class.isAssignableFrom(this.valueType)) {
 			//--Case DB List
 			if(value == null){ throw new IllegalStateException("Value is null but should not be: " + this); }
 			if(value instanceof String){
-				DBList lst = db.getObjectById(DBList.class, Integer.parseInt(value.toString()));
+				DBList lst = fetch(db, DBList.class);
 				if(lst == null){ throw new IllegalStateException("No such list: " + value + ":: " + this.getClass() + ":: " + this.eid); }
 				value = lst.toList(db);
 			}
@@ -89,7 +137,7 @@ public abstract class NestedElement extends DatabaseObject {
 			//--Case: Regular List
 			if(value == null){ throw new IllegalStateException("Value is null but should not be: " + this); }
 			if(value instanceof String){
-				value = db.getObjectById(DBList.class, Integer.parseInt(value.toString())).toList(db);
+				value = fetch(db, DBList.class).toList(db);
 			}
 		} else {
 			//--Case: Everything Else
@@ -153,6 +201,7 @@ public abstract class NestedElement extends DatabaseObject {
 			if(this.elems == null){
 				this.refreshLinks();
 				Arrays.sort(elements);
+				prefetch(db, elements);
 				elems = new ArrayList<Object>();
 				for(ListElem e : elements){
 					elems.add(e.value(db));
@@ -3,10 +3,12 @@ package org.goobs.testing;
 import org.goobs.database.*;
 import org.goobs.util.SparseList;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -129,12 +131,22 @@ public class DBResultLogger extends ResultLogger{
 	/*
 	 * VARIABLES
 	 */
+	//(results waiting to be written; loggers block once this many are queued)
+	private static final int QUEUE_CAPACITY = 50000;
+	private static final int BATCH_SIZE = Database.DEFAULT_BATCH_SIZE;
+
 	private Database db;
 	private Run run;
 	private SparseList<Instance> instances = new SparseList<Instance>();
-	private Queue<DatabaseObject> toFlush = new LinkedList<DatabaseObject>();
+	private final BlockingQueue<DatabaseObject> toFlush = new ArrayBlockingQueue<DatabaseObject>(QUEUE_CAPACITY);
+	private Writer writer = null;
+	private boolean closed = false;
+	//(progress of the writer; guarded by 'progress')
+	private final Object progress = new Object();
+	private long submitted = 0;
+	private long written = 0;
+	private Throwable failure = null;
 	
-	private Lock flushQueueLock = new ReentrantLock();
 	private static Lock flushingLock = new ReentrantLock();
 	
 	private enum State { SIMPLE, META, NONE }
@@ -149,7 +161,7 @@ public class DBResultLogger extends ResultLogger{
 		this.db = db;
 		if(!db.isConnected()){ db.connect(); }
 		this.run = db.emptyObject(Run.class, runName == null ? "(none)" : runName);
-		run.flush();
+		flushNow(run);
 	}
 	
 	/*
@@ -157,11 +169,7 @@ public class DBResultLogger extends ResultLogger{
 	 */
 	
 	public void logOption(String name, String value, String location){
-		try{
-			db.emptyObject(Option.class, run, name, value, location).flush();
-		} catch (DatabaseException e){
-			warn("DB_LOGGER", "Could not log option: " + name + " (" + e.getMessage() + ")");
-		}
+		offer( db.emptyObject(Option.class, run, name, value, location) );
 	}
 
 	public int runIndex(){
@@ -172,10 +180,113 @@ public class DBResultLogger extends ResultLogger{
 	 * LOGGING CODE
 	 */
 	
+	/**
+	 * The background thread writing queued results to the database, a batch at a time
+	 */
+	private final class Writer extends Thread {
+		private Writer(){
+			super("DBResultLogger-" + run.rid);
+			setDaemon(true);
+		}
+		@Override
+		public void run(){
+			List<DatabaseObject> batch = new ArrayList<DatabaseObject>(BATCH_SIZE);
+			while(true){
+				//(wait for results)
+				try {
+					batch.add(toFlush.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				toFlush.drainTo(batch, BATCH_SIZE - 1);
+				//(write them, in a batch only this thread can see)
+				Throwable error = null;
+				try {
+					flushingLock.lock();
+					try {
+						db.beginBatch(BATCH_SIZE);
+						try {
+							for(DatabaseObject o : batch){ o.flush(); }
+						} finally {
+							db.endBatch();
+						}
+					} finally {
+						//(give the connection back to the pool while idle)
+						try {
+							db.release();
+						} finally {
+							flushingLock.unlock();
+						}
+					}
+				} catch (RuntimeException e) {
+					error = e;
+					warn("DB_LOGGER", "Could not log " + batch.size() + " results (" + e.getMessage() + ")");
+				} finally {
+					//(report progress)
+					synchronized(progress){
+						written += batch.size();
+						if(error != null && failure == null){ failure = error; }
+						progress.notifyAll();
+					}
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue a result to be written in the background, blocking only if the queue is full
+	 */
 	private void offer(DatabaseObject o){
-		flushQueueLock.lock();
-		toFlush.offer(o);
-		flushQueueLock.unlock();
+		synchronized(progress){
+			if(closed){ throw new IllegalStateException("Logging to a closed logger"); }
+			if(writer == null){
+				writer = new Writer();
+				writer.start();
+			}
+			submitted += 1;
+		}
+		try {
+			toFlush.put(o);
+		} catch (InterruptedException e) {
+			synchronized(progress){ submitted -= 1; }
+			Thread.currentThread().interrupt();
+			throw new DatabaseException("Interrupted while queueing a result");
+		}
+	}
+
+	/**
+	 * Wait until everything queued so far has been written
+	 */
+	private void awaitWritten(){
+		synchronized(progress){
+			long target = submitted;
+			while(written < target){
+				try {
+					progress.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DatabaseException("Interrupted while waiting for results to be written");
+				}
+			}
+			if(failure != null){
+				Throwable cause = failure;
+				failure = null;
+				throw new DatabaseException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Write an object right away, serialized with the background writers
+	 */
+	private static void flushNow(DatabaseObject o){
+		flushingLock.lock();
+		try {
+			o.flush();
+		} finally {
+			flushingLock.unlock();
+		}
 	}
 	
 	private void enforceSimple(){
@@ -237,21 +348,14 @@ public class DBResultLogger extends ResultLogger{
 			}
 		}
 		//--Flush This
-		//(create separate threadspace)
-		flushQueueLock.lock();
-		Queue<DatabaseObject> queue = toFlush;
-		toFlush = new LinkedList<DatabaseObject>();
-		flushQueueLock.unlock();
-		//(flush results)
-		flushingLock.lock(); //must be before beginTransaction
-		db.beginTransaction();
-		for(DatabaseObject o : queue){
-			o.flush();
-		}
-		db.endTransaction();
-		flushingLock.unlock();
+		awaitWritten();
 		//(mark as done)
-		this.run.complete();
+		flushingLock.lock();
+		try {
+			this.run.complete();
+		} finally {
+			flushingLock.unlock();
+		}
 		//(remind user of run)
 		log("THIS IS RUN #" + this.run.rid);
 	}
@@ -282,20 +386,43 @@ public class DBResultLogger extends ResultLogger{
 		//(add logger)
 		DBResultLogger rtn = new DBResultLogger(this.db, this.run.name + "-" + name + index);
 		rtn.run.parent = this.run.rid;
-		rtn.run.flush();
+		flushNow(rtn.run);
 		if( elems.put(index,rtn) != null){
 			warn("DATABASE_LOGGER", "Clobbering logger in group " + name + " with index " + index);
 		}
 		return rtn;
 	}
 
+	/**
+	 * Wait for everything logged so far to be written, without marking the run as complete
+	 */
 	@Override
 	public void suggestFlush() {
-		new Thread(){
-			@Override
-			public void run(){
-				DBResultLogger.this.save();
+		try {
+			awaitWritten();
+		} catch (DatabaseException e) {
+			warn("DB_LOGGER", "Could not flush results (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Save the run, and stop the background writer (and those of any spawned groups).
+	 * Nothing may be logged after closing.
+	 */
+	public void close(){
+		save();
+		closeWriters();
+	}
+
+	private void closeWriters(){
+		for(HashMap<Integer,ResultLogger> elems : this.groups.values()){
+			for(ResultLogger child : elems.values()){
+				if(child instanceof DBResultLogger){ ((DBResultLogger) child).closeWriters(); }
 			}
-		}.start();
+		}
+		synchronized(progress){
+			closed = true;
+			if(writer != null){ writer.interrupt(); }
+		}
 	}
 }
@@ -4,6 +4,8 @@ import org.goobs.database.Database;
 import org.goobs.database.DatabaseObject;
 import org.goobs.util.Range;
 
+import java.io.File;
+
 /**
  * IMPORTANT: The database must have a primary key that's dense (e.g. max(key) = count(key))
  */
@@ -67,4 +69,14 @@ public class DatabaseDataset<D extends DatabaseObject & Datum> extends Dataset<D
 		rtn.refreshLinks(false);
 		return rtn;
 	}
+
+	/**
+	 * Write this dataset to a memory mapped snapshot, which can be read without a database connection.
+	 * @param file The file to write the snapshot to
+	 * @return The snapshot, as a dataset
+	 */
+	public MappedDataset<D> exportSnapshot(File file){
+		db.exportSnapshot(type, file);
+		return new MappedDataset<D>(file, type);
+	}
 }
@@ -0,0 +1,69 @@
+package org.goobs.testing;
+
+import org.goobs.database.Database;
+import org.goobs.database.DatabaseObject;
+import org.goobs.util.Range;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A dataset read from a memory mapped snapshot of a database table,
+ * as written by {@link DatabaseDataset#exportSnapshot(File)} or {@link Database#exportSnapshot(Class, File)}.
+ * Opening it needs no database connection, and processes reading the same file share its pages.
+ * The datums are read only, and their foreign key links are not filled in.
+ * IMPORTANT: As with a DatabaseDataset, the primary key must be dense (e.g. max(key) = count(key))
+ */
+public class MappedDataset<D extends DatabaseObject & Datum> extends Dataset<D> implements Closeable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 3817024685120693321L;
+	private final File file;
+	private final Class<D> type;
+	private transient Database.SnapshotTable<D> table;
+
+	private Range range;
+
+	public MappedDataset(File file, Class<D> type){
+		this.file = file;
+		this.type = type;
+		init();
+	}
+
+	private void init(){
+		this.table = Database.openSnapshot(type, file);
+		//(sizes)
+		int size = table.size();
+		this.range = size == 0 ? new Range(0, 0) : new Range(table.getId(0), table.getId(size - 1) + 1);
+		//(error checks)
+		if(size != this.range.length()){
+			table.close();
+			throw new IllegalStateException("Snapshot indices are not continuously numbered!");
+		}
+	}
+
+	@Override
+	public int numExamples(){ return table.size(); }
+
+	@Override
+	public Range range() { return this.range; }
+
+	@Override
+	public D get(int id){
+		if(!this.range.inRange(id)){
+			throw new IllegalArgumentException("ID is out of range (id=" + id + ",range=" + this.range +")");
+		}
+		return table.get(this.range.toCacheIndex(id));
+	}
+
+	@Override
+	public void close(){
+		table.close();
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+}
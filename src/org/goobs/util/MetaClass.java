@@ -1,9 +1,14 @@
 package org.goobs.util;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.*;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MetaClass implements Decodable{
 
@@ -43,6 +48,9 @@ public class MetaClass implements Decodable{
 		private Class<?>[] classParams;
 		private Class<Type> cl;
 		private Constructor<Type> constructor;
+		private Class<?>[] constructorParams;
+		//(the constructor, taking its arguments as an Object[]; null if it could not be made accessible)
+		private MethodHandle invoker;
 
 		private boolean samePrimitive(Class<?> a, Class<?> b){
 			if(!a.isPrimitive() && !b.isPrimitive()) return false;
@@ -99,18 +107,13 @@ public class MetaClass implements Decodable{
 		}
 
 		@SuppressWarnings("unchecked")
-		private void construct(String classname, Class<?>... params)
-				throws ClassNotFoundException, NoSuchMethodException {
+		private void construct(Class<Type> cl, Class<?>... params)
+				throws NoSuchMethodException {
 			//--Initialization
 			// (save class parameters)
 			this.classParams = params;
-			// (create class)
-			try {
-				this.cl = (Class<Type>) Class.forName(classname);
-			} catch (ClassCastException e) {
-				throw new ClassCreationException("Class " + classname
-						+ " could not be cast to the correct type");
-			}
+			this.cl = cl;
+			String classname = cl.getName();
 			// --Find Constructor
 			// (get constructors)
 			Constructor<?>[] constructors = cl.getDeclaredConstructors();
@@ -173,39 +176,24 @@ public class MetaClass implements Decodable{
 				throw new ConstructorNotFoundException(
 						"No constructor found to match: " + target);
 			}
-		}
-
-		private ClassFactory(String classname, Class<?>... params)
-				throws ClassNotFoundException, NoSuchMethodException {
-			// (generic construct)
-			construct(classname, params);
-		}
-
-		private ClassFactory(String classname, Object... params)
-				throws ClassNotFoundException, NoSuchMethodException {
-			// (convert class parameters)
-			Class<?>[] classParams = new Class[params.length];
-			for (int i = 0; i < params.length; i++) {
-				if(params[i] == null) throw new ClassCreationException("Argument " + i + " to class constructor is null");
-				classParams[i] = params[i].getClass();
+			this.constructorParams = this.constructor.getParameterTypes();
+			// --Create Invoker
+			try {
+				this.constructor.setAccessible(true);
+				MethodHandle handle = MethodHandles.lookup().unreflectConstructor(this.constructor).asFixedArity();
+				this.invoker = handle.asType(handle.type().generic())
+						.asSpreader(Object[].class, handle.type().parameterCount());
+			} catch (SecurityException e) {
+				this.invoker = null;  // fall back to reflection
+			} catch (IllegalAccessException e) {
+				this.invoker = null;  // fall back to reflection
 			}
-			// (generic construct)
-			construct(classname, classParams);
 		}
 
-		private ClassFactory(String classname, String... params)
-				throws ClassNotFoundException, NoSuchMethodException {
-			// (convert class parameters)
-			Class<?>[] classParams = new Class[params.length];
-			for (int i = 0; i < params.length; i++) {
-				classParams[i] = Class.forName(params[i]);
-			}
+		private ClassFactory(Class<Type> cl, Class<?>... params)
+				throws NoSuchMethodException {
 			// (generic construct)
-			construct(classname, classParams);
-		}
-
-		private ClassFactory(String classname) throws ClassNotFoundException, NoSuchMethodException {
-			construct(classname);
+			construct(cl, params);
 		}
 
 		/**
@@ -218,22 +206,17 @@ public class MetaClass implements Decodable{
 		 *            signature passed to this function
 		 * @return An instance of the class
 		 */
+		@SuppressWarnings("unchecked")
 		public Type createInstance(Object... params) {
 			try {
-				//(ensure visibility)
-				boolean accessible = true;
-				if(!constructor.isAccessible()){
-					accessible = false;
-					constructor.setAccessible(true);
-				}
 				//(create arguments)
-				Object[] toPass = new Object[constructor.getParameterTypes().length];
+				Object[] toPass = new Object[constructorParams.length];
 				if(params.length < toPass.length){
 					throw new IllegalArgumentException("Too few arguments to constructror (" + toPass.length + " but only passed " + params.length + ")");
 				}
 				System.arraycopy(params,0,toPass,0, toPass.length == 0 ? 0 : toPass.length-1);
 				if(constructor.isVarArgs()){
-					Class<?> vargsClass = constructor.getParameterTypes()[constructor.getParameterTypes().length-1].getComponentType();
+					Class<?> vargsClass = constructorParams[constructorParams.length-1].getComponentType();
 					int length = params.length - (toPass.length - 1);
 					Object last = Array.newInstance(vargsClass,length);
 					Utils.arraycopy(params,toPass.length-1,last,0,vargsClass,length);
@@ -241,10 +224,22 @@ public class MetaClass implements Decodable{
 				}else if(toPass.length > 0){
 					toPass[toPass.length-1] = params[params.length-1];
 				}
-				Type rtn = constructor.newInstance(toPass);
-				if(!accessible){ constructor.setAccessible(false); }
-				return rtn;
-			} catch (Exception e) {
+				//(create instance)
+				if(invoker != null){
+					return (Type) (Object) invoker.invokeExact(toPass);
+				} else {
+					try {
+						return constructor.newInstance(toPass);
+					} catch (InvocationTargetException e) {
+						//(throw what the constructor threw, as the invoker does)
+						throw e.getCause();
+					}
+				}
+			} catch (ClassCreationException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
 				throw new ClassCreationException(e);
 			}
 		}
@@ -293,7 +288,36 @@ public class MetaClass implements Decodable{
 		}
 	}
 
+	//(factories are immutable once resolved, and can be shared by every MetaClass;
+	// they are kept with their class, keyed by the argument types they were resolved against)
+	private static final ClassValue<ConcurrentHashMap<List<Class<?>>,ClassFactory<?>>> factories
+			= new ClassValue<ConcurrentHashMap<List<Class<?>>,ClassFactory<?>>>(){
+		@Override
+		protected ConcurrentHashMap<List<Class<?>>,ClassFactory<?>> computeValue(Class<?> type){
+			return new ConcurrentHashMap<List<Class<?>>,ClassFactory<?>>();
+		}
+	};
+
+	@SuppressWarnings("unchecked")
+	private static <E> ClassFactory<E> factory(Class<?> clazz, Class<?>[] params)
+			throws NoSuchMethodException {
+		ConcurrentHashMap<List<Class<?>>,ClassFactory<?>> byParams = factories.get(clazz);
+		List<Class<?>> key = Arrays.<Class<?>>asList(params);
+		ClassFactory<E> fact = (ClassFactory<E>) byParams.get(key);
+		if(fact == null){
+			Class<?>[] copy = params.clone();
+			fact = new ClassFactory<E>((Class<E>) clazz, copy);
+			ClassFactory<E> raced = (ClassFactory<E>) byParams.putIfAbsent(Arrays.<Class<?>>asList(copy), fact);
+			if(raced != null){ fact = raced; }
+		}
+		return fact;
+	}
+
+	private static final Class<?>[] NO_PARAMS = new Class<?>[0];
+
 	private String classname;
+	//(the class itself, once resolved)
+	private Class<?> clazz;
 
 	/**
 	 * Creates a new MetaClass producing objects of the given type
@@ -315,6 +339,12 @@ public class MetaClass implements Decodable{
 	 */
 	public MetaClass(Class<?> classname) {
 		this.classname = classname.getName();
+		this.clazz = classname;
+	}
+
+	private Class<?> resolve() throws ClassNotFoundException {
+		if(clazz == null){ clazz = Class.forName(classname); }
+		return clazz;
 	}
 
 	/**
@@ -327,7 +357,7 @@ public class MetaClass implements Decodable{
 	 */
 	public <E> ClassFactory<E> createFactory() {
 		try {
-			return new ClassFactory<E>(classname);
+			return factory(resolve(), NO_PARAMS);
 		} catch (ClassCreationException e) {
 			throw e;
 		} catch (Exception e) {
@@ -347,7 +377,7 @@ public class MetaClass implements Decodable{
 	 */
 	public <E> ClassFactory<E> createFactory(Class<?>... classes) {
 		try {
-			return new ClassFactory<E>(classname, classes);
+			return factory(resolve(), classes);
 		} catch (ClassCreationException e){
 			throw e;
 		} catch (Exception e) {
@@ -367,7 +397,11 @@ public class MetaClass implements Decodable{
 	 */
 	public <E> ClassFactory<E> createFactory(String... classes) {
 		try {
-			return new ClassFactory<E>(classname, classes);
+			Class<?>[] classParams = new Class[classes.length];
+			for (int i = 0; i < classes.length; i++) {
+				classParams[i] = Class.forName(classes[i]);
+			}
+			return factory(resolve(), classParams);
 		} catch (ClassCreationException e){
 			throw e;
 		} catch (Exception e) {
@@ -387,7 +421,12 @@ public class MetaClass implements Decodable{
 	 */
 	public <E> ClassFactory<E> createFactory(Object... objects) {
 		try {
-			return new ClassFactory<E>(classname, objects);
+			Class<?>[] classParams = new Class[objects.length];
+			for (int i = 0; i < objects.length; i++) {
+				if(objects[i] == null) throw new ClassCreationException("Argument " + i + " to class constructor is null");
+				classParams[i] = objects[i].getClass();
+			}
+			return factory(resolve(), classParams);
 		} catch (ClassCreationException e){
 			throw e;
 		} catch (Exception e) {
@@ -449,6 +488,7 @@ public class MetaClass implements Decodable{
     @Override
     public Decodable decode(String encoded, Type[] typeParams) {
         this.classname = encoded;
+        this.clazz = null;
         return this;
     }
 
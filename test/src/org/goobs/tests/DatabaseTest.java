@@ -1,6 +1,7 @@
 package org.goobs.tests;
 
 import org.goobs.database.*;
+import org.goobs.testing.DBResultLogger;
 import org.goobs.util.Decodable;
 import org.goobs.util.MetaClass;
 import org.goobs.util.Utils;
@@ -383,6 +384,23 @@ public class DatabaseTest{
 		public TableFKRef2(String val){ this.val = val; }
 		public TableFKRef2(){}
 	}
+	@Table(name="tableCodecs")
+	public static final class TableCodecs extends DatabaseObject{
+		@PrimaryKey(name="id")
+		public int id;
+		@Key(name="ints")
+		public int[] ints;
+		@Key(name="longs")
+		public long[] longs;
+		@Key(name="floats")
+		public float[] floats;
+		@Key(name="doubles")
+		public double[] doubles;
+		@Key(name="deflated", codec=Codecs.DeflatedDoubles.class)
+		public double[] deflated;
+		@Key(name="serialized", codec=Codecs.DeflatedSerialized.class)
+		public Serializable serialized;
+	}
 	
 	
 
@@ -394,6 +412,8 @@ public class DatabaseTest{
 	private String username = "java";
 	private String password = "what?why42?";
 	private String schema = "junit";
+	//(each in-memory H2 database lives as long as the JVM, so each call gets a fresh one)
+	private static int h2Databases = 0;
 	
 	private List<Database> eachType(){ return eachType(false,true); }
 	private List<Database> eachType(boolean force ){ return eachType(true,true); }
@@ -409,6 +429,7 @@ public class DatabaseTest{
 			fail(e.getMessage());
 		}
 		Database.ConnInfo sqlite = Database.ConnInfo.sqlite(f);
+		Database.ConnInfo h2 = Database.ConnInfo.h2Memory(schema + (h2Databases++));
 		//(create list)
 		ArrayList <Database> rtn = new ArrayList <Database> ();
 		try {
@@ -426,6 +447,11 @@ public class DatabaseTest{
 		} catch (Exception e) {
 			if(force){ fail("Cannot create sqlite: " + e.getMessage()); }
 		}
+		try {
+			rtn.add(connect ? new Database(h2).connect() : new Database(h2));
+		} catch (Exception e) {
+			if(force){ fail("Cannot create H2: " + e.getMessage()); }
+		}
 		//(return)
 		return rtn;
 	}
@@ -801,6 +827,272 @@ public class DatabaseTest{
 		}
 	}
 
+	@Test
+	public void batch() throws InterruptedException {
+		for(final Database d : eachType()){
+			//--Create Connection
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			//--Batched Inserts
+			d.beginBatch(64);
+			List<TableStandardFields> rows = new ArrayList<TableStandardFields>();
+			for(int i=0; i<1000; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldA = "string" + i;
+				f.fieldInt = i;
+				f.flush();
+				f.flush(); //should not queue twice
+				rows.add(f);
+			}
+			assertEquals(1000 - (1000 / 64) * 64, d.endBatch());
+			assertFalse(d.inBatch());
+			//--Check Keys
+			assertEquals(1000, d.getTableRowCount(TableStandardFields.class));
+			HashSet<Integer> seen = new HashSet<Integer>();
+			for(TableStandardFields f : rows){
+				assertTrue(f.isInDatabase());
+				assertTrue(f.id > 0);
+				assertTrue(seen.add(f.id));
+				TableStandardFields g = d.getObjectById(TableStandardFields.class, f.id);
+				assertTrue(f == g);
+				assertEquals("string" + f.fieldInt, g.fieldA);
+			}
+			//--Unbatched Inserts After A Batch
+			TableStandardFields single = d.emptyObject(TableStandardFields.class);
+			single.fieldA = "single";
+			single.flush();
+			assertTrue(single.isInDatabase());
+			assertEquals(1001, d.getTableRowCount(TableStandardFields.class));
+			//--Other Threads Do Not Join A Batch
+			d.beginBatch(64);
+			final TableStandardFields other = d.emptyObject(TableStandardFields.class);
+			other.fieldA = "other";
+			Thread t = new Thread(){
+				@Override
+				public void run(){
+					other.flush();
+					d.release();
+				}
+			};
+			t.start();
+			t.join();
+			assertTrue(other.isInDatabase());
+			assertEquals(0, d.endBatch());
+			assertEquals(1002, d.getTableRowCount(TableStandardFields.class));
+			//--Batched Foreign Keys
+			d.beginBatch(3);
+			TableFKBase base = d.emptyObject(TableFKBase.class);
+			TableFKRef1 ref = d.emptyObject(TableFKRef1.class, "r1",
+					d.emptyObject(TableFKRef1_1.class,"r1_1.1"),
+					d.emptyObject(TableFKRef1_1.class,"r1_1.2"),
+					d.emptyObject(TableFKRef1_1.class,"r1_1.3"));
+			ref.pid = base;
+			ref.deepFlush();
+			d.flushPending(ref);
+			assertTrue(ref.isInDatabase());
+			assertTrue(base.isInDatabase());
+			d.endBatch();
+			for(TableFKRef1_1 sub : ref.sub1){
+				assertTrue(sub.isInDatabase());
+				assertNotNull(d.getFirstObjectWhere(TableFKRef1_1.class, "pid=" + ref.id + " AND val='" + sub.val + "'"));
+			}
+			//--Disconnect
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void bulkLoad() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableFKBase.class);
+			d.ensureTable(TableFKRef1.class);
+			//--Load
+			List<DatabaseObject> rows = new ArrayList<DatabaseObject>();
+			List<TableFKBase> bases = new ArrayList<TableFKBase>();
+			for(int i=0; i<100; i++){
+				TableFKBase base = d.emptyObject(TableFKBase.class);
+				bases.add(base);
+				rows.add(base);
+			}
+			for(int i=0; i<2500; i++){
+				TableFKRef1 ref = d.emptyObject(TableFKRef1.class);
+				ref.val = "ref" + i;
+				ref.pid = bases.get(i % bases.size());
+				rows.add(ref);
+			}
+			assertEquals(2600, d.bulkLoad(rows));
+			assertFalse(d.inBatch());
+			//--Check
+			assertEquals(100, d.getTableRowCount(TableFKBase.class));
+			assertEquals(2500, d.getTableRowCount(TableFKRef1.class));
+			HashSet<Integer> seen = new HashSet<Integer>();
+			for(int i=100; i<rows.size(); i++){
+				TableFKRef1 ref = (TableFKRef1) rows.get(i);
+				assertTrue(ref.isInDatabase());
+				assertTrue(seen.add(ref.id));
+				assertNotNull(d.getFirstObjectWhere(TableFKRef1.class, "id=? AND val=? AND pid=?", ref.id, ref.val, ref.pid.id));
+			}
+			//--Already Loaded
+			assertEquals(0, d.bulkLoad(rows.subList(0, 10)));
+			assertEquals(100, d.getTableRowCount(TableFKBase.class));
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void indexAdvisor() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableIndices.class);
+			d.ensureTable(TableStandardFields.class);
+			//--Read Indices
+			boolean found = false;
+			for(Database.IndexInfo index : d.getTableIndices("tableindices")){
+				assertEquals("tableindices", index.getTable());
+				if(index.getFields()[0].equalsIgnoreCase("fieldA")){ found = true; }
+			}
+			assertTrue(found);
+			//--Record Lookups
+			d.setQueryStatistics(true);
+			for(int i=0; i<10; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldInt = i % 3;
+				f.fieldLong = i;
+				f.flush();
+			}
+			for(int i=0; i<60; i++){
+				Iterator<TableStandardFields> iter = d.getObjectsWhere(TableStandardFields.class, "fieldLong > ? AND fieldInt=?", 2L, i % 3);
+				while(iter.hasNext()){ iter.next(); }
+				d.getFirstObjectWhere(TableIndices.class, "fieldA=?", i);      //(already indexed)
+				d.getFirstObjectWhere(TableStandardFields.class, "id=?", i);   //(primary key)
+			}
+			d.getFirstObjectWhere(TableStandardFields.class, "fieldString=?", "rare");
+			//--Advise
+			List<Database.IndexAdvice> advice = d.adviseIndices(50);
+			assertEquals(1, advice.size());
+			assertEquals("tableFields", advice.get(0).getTable());
+			assertArrayEquals(new String[]{ "fieldInt", "fieldLong" }, advice.get(0).getFields());
+			assertEquals(60, advice.get(0).getQueries());
+			//--Create
+			assertEquals(1, d.ensureAdvisedIndices(50).size());
+			assertEquals(0, d.adviseIndices(50).size());
+			found = false;
+			for(Database.IndexInfo index : d.getTableIndices("tableFields")){
+				if(Arrays.equals(new String[]{ "fieldint", "fieldlong" }, new String[]{ index.getFields()[0].toLowerCase(), index.getFields().length > 1 ? index.getFields()[1].toLowerCase() : "" })){ found = true; }
+			}
+			assertTrue(found);
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void pooled() throws InterruptedException {
+		for(final Database d : eachTypeDisconnected()){
+			//--Create Connection
+			try {
+				d.setPoolSize(4).connect();
+			} catch (DatabaseException e) {
+				continue; //(database not available; see haveAll())
+			}
+			assertTrue(d.isConnected());
+			assertTrue(d.isPooled());
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			//--Populate
+			final List<TableStandardFields> rows = new ArrayList<TableStandardFields>();
+			d.beginTransaction();
+			for(int i=0; i<200; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldA = "string" + i;
+				f.fieldInt = i;
+				f.flush();
+				rows.add(f);
+			}
+			d.endTransaction();
+			d.release();
+			//--Concurrent Readers
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread[] workers = new Thread[8];
+			for(int t=0; t<workers.length; t++){
+				workers[t] = new Thread(){
+					@Override
+					public void run(){
+						try {
+							d.beginTransaction();
+							for(TableStandardFields f : rows){
+								assertTrue(f == d.getObjectById(TableStandardFields.class, f.id));
+							}
+							int count = 0;
+							Iterator<TableStandardFields> iter = d.getObjectsWhere(TableStandardFields.class, "fieldInt >= 100");
+							while(iter.hasNext()){
+								TableStandardFields f = iter.next();
+								assertEquals("string" + f.fieldInt, f.fieldA);
+								count += 1;
+							}
+							assertEquals(100, count);
+							d.endTransaction();
+						} catch (Throwable e) {
+							errors.add(e);
+						} finally {
+							d.release();
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for(Thread worker : workers){ worker.join(); }
+			if(!errors.isEmpty()){ throw new AssertionError(errors.get(0)); }
+			//--Disconnect
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void parallelScan() {
+		for(Database d : eachTypeDisconnected()){
+			try {
+				d.setPoolSize(4).connect();
+			} catch (DatabaseException e) {
+				continue; //(database not available; see haveAll())
+			}
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			d.beginTransaction();
+			for(int i=0; i<200; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldA = "string" + i;
+				f.fieldInt = i;
+				f.flush();
+			}
+			d.endTransaction();
+			//--Every Row Once
+			Set<Integer> seen = new HashSet<Integer>();
+			Iterator<TableStandardFields> iter = d.parallelObjectsWhere(TableStandardFields.class, "fieldInt >= ?", 7, 50);
+			while(iter.hasNext()){
+				TableStandardFields f = iter.next();
+				assertEquals("string" + f.fieldInt, f.fieldA);
+				assertTrue(seen.add(f.fieldInt));
+			}
+			assertEquals(150, seen.size());
+			seen.clear();
+			iter = d.parallelObjectsWhere(TableStandardFields.class, null, 1000);
+			while(iter.hasNext()){ assertTrue(seen.add(iter.next().fieldInt)); }
+			assertEquals(200, seen.size());
+			//--Closed Early
+			iter = d.parallelObjectsWhere(TableStandardFields.class, "", 4);
+			assertTrue(iter.hasNext());
+			iter.next();
+			Database.close(iter);
+			assertFalse(iter.hasNext());
+			assertEquals(200, d.getTableRowCount(TableStandardFields.class));
+			d.disconnect();
+		}
+	}
+
 	@Test
 	public void getTableColumns() {
 		for(Database d : eachType()){
@@ -1143,6 +1435,223 @@ public class DatabaseTest{
 		}
 	}
 
+	@Test
+	public void getObjectsByIds() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableIndices.class);
+			//(setup)
+			d.beginTransaction();
+			List<TableIndices> rows = new ArrayList<TableIndices>();
+			for(int i=0; i<1500; i++){
+				TableIndices x = d.emptyObject(TableIndices.class);
+				x.fieldA = i % 7;
+				x.fieldB = i;
+				x.flush();
+				rows.add(x);
+			}
+			d.endTransaction();
+			//(by id; reversed, with a duplicate and a missing id)
+			List<Integer> ids = new ArrayList<Integer>();
+			for(int i=rows.size()-1; i>=0; i--){ ids.add(rows.get(i).id); }
+			ids.add(rows.get(3).id);
+			ids.add(-1);
+			List<TableIndices> found = d.getObjectsByIds(TableIndices.class, ids);
+			assertEquals(ids.size(), found.size());
+			for(int i=0; i<rows.size(); i++){
+				assertTrue(rows.get(rows.size()-1-i) == found.get(i));
+			}
+			assertTrue(rows.get(3) == found.get(rows.size()));
+			assertNull(found.get(rows.size()+1));
+			//(by key)
+			Map<Object,List<TableIndices>> byKey = d.getObjectsByKeys(TableIndices.class, "fieldA", Arrays.asList(3, 0, 42));
+			assertEquals(Arrays.<Object>asList(3, 0, 42), new ArrayList<Object>(byKey.keySet()));
+			assertEquals(1500 / 7, byKey.get(3).size());
+			for(TableIndices x : byKey.get(3)){ assertEquals(3, x.fieldA); }
+			assertEquals(1500 / 7 + 1, byKey.get(0).size());
+			assertTrue(byKey.get(42).isEmpty());
+			//--Disconnect
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void parameterizedWhere() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			//--Populate
+			for(int i=0; i<20; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldA = "string" + (i % 4);
+				f.fieldInt = i;
+				f.flush();
+			}
+			//--Query
+			long misses = d.getStatementCacheMisses();
+			for(int i=0; i<4; i++){
+				Iterator<TableStandardFields> iter = d.getObjectsWhere(TableStandardFields.class, "fieldString=? AND fieldInt<?", "string" + i, 10);
+				int count = 0;
+				while(iter.hasNext()){
+					TableStandardFields f = iter.next();
+					assertEquals("string" + i, f.fieldA);
+					assertTrue(f.fieldInt < 10);
+					count += 1;
+				}
+				assertEquals(i < 2 ? 3 : 2, count);
+			}
+			assertEquals(misses + 1, d.getStatementCacheMisses());
+			assertTrue(d.getStatementCacheHits() >= 3);
+			//(nested iteration over the same query)
+			Iterator<TableStandardFields> outer = d.getObjectsWhere(TableStandardFields.class, "fieldInt<?", 3);
+			int pairs = 0;
+			while(outer.hasNext()){
+				outer.next();
+				Iterator<TableStandardFields> inner = d.getObjectsWhere(TableStandardFields.class, "fieldInt<?", 3);
+				while(inner.hasNext()){ inner.next(); pairs += 1; }
+			}
+			assertEquals(9, pairs);
+			//(first object)
+			TableStandardFields first = d.getFirstObjectWhere(TableStandardFields.class, "fieldInt=?", 7);
+			assertNotNull(first);
+			assertEquals(7, first.fieldInt);
+			assertNull(d.getFirstObjectWhere(TableStandardFields.class, "fieldInt=?", 70));
+			//--Delete
+			assertEquals(5, d.deleteObjectsWhere(TableStandardFields.class, "fieldString=?", "string3"));
+			assertEquals(15, d.getTableRowCount(TableStandardFields.class));
+			assertEquals(0, d.deleteObjectsWhere(TableStandardFields.class, "fieldString=?", "string3"));
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void resultLogger() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			DBResultLogger logger = new DBResultLogger(d, "junit");
+			logger.logOption("option", "value", "here");
+			for(int i=0; i<2500; i++){
+				logger.add(i, "guess" + i, "gold" + i);
+				logger.setLocalResult(i, "score", i);
+			}
+			logger.setGlobalResult("accuracy", 0.5);
+			logger.close();
+			assertEquals(1, d.getTableRowCount(DBResultLogger.Option.class));
+			assertEquals(2500, d.getTableRowCount(DBResultLogger.Instance.class));
+			assertEquals(2500, d.getTableRowCount(DBResultLogger.LocalResult.class));
+			assertEquals(1, d.getTableRowCount(DBResultLogger.GlobalResult.class));
+			//(results are linked to their run)
+			DBResultLogger.GlobalResult result = d.getFirstObjectWhere(DBResultLogger.GlobalResult.class, "rid=?", logger.runIndex());
+			assertNotNull(result);
+			assertEquals("accuracy", result.key());
+			try {
+				logger.add(2500, "guess", "gold");
+				fail("Logged to a closed logger");
+			} catch (IllegalStateException e) { }
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void objectCache() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.setCacheSize(16);
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			//(setup; flushed objects are cached)
+			List<TableStandardFields> rows = new ArrayList<TableStandardFields>();
+			for(int i=0; i<32; i++){
+				TableStandardFields f = d.emptyObject(TableStandardFields.class);
+				f.fieldInt = i;
+				f.flush();
+				rows.add(f);
+			}
+			assertEquals(16, d.getCacheSize());
+			assertEquals(16, d.getCacheEvictions());
+			//(hits and misses)
+			for(int i=16; i<32; i++){
+				assertTrue(rows.get(i) == d.getObjectById(TableStandardFields.class, rows.get(i).id));
+			}
+			assertEquals(16, d.getCacheHits());
+			assertEquals(0, d.getCacheMisses());
+			assertTrue(rows.get(0) == d.getObjectById(TableStandardFields.class, rows.get(0).id));
+			assertEquals(1, d.getCacheMisses());
+			assertTrue(rows.get(0) == d.getObjectByKey(TableStandardFields.class, "id", rows.get(0).id));
+			assertEquals(17, d.getCacheHits());
+			//(invalidation)
+			assertTrue(rows.get(0).delete());
+			assertNull(d.getObjectById(TableStandardFields.class, rows.get(0).id));
+			assertEquals(31, d.deleteObjectsWhere(TableStandardFields.class, "fieldInt > 0"));
+			assertEquals(0, d.getCacheSize());
+			assertNull(d.getObjectById(TableStandardFields.class, rows.get(31).id));
+			//--Disconnect
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void streaming() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.setFetchSize(16);
+			d.clear();
+			d.ensureTable(TableIndices.class);
+			//(setup)
+			d.beginTransaction();
+			for(int i=0; i<500; i++){
+				TableIndices x = d.emptyObject(TableIndices.class);
+				x.fieldA = i % 5;
+				x.fieldB = i;
+				x.flush();
+			}
+			d.endTransaction();
+			//(scan)
+			int count = 0;
+			Iterator<TableIndices> iter = d.getObjectsWhere(TableIndices.class, "fieldB >= 100");
+			while(iter.hasNext()){
+				assertTrue(iter.next().fieldB >= 100);
+				count += 1;
+			}
+			assertEquals(400, count);
+			//(streamed queries are prepared once)
+			long misses = d.getStatementCacheMisses();
+			for(int i=0; i<3; i++){
+				count = 0;
+				iter = d.getObjectsWhere(TableIndices.class, "fieldB >= ?", 400 + i);
+				while(iter.hasNext()){ iter.next(); count += 1; }
+				assertEquals(100 - i, count);
+			}
+			assertEquals(misses + 1, d.getStatementCacheMisses());
+			//(nested lookups on the same key)
+			count = 0;
+			Iterator<TableIndices> outer = d.getObjectsByKey(TableIndices.class, "fieldA", 1);
+			while(outer.hasNext()){
+				assertEquals(1, outer.next().fieldA);
+				Iterator<TableIndices> inner = d.getObjectsByKey(TableIndices.class, "fieldA", 2);
+				int innerCount = 0;
+				while(inner.hasNext()){
+					assertEquals(2, inner.next().fieldA);
+					innerCount += 1;
+				}
+				assertEquals(100, innerCount);
+				count += 1;
+			}
+			assertEquals(100, count);
+			//(abandon a scan)
+			iter = d.getObjectsWhere(TableIndices.class, "");
+			assertTrue(iter.hasNext());
+			iter.next();
+			Database.close(iter);
+			assertFalse(iter.hasNext());
+			//--Disconnect
+			d.disconnect();
+		}
+	}
+
 	@Test
 	public void queryObject() {
 		for(Database d : eachType()){
@@ -1207,6 +1716,48 @@ public class DatabaseTest{
 		}
 	}
 	
+	@Test
+	public void codecs(){
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableCodecs.class);
+			//--Values
+			TableCodecs t = d.emptyObject(TableCodecs.class);
+			t.ints = new int[]{ 0, 1, -1, 300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+			t.longs = new long[]{ 0L, -42L, Long.MAX_VALUE, Long.MIN_VALUE };
+			t.floats = new float[]{ 1.5f, Float.NaN, -0.0f };
+			t.doubles = new double[]{ Math.PI, Double.NEGATIVE_INFINITY, 1e-300 };
+			t.deflated = new double[1000];
+			t.deflated[42] = 7.0;
+			t.serialized = new SomeSerializable("Hello world");
+			t.flush();
+			t = d.getObjectById(TableCodecs.class, t.id);
+			assertArrayEquals(new int[]{ 0, 1, -1, 300, Integer.MAX_VALUE, Integer.MIN_VALUE }, t.ints);
+			assertArrayEquals(new long[]{ 0L, -42L, Long.MAX_VALUE, Long.MIN_VALUE }, t.longs);
+			assertArrayEquals(new float[]{ 1.5f, Float.NaN, -0.0f }, t.floats, 0.0f);
+			assertArrayEquals(new double[]{ Math.PI, Double.NEGATIVE_INFINITY, 1e-300 }, t.doubles, 0.0);
+			assertEquals(1000, t.deflated.length);
+			assertEquals(7.0, t.deflated[42], 0.0);
+			assertEquals(new SomeSerializable("Hello world"), t.serialized);
+			//--Nulls And Empties
+			t = d.emptyObject(TableCodecs.class);
+			t.ints = new int[0];
+			t.flush();
+			t = d.getObjectById(TableCodecs.class, t.id);
+			assertEquals(0, t.ints.length);
+			assertNull(t.longs);
+			assertNull(t.doubles);
+			assertNull(t.deflated);
+			assertNull(t.serialized);
+			//--Compact
+			assertEquals(1, new Codecs.VarInts().encode(new int[0]).length);
+			assertEquals(1 + 3, new Codecs.VarInts().encode(new int[]{ 1, -1, 63 }).length);
+			assertTrue(new Codecs.DeflatedDoubles().encode(new double[1000]).length < 100);
+			d.disconnect();
+		}
+	}
+
 	@Test
 	public void decodableClasses(){
 		for(Database d : eachType()){
@@ -1423,6 +1974,9 @@ public class DatabaseTest{
 			assertTrue(d.isConnected());
 			d.disconnect();
 		}
+		//(an H2 location round trips without its driver)
+		assertEquals("h2://mem:junit", Database.fromString("h2://mem:junit").toString());
+		assertEquals("h2://file:/tmp/junit", new Database(Database.ConnInfo.h2(new File("/tmp/junit"))).toString());
 	}
 	
 	@Test
@@ -1489,6 +2043,278 @@ public class DatabaseTest{
 		Database.FORCEDBUPDATE = saved;
 	}
 	
+	@Test
+	public void queryMetrics() {
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			d.ensureTable(TableStandardFields.class);
+			QueryMetrics metrics = new QueryMetrics();
+			d.addQueryListener(metrics);
+			//--Write
+			TableStandardFields[] objs = new TableStandardFields[5];
+			for(int i=0; i<objs.length; i++){
+				objs[i] = d.emptyObject(TableStandardFields.class);
+				objs[i].fieldInt = i;
+				objs[i].flush();
+			}
+			objs[0].fieldInt = 10;
+			objs[0].flush();
+			//--Read
+			for(TableStandardFields obj : objs){
+				assertNotNull(d.getObjectById(TableStandardFields.class, obj.id));
+			}
+			Iterator<TableStandardFields> iter = d.getObjectsWhere(TableStandardFields.class, "fieldInt < ?", 3);
+			while(iter.hasNext()){ iter.next(); }
+			assertEquals(1, d.deleteObjectsWhere(TableStandardFields.class, "fieldInt=?", 4));
+			//--Check
+			QueryMetrics.Stats create = metrics.getStats(TableStandardFields.class, QueryEvent.Operation.CREATE);
+			assertEquals(5, create.getCount());
+			assertEquals(5, create.getRowsWritten());
+			assertEquals("tableFields", create.getTable());
+			assertEquals(1, metrics.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE).getCount());
+			QueryMetrics.Stats keySearch = metrics.getStats(TableStandardFields.class, QueryEvent.Operation.KEY_SEARCH);
+			assertEquals(5, keySearch.getCount());
+			assertEquals(5, keySearch.getRowsRead());
+			assertTrue(keySearch.getPercentileMillis(50) <= keySearch.getPercentileMillis(99));
+			assertTrue(keySearch.getPercentileMillis(99) <= keySearch.getMaxMillis());
+			assertTrue(keySearch.getTotalMillis() >= keySearch.getMaxMillis());
+			QueryMetrics.Stats query = metrics.getStats(TableStandardFields.class, QueryEvent.Operation.QUERY);
+			assertEquals(1, query.getCount());
+			assertEquals(2, query.getRowsRead());
+			assertEquals(1, metrics.getStats(TableStandardFields.class, QueryEvent.Operation.DELETE).getRowsWritten());
+			assertNull(metrics.getStats(TableStandardFields.class, QueryEvent.Operation.FIND_BY_INDEX));
+			String json = metrics.toJSON();
+			assertTrue(json.startsWith("{\"queries\":["));
+			assertTrue(json.contains("\"operation\":\"KEY_SEARCH\",\"count\":5,\"rowsRead\":5"));
+			//--Remove
+			d.removeQueryListener(metrics);
+			d.getObjectById(TableStandardFields.class, objs[0].id);
+			assertEquals(5, metrics.getStats(TableStandardFields.class, QueryEvent.Operation.KEY_SEARCH).getCount());
+			//--Slow Query Log
+			java.io.ByteArrayOutputStream err = new java.io.ByteArrayOutputStream();
+			java.io.PrintStream oldErr = System.err;
+			System.setErr(new java.io.PrintStream(err));
+			try {
+				d.setSlowQueryThreshold(0);
+				d.getObjectById(TableStandardFields.class, objs[0].id);
+				d.setSlowQueryThreshold(-1);
+				d.getObjectById(TableStandardFields.class, objs[0].id);
+			} finally {
+				System.setErr(oldErr);
+			}
+			assertEquals(1, err.toString().split("SLOW QUERY: KEY_SEARCH TableStandardFields", -1).length - 1);
+			d.disconnect();
+		}
+	}
+
+	@Test
+	public void changeTracking() throws IOException {
+		File f = File.createTempFile("junit", ".db");
+		Database a = new Database(Database.ConnInfo.sqlite(f)).connect();
+		Database b = new Database(Database.ConnInfo.sqlite(f)).connect();
+		QueryMetrics metricsA = new QueryMetrics();
+		QueryMetrics metricsB = new QueryMetrics();
+		a.addQueryListener(metricsA);
+		b.addQueryListener(metricsB);
+		a.ensureTable(TableStandardFields.class);
+		//--Unchanged Objects
+		TableStandardFields x = a.emptyObject(TableStandardFields.class);
+		x.fieldA = "a";
+		x.fieldInt = 1;
+		x.flush();
+		x.flush();  //(unchanged since inserted)
+		assertNull(metricsA.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE));
+		TableStandardFields y = b.getObjectById(TableStandardFields.class, x.id);
+		y.flush();  //(unchanged since read)
+		assertNull(metricsB.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE));
+		//--Changed Columns
+		y.fieldA = "b";
+		y.flush();
+		assertEquals(1, metricsB.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE).getCount());
+		b.disconnect();  //(sqlite locks the file while b's read is open)
+		x.fieldInt = 2;
+		x.flush();  //(does not overwrite fieldString)
+		assertEquals(1, metricsA.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE).getCount());
+		Database c = new Database(Database.ConnInfo.sqlite(f)).connect();
+		TableStandardFields z = c.getObjectById(TableStandardFields.class, x.id);
+		assertEquals("b", z.fieldA);
+		assertEquals(2, z.fieldInt);
+		c.disconnect();
+		//--Mark Dirty
+		x.markDirty();
+		x.flush();
+		assertEquals(2, metricsA.getStats(TableStandardFields.class, QueryEvent.Operation.UPDATE).getCount());
+		c = new Database(Database.ConnInfo.sqlite(f)).connect();
+		assertEquals("a", c.getObjectById(TableStandardFields.class, x.id).fieldA);
+		c.disconnect();
+		//--Parents
+		a.ensureTable(TableFKRef1_1.class);
+		TableFKBase parent = a.emptyObject(TableFKBase.class);
+		TableFKRef1 child = a.emptyObject(TableFKRef1.class);
+		child.pid = parent;
+		parent.flush();
+		child.flush();
+		child.flush();  //(unchanged since inserted)
+		assertNull(metricsA.getStats(TableFKRef1.class, QueryEvent.Operation.UPDATE));
+		c = new Database(Database.ConnInfo.sqlite(f)).connect();
+		QueryMetrics metricsC = new QueryMetrics();
+		c.addQueryListener(metricsC);
+		TableFKRef1 read = c.getObjectById(TableFKRef1.class, child.id);
+		read.refreshLinks();
+		assertEquals(parent.id, read.pid.id);
+		read.flush();  //(the parent fetched is the one stored)
+		assertNull(metricsC.getStats(TableFKRef1.class, QueryEvent.Operation.UPDATE));
+		c.disconnect();
+		a.disconnect();
+		if(!f.delete()){ f.deleteOnExit(); }
+	}
+
+	@Test
+	public void snapshot() throws IOException {
+		File f = File.createTempFile("junit", ".snapshot");
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			//--Standard Fields
+			for(int i=0; i<3; i++){
+				TableStandardFields t = d.emptyObject(TableStandardFields.class);
+				t.fieldA = i == 1 ? null : "row " + i;
+				t.fieldBool = i % 2 == 0;
+				t.fieldShort = (short) -i;
+				t.fieldInt = i * 1000;
+				t.fieldLong = Long.MAX_VALUE - i;
+				t.fieldDouble = Math.PI * i;
+				t.fieldFloat = 1.5f * i;
+				t.fieldChar = (char) ('a' + i);
+				t.fieldByte = (byte) (i - 1);
+				t.flush();
+			}
+			assertEquals(3, d.exportSnapshot(TableStandardFields.class, f));
+			d.disconnect();
+			Database.SnapshotTable<TableStandardFields> standard = Database.openSnapshot(TableStandardFields.class, f);
+			assertEquals(3, standard.size());
+			for(int i=0; i<3; i++){
+				TableStandardFields t = standard.get(i);
+				assertEquals(i + 1, t.id);
+				assertEquals(i == 1 ? null : "row " + i, t.fieldA);
+				assertEquals(i % 2 == 0, t.fieldBool);
+				assertEquals((short) -i, t.fieldShort);
+				assertEquals(i * 1000, t.fieldInt);
+				assertEquals(Long.MAX_VALUE - i, t.fieldLong);
+				assertEquals(Math.PI * i, t.fieldDouble, 1e-10);
+				assertEquals(1.5f * i, t.fieldFloat, 0.0f);
+				assertEquals((char) ('a' + i), t.fieldChar);
+				assertEquals((byte) (i - 1), t.fieldByte);
+			}
+			//(lookup by key)
+			assertEquals(2, standard.rowOf(3));
+			assertEquals(-1, standard.rowOf(4));
+			assertEquals(1000, standard.getById(2).fieldInt);
+			assertNull(standard.getById(0));
+			try{
+				standard.get(0).flush();
+				fail("Snapshot objects should not flush");
+			} catch(IllegalStateException e){ }
+			standard.close();
+			//--Codecs
+			d.connect();
+			d.clear();
+			TableCodecs t = d.emptyObject(TableCodecs.class);
+			t.ints = new int[]{ 0, -1, Integer.MAX_VALUE };
+			t.deflated = new double[100];
+			t.deflated[42] = 7.0;
+			t.serialized = new SomeSerializable("Hello world");
+			t.flush();
+			d.emptyObject(TableCodecs.class).flush();
+			assertEquals(2, d.exportSnapshot(TableCodecs.class, f));
+			Database.SnapshotTable<TableCodecs> codecs = Database.openSnapshot(TableCodecs.class, f);
+			t = codecs.get(0);
+			assertArrayEquals(new int[]{ 0, -1, Integer.MAX_VALUE }, t.ints);
+			assertNull(t.longs);
+			assertEquals(7.0, t.deflated[42], 0.0);
+			assertEquals(new SomeSerializable("Hello world"), t.serialized);
+			t = codecs.get(1);
+			assertNull(t.ints);
+			assertNull(t.serialized);
+			codecs.close();
+			d.disconnect();
+		}
+		//--Raw Columns
+		Snapshot.Writer writer = new Snapshot.Writer(f, new String[]{ "a", "b" }, new Snapshot.Type[]{ Snapshot.Type.LONG, Snapshot.Type.BYTES });
+		writer.addRow(1L, new byte[]{ 1, 2, 3 });
+		writer.addRow(null, new byte[0]);
+		writer.close();
+		Snapshot raw = Snapshot.open(f);
+		assertEquals(2, raw.rows());
+		assertEquals(1, raw.column("b"));
+		assertEquals(1L, raw.getLong(0, 0));
+		assertTrue(raw.isNull(1, 0));
+		assertArrayEquals(new byte[]{ 1, 2, 3 }, raw.getBytes(0, 1));
+		assertEquals(0, raw.getBytes(1, 1).length);
+		raw.close();
+		if(!f.delete()){ f.deleteOnExit(); }
+	}
+
+	@Test
+	public void schemaMigration(){
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			String table = TableChange.class.getAnnotation(Table.class).name();
+			d.ensureTable(TableChange.class);
+			TableChange original = d.emptyObject(TableChange.class);
+			original.fieldOne = 1;
+			original.flush();
+			assertEquals(2, d.getTableColumns(table).length);
+			//--Not Allowed
+			try{
+				d.emptyObject(TableChangeLarger.class).flush();
+				fail("Should not change the schema unless asked to");
+			} catch(DatabaseException e){ }
+			assertEquals(2, d.getTableColumns(table).length);
+			//--Added Field
+			boolean saved = Database.FORCEDBUPDATE;
+			Database.FORCEDBUPDATE = true;
+			TableChangeLarger larger;
+			try{
+				larger = d.emptyObject(TableChangeLarger.class);
+				larger.fieldOne = 2;
+				larger.fieldTwo = 3;
+				larger.flush();
+			} finally {
+				Database.FORCEDBUPDATE = saved;
+			}
+			assertEquals(3, d.getTableColumns(table).length);
+			larger = d.getObjectById(TableChangeLarger.class, larger.id);
+			assertEquals(2, larger.fieldOne);
+			assertEquals(3, larger.fieldTwo);
+			//(old rows read the default, and are backfilled when flushed)
+			TableChangeLarger migrated = d.getObjectById(TableChangeLarger.class, original.id);
+			assertEquals(1, migrated.fieldOne);
+			assertEquals(0, migrated.fieldTwo);
+			migrated.fieldTwo = 5;
+			migrated.flush();
+			assertEquals(1, d.getFirstObjectWhere(TableChangeLarger.class, "fieldTwo=?", 5).id);
+			//(the old class still reads and writes)
+			TableChange change = d.getObjectById(TableChange.class, larger.id);
+			assertEquals(2, change.fieldOne);
+			change = d.emptyObject(TableChange.class);
+			change.fieldOne = 7;
+			change.flush();
+			assertEquals(7, d.getObjectById(TableChangeLarger.class, change.id).fieldOne);
+			//--Removed Field
+			assertNotNull(d.getObjectById(TableChangeSmaller.class, larger.id));
+			assertEquals(3, d.getTableColumns(table).length);
+			//--Incompatible Change
+			try{
+				d.emptyObject(TableChangeBad.class);
+				fail("Should not be able to add a primary key to an existing table");
+			} catch(DatabaseException e){ }
+			d.disconnect();
+		}
+	}
+
 	@Test
 	public void testForeignKey(){	//TODO foreign keys still aren't very robust
 		for(Database d : eachType()){
@@ -1616,4 +2442,47 @@ public class DatabaseTest{
 		}
 	}
 
+	@Test
+	public void fetchLinks(){
+		for(Database d : eachType()){
+			assertTrue(d.isConnected());
+			d.clear();
+			//--Setup
+			TableFKBase[] parents = new TableFKBase[3];
+			for(int i=0; i<parents.length; i++){
+				parents[i] = d.emptyObject(TableFKBase.class);
+				parents[i].sub1 = new TableFKRef1[i];
+				for(int k=0; k<i; k++){
+					parents[i].sub1[k] = d.emptyObject(TableFKRef1.class);
+					parents[i].sub1[k].val = "child " + i + "." + k;
+				}
+				parents[i].deepFlush();
+			}
+			//--Children
+			List<TableFKBase> loaded = d.getObjectsWhere(TableFKBase.class, "id>=" + parents[0].id, Database.Fetch.CHILDREN);
+			assertEquals(3, loaded.size());
+			for(TableFKBase p : loaded){
+				int i = p.id - parents[0].id;
+				assertNotNull(p.sub1);
+				assertEquals(i, p.sub1.length);
+				for(int k=0; k<i; k++){
+					assertEquals("child " + i + "." + k, p.sub1[k].val);
+					assertTrue(p == p.sub1[k].pid);
+				}
+				assertNull(p.sub2);
+				assertNull(p.parent);
+			}
+			//--Parents
+			List<TableFKRef1> children = d.getObjectsWhere(TableFKRef1.class, null, Database.Fetch.PARENTS);
+			assertEquals(3, children.size());
+			for(TableFKRef1 c : children){
+				assertNotNull(c.pid);
+				assertTrue(c.val.startsWith("child " + (c.pid.id - parents[0].id) + "."));
+				assertNull(c.sub1);
+			}
+			//--Cleanup
+			d.disconnect();
+		}
+	}
+
 }
\ No newline at end of file
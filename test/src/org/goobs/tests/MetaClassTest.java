@@ -152,6 +152,14 @@ public class MetaClassTest{
 		}
 	}
 
+	public static class Hidden{
+		public final String s;
+		private Hidden(String s){
+			if(s.isEmpty()){ throw new IllegalArgumentException("empty"); }
+			this.s = s;
+		}
+	}
+
 	private static class Cacheable {
 		public int pk;
 		public int qk;
@@ -380,4 +388,28 @@ public class MetaClassTest{
 		assertTrue(a.a[2] == 3);
 	}
 	
+	@Test
+	public void testFactoryCache(){
+		//--Reuse
+		MetaClass.ClassFactory<Something> a = MetaClass.create(Something.class).createFactory();
+		MetaClass.ClassFactory<Something> b = new MetaClass(CLASS+"$Something").createFactory();
+		assertSame(a, b);
+		assertNotNull(a.createInstance());
+		assertNotSame(a.createInstance(), a.createInstance());
+		//(by signature)
+		MetaClass.ClassFactory<Primitive> i = MetaClass.create(Primitive.class).createFactory(Integer.class);
+		MetaClass.ClassFactory<Primitive> d = MetaClass.create(Primitive.class).createFactory(Double.class);
+		assertNotSame(i, d);
+		assertSame(i, MetaClass.create(Primitive.class).createFactory(7));
+		//--Private Constructors
+		Hidden h = MetaClass.create(Hidden.class).createInstance("hello");
+		assertEquals("hello", h.s);
+		try{
+			MetaClass.create(Hidden.class).createInstance("");
+			fail("Exception in the constructor should propagate");
+		} catch(MetaClass.ClassCreationException e){
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+	
 }
@@ -0,0 +1,202 @@
+package org.goobs.tests;
+
+import org.goobs.scheme.Scheme;
+import org.goobs.scheme.SchemeException;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SchemeTest {
+
+	private Scheme scm;
+
+	@Before
+	public void setUp(){
+		scm = new Scheme();
+	}
+
+	private String eval(String exp){
+		return scm.evaluate(exp).trim();
+	}
+
+	@Test
+	public void arithmetic(){
+		assertEquals("6", eval("(+ 1 2 3)"));
+		assertEquals("-4", eval("(- 4)"));
+		assertEquals("24", eval("(* 2 3 4)"));
+		assertEquals("2.5", eval("(/ 5 2)"));
+		assertEquals("4294967296", eval("(* 65536 65536)"));
+		assertEquals("#t", eval("(< 1 2)"));
+		assertEquals("#f", eval("(> 1 2)"));
+		assertEquals("#t", eval("(= 3 3)"));
+		assertEquals("1", eval("(modulo 7 3)"));
+	}
+
+	@Test
+	public void numbers(){
+		assertEquals("#t", eval("(= 1000 1000)"));
+		assertEquals("#t", eval("(= 2.5 2.5)"));
+		assertEquals("0", eval("(* 5 0)"));
+		assertEquals("2147483648", eval("(+ 2147483647 1)"));
+		assertEquals("-2147483649", eval("(- -2147483648 1)"));
+		assertEquals("2.25", eval("(* 1.5 1.5)"));
+		assertEquals("0.3", eval("(+ 0.1 0.2)"));
+		assertEquals("#t", eval("(< 1 2.5)"));
+		//(numbers are values; set! rebinds the variable)
+		eval("(define a 5)");
+		eval("(define b a)");
+		eval("(set! a 6)");
+		assertEquals("5", eval("b"));
+		eval("(define (make-counter) (define n 0) (lambda () (set! n (+ n 1)) n))");
+		eval("(define c1 (make-counter))");
+		eval("(define c2 (make-counter))");
+		eval("(c1)");
+		assertEquals("2", eval("(c1)"));
+		assertEquals("1", eval("(c2)"));
+	}
+
+	@Test
+	public void decimalArithmetic(){
+		//(flonums are added and subtracted as the decimals they were written as)
+		assertEquals("0.2", eval("(- 0.3 0.1)"));
+		assertEquals("0.1", eval("(- 1.1 1)"));
+		assertEquals("0.1", eval("(+ 1.1 -1.0)"));
+		assertEquals("1.0", eval("(- 2.3 1.3)"));
+		assertEquals("0.4", eval("(* 0.1 4)"));
+		assertEquals("0.00", eval("(* 0.5 0.0)"));
+		assertEquals("3.375", eval("(* 1.5 1.5 1.5)"));
+	}
+
+	@Test
+	public void define(){
+		assertEquals("x", eval("(define x 5)"));
+		assertEquals("5", eval("x"));
+		assertEquals("10", eval("(+ x x)"));
+		eval("(define (square y) (* y y))");
+		assertEquals("25", eval("(square x)"));
+		assertEquals("ok\n7", eval("(set! x 7) 'ok x").replaceAll("okay\n", ""));
+	}
+
+	@Test
+	public void lambda(){
+		assertEquals("3", eval("((lambda (a b) (+ a b)) 1 2)"));
+		assertEquals("(2 3)", eval("((lambda (a . rest) rest) 1 2 3)"));
+		assertEquals("(1 2 3)", eval("(list 1 2 3)"));
+		assertEquals("()", eval("(list)"));
+		eval("(define (make-adder n) (lambda (m) (+ n m)))");
+		assertEquals("15", eval("((make-adder 10) 5)"));
+		eval("(define (f) (define a 2) (define (g) (* a 3)) (g))");
+		assertEquals("6", eval("(f)"));
+		eval("(define z 1)");
+		eval("(define (h) (define y z) (define z 2) (+ y z))");
+		assertEquals("3", eval("(h)"));
+	}
+
+	@Test
+	public void specialForms(){
+		assertEquals("yes", eval("(if (< 1 2) 'yes 'no)"));
+		assertEquals("no", eval("(if (> 1 2) 'yes 'no)"));
+		assertEquals("b", eval("(cond ((> 1 2) 'a) ((< 1 2) 'b) (else 'c))"));
+		assertEquals("c", eval("(cond ((> 1 2) 'a) (else 'c))"));
+		assertEquals("#f", eval("(and #t #f)"));
+		assertEquals("#t", eval("(or #f #t)"));
+		assertEquals("3", eval("(do 1 2 3)"));
+		assertEquals("3", eval("(let ((a 1) (b 2)) (+ a b))"));
+		assertEquals("4", eval("(let* ((a 1) (b (+ a 1))) (* b 2))"));
+		assertEquals("(a b)", eval("(quote (a b))"));
+		assertEquals("1", eval("((lambda (f) (f #t 1 2)) if)"));
+	}
+
+	@Test
+	public void recursion(){
+		eval("(define (fact n) (if (< n 2) 1 (* n (fact (- n 1)))))");
+		assertEquals("3628800", eval("(fact 10)"));
+		assertEquals("2432902008176640000", eval("(fact 20)"));
+		assertEquals("3", eval("(length (list 1 2 3))"));
+		assertEquals("(2 4 6)", eval("(map (lambda (x) (* x 2)) (list 1 2 3))"));
+		eval("(define (even-odd n) (define (ev? n) (if (= n 0) #t (od? (- n 1)))) (define (od? n) (if (= n 0) #f (ev? (- n 1)))) (ev? n))");
+		assertEquals("#t", eval("(even-odd 10)"));
+	}
+
+	@Test
+	public void deepRecursion(){
+		//(tail calls run in constant space)
+		eval("(define (loop n) (if (= n 0) 'done (loop (- n 1))))");
+		assertEquals("done", eval("(loop 1000000)"));
+		eval("(define (fib x) (define (helper sofar index max) (if (> index max) sofar (helper (+ sofar index) (+ index 1) max))) (helper 0 0 x))");
+		assertEquals("5000050000", eval("(fib 100000)"));
+		//(other calls are bounded by the heap, not the thread's stack)
+		eval("(define (count n) (if (= n 0) 0 (+ 1 (count (- n 1)))))");
+		assertEquals("100000", eval("(count 100000)"));
+		eval("(define (forever n) (+ 1 (forever n)))");
+		try {
+			eval("(forever 1)");
+			fail("Should not recurse forever");
+		} catch (SchemeException e) {
+			assertTrue(e.getMessage().contains("too many recursions"));
+		}
+	}
+
+	@Test
+	public void parallel(){
+		eval("(set-parallel! #t 4)");
+		try {
+			//(let-par is only bound in interpreters made while parallel)
+			scm = new Scheme();
+			eval("(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))");
+			eval("(define (pfib n) (if (< n 10) (fib n) (let-par ((a (pfib (- n 1))) (b (pfib (- n 2)))) (+ a b))))");
+			assertEquals("6765", eval("(pfib 20)"));
+			assertEquals("15", eval("(let-par ((a (let-par ((c 1) (d 2)) (+ c d))) (b 5)) (* a b))"));
+			try {
+				eval("(let-par ((a (car 1)) (b 2)) b)");
+				fail("Should not take the car of a number");
+			} catch (SchemeException e) {
+				assertTrue(e.getMessage().contains("not a pair"));
+			}
+		} finally {
+			eval("(set-parallel! #f)");
+		}
+	}
+
+	@Test
+	public void tables(){
+		eval("(define t (make-table))");
+		eval("(insert! 'a 1 t)");
+		eval("(insert! 'b 2 t)");
+		assertEquals("2", eval("(lookup 'b t)"));
+		assertEquals("#f", eval("(lookup 'c t)"));
+	}
+
+	@Test
+	public void errors(){
+		try {
+			eval("undefined-variable");
+			fail("Should not evaluate an unbound variable");
+		} catch (SchemeException e) {
+			assertTrue(e.getMessage().contains("Unbound variable"));
+		}
+		try {
+			eval("((lambda (a) a) 1 2)");
+			fail("Should not apply a lambda to too many arguments");
+		} catch (SchemeException e) {
+			assertTrue(e.getMessage().contains("too many arguments"));
+		}
+		try {
+			eval("((lambda (a b) a) 1)");
+			fail("Should not apply a lambda to too few arguments");
+		} catch (SchemeException e) {
+			assertTrue(e.getMessage().contains("Too few arguments"));
+		}
+		try {
+			eval("(car 1)");
+			fail("Should not take the car of a number");
+		} catch (SchemeException e) {
+			assertTrue(e.getMessage().startsWith("eval:"));
+		}
+	}
+
+	@Test
+	public void toList(){
+		eval("(define (g x) (+ x 1))");
+		assertEquals("(lambda (x) (+ x 1))", eval("(to-list g)"));
+	}
+}